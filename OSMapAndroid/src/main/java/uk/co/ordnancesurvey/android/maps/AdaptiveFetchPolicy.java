@@ -0,0 +1,192 @@
+/**
+ * OpenSpace Android SDK Licence Terms
+ *
+ * The OpenSpace Android SDK is protected by © Crown copyright – Ordnance Survey 2013.[https://github.com/OrdnanceSurvey]
+ *
+ * All rights reserved (subject to the BSD licence terms as follows):.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided
+ * with the distribution.
+ *
+ * Neither the name of Ordnance Survey nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE
+ *
+ */
+package uk.co.ordnancesurvey.android.maps;
+
+import android.net.ConnectivityManager;
+
+/**
+ * Decides how many threads {@link TileFetcher} should use for asynchronous fetches.
+ *
+ * Fetch threads report how long each tile took to fetch (both real time and thread CPU time) and to decode.
+ * While fetches are slow and the fetch threads spend most of that time waiting on the network, adding a thread increases throughput.
+ * Once decoding dominates, extra threads just compete for the CPU, so the pool shrinks again.
+ * The bounds depend on the type of network connection, since a slow device on a fast link and a fast device on a slow link want
+ * very different pool sizes.
+ *
+ * It also holds the budget for speculative prefetches, which is a number of tiles and bytes per second that depends on the type of
+ * network connection. The budget can be saved up for a couple of seconds, so a fling can prefetch a burst of tiles.
+ *
+ * This class is threadsafe.
+ */
+final class AdaptiveFetchPolicy {
+	// Don't resize more often than this, to give the averages a chance to respond.
+	private static final long RESIZE_INTERVAL_MILLIS = 1000;
+	// Fetches slower than this are "high latency".
+	private static final float HIGH_LATENCY_MILLIS = 150;
+	// Fetch threads which use less than this fraction of their time on the CPU are waiting on the network.
+	private static final float IDLE_CPU_FRACTION = 0.3f;
+	// Weight given to each new sample in the moving averages.
+	private static final float SMOOTHING = 0.2f;
+
+	private static final int NO_NETWORK = -1;
+	// How many seconds of unused prefetch budget can be saved up.
+	private static final float PREFETCH_BURST_SECONDS = 2;
+
+	private int mNetworkType = NO_NETWORK;
+	private int mMinThreads;
+	private int mMaxThreads;
+	private int mTargetThreads;
+
+	private float mAverageFetchMillis;
+	private float mAverageFetchCpuMillis;
+	private float mAverageDecodeMillis;
+	private long mLastResizeUptimeMillis;
+
+	private float mPrefetchTilesPerSecond;
+	private float mPrefetchBytesPerSecond;
+	private float mPrefetchTiles;
+	private float mPrefetchBytes;
+	private long mLastPrefetchRefillUptimeMillis;
+
+	AdaptiveFetchPolicy() {
+		setNetworkType(NO_NETWORK);
+		mTargetThreads = mMinThreads;
+	}
+
+	/**
+	 * @param networkType One of the ConnectivityManager.TYPE_* constants, or a negative number if there is no network.
+	 */
+	synchronized void setNetworkType(int networkType) {
+		mNetworkType = networkType;
+		switch (networkType) {
+		case ConnectivityManager.TYPE_ETHERNET:
+		case ConnectivityManager.TYPE_WIFI:
+			mMinThreads = 2;
+			mMaxThreads = 6;
+			mPrefetchTilesPerSecond = 16;
+			mPrefetchBytesPerSecond = 1024*1024;
+			break;
+		case ConnectivityManager.TYPE_WIMAX:
+			mMinThreads = 2;
+			mMaxThreads = 5;
+			mPrefetchTilesPerSecond = 8;
+			mPrefetchBytesPerSecond = 512*1024;
+			break;
+		case ConnectivityManager.TYPE_MOBILE:
+			mMinThreads = 1;
+			mMaxThreads = 4;
+			// Mobile data costs money, so only prefetch a little.
+			mPrefetchTilesPerSecond = 4;
+			mPrefetchBytesPerSecond = 128*1024;
+			break;
+		case ConnectivityManager.TYPE_BLUETOOTH:
+			mMinThreads = 1;
+			mMaxThreads = 2;
+			mPrefetchTilesPerSecond = 0;
+			mPrefetchBytesPerSecond = 0;
+			break;
+		default:
+			// No network (or an unknown one). Asynchronous sources need not be network sources, so keep a couple of threads.
+			mMinThreads = 1;
+			mMaxThreads = 2;
+			mPrefetchTilesPerSecond = 0;
+			mPrefetchBytesPerSecond = 0;
+			break;
+		}
+		mTargetThreads = Math.max(mMinThreads, Math.min(mMaxThreads, mTargetThreads));
+		mPrefetchTiles = Math.min(mPrefetchTiles, mPrefetchTilesPerSecond * PREFETCH_BURST_SECONDS);
+		mPrefetchBytes = Math.min(mPrefetchBytes, mPrefetchBytesPerSecond * PREFETCH_BURST_SECONDS);
+	}
+
+	synchronized int getNetworkType() {
+		return mNetworkType;
+	}
+
+	/**
+	 * Records a completed fetch and returns the new target thread count.
+	 *
+	 * @param fetchMillis Real time spent fetching the tile data.
+	 * @param fetchCpuMillis Thread CPU time spent fetching the tile data.
+	 * @param decodeMillis Real time spent decoding the tile data, or 0 if it was not decoded.
+	 * @param queueLength Number of requests still waiting for a thread.
+	 * @param nowUptimeMillis
+	 */
+	synchronized int recordFetch(long fetchMillis, long fetchCpuMillis, long decodeMillis, int queueLength, long nowUptimeMillis) {
+		mAverageFetchMillis += SMOOTHING * (fetchMillis - mAverageFetchMillis);
+		mAverageFetchCpuMillis += SMOOTHING * (fetchCpuMillis - mAverageFetchCpuMillis);
+		mAverageDecodeMillis += SMOOTHING * (decodeMillis - mAverageDecodeMillis);
+
+		if (nowUptimeMillis - mLastResizeUptimeMillis < RESIZE_INTERVAL_MILLIS) {
+			return mTargetThreads;
+		}
+
+		float cpuFraction = (mAverageFetchMillis > 0 ? mAverageFetchCpuMillis / mAverageFetchMillis : 1);
+		boolean latencyBound = mAverageFetchMillis > HIGH_LATENCY_MILLIS && cpuFraction < IDLE_CPU_FRACTION;
+		boolean decodeBound = mAverageDecodeMillis > mAverageFetchMillis;
+
+		int target = mTargetThreads;
+		if (decodeBound) {
+			target--;
+		} else if (latencyBound && queueLength > 0) {
+			target++;
+		}
+		target = Math.max(mMinThreads, Math.min(mMaxThreads, target));
+		if (target != mTargetThreads) {
+			mTargetThreads = target;
+			mLastResizeUptimeMillis = nowUptimeMillis;
+		}
+		return target;
+	}
+
+	synchronized int getTargetThreadCount() {
+		return mTargetThreads;
+	}
+
+	private void refillPrefetchBudget(long nowUptimeMillis) {
+		float seconds = Math.max(0, nowUptimeMillis - mLastPrefetchRefillUptimeMillis) / 1000.0f;
+		mLastPrefetchRefillUptimeMillis = nowUptimeMillis;
+		mPrefetchTiles = Math.min(mPrefetchTiles + seconds * mPrefetchTilesPerSecond, mPrefetchTilesPerSecond * PREFETCH_BURST_SECONDS);
+		mPrefetchBytes = Math.min(mPrefetchBytes + seconds * mPrefetchBytesPerSecond, mPrefetchBytesPerSecond * PREFETCH_BURST_SECONDS);
+	}
+
+	/**
+	 * Takes one tile from the prefetch budget. Returns false if there isn't enough budget, in which case the tile should not be
+	 * prefetched.
+	 */
+	synchronized boolean startPrefetch(long nowUptimeMillis) {
+		refillPrefetchBudget(nowUptimeMillis);
+		if (mPrefetchTiles < 1 || mPrefetchBytes <= 0) {
+			return false;
+		}
+		mPrefetchTiles--;
+		return true;
+	}
+
+	/**
+	 * Charges a completed prefetch to the byte budget. Tiles are not all the same size, so this can leave the budget overdrawn,
+	 * which holds off further prefetches until it recovers.
+	 */
+	synchronized void recordPrefetchBytes(int bytes) {
+		mPrefetchBytes -= bytes;
+	}
+}
@@ -0,0 +1,115 @@
+/**
+ * OpenSpace Android SDK Licence Terms
+ *
+ * The OpenSpace Android SDK is protected by © Crown copyright – Ordnance Survey 2013.[https://github.com/OrdnanceSurvey]
+ *
+ * All rights reserved (subject to the BSD licence terms as follows):.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided
+ * with the distribution.
+ *
+ * Neither the name of Ordnance Survey nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE
+ *
+ */
+package uk.co.ordnancesurvey.android.maps;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+
+/**
+ * Bitmaps which nobody is using any more, kept to be decoded into again with BitmapFactory.Options.inBitmap, so that decoding a
+ * tile doesn't allocate a new 100-250 KB bitmap (and make the garbage collector free an old one). Before API level 19, inBitmap has
+ * to be exactly the same size and config as the decoded image, so bitmaps are kept in buckets by size and config.
+ *
+ * The pool holds at most a given number of bytes, which {@link MemoryGovernor} lowers when memory is short; bitmaps returned once it
+ * is full are left to the garbage collector. It does
+ * nothing before API level 11, which doesn't support inBitmap.
+ *
+ * This class is threadsafe.
+ */
+final class BitmapPool {
+	// All guarded by this.
+	private long mMaxBytes;
+	private final HashMap<Long, ArrayList<Bitmap>> mBuckets = new HashMap<Long, ArrayList<Bitmap>>();
+	private long mBytes;
+
+	BitmapPool(long maxBytes) {
+		mMaxBytes = maxBytes;
+	}
+
+	private static Long bucketKey(int width, int height, Bitmap.Config config) {
+		return Long.valueOf(((long)width << 32) | ((long)height << 8) | config.ordinal());
+	}
+
+	private static int sizeOf(Bitmap bmp) {
+		// Bitmap.getByteCount() requires API level 12. Use this instead.
+		return bmp.getRowBytes() * bmp.getHeight();
+	}
+
+	/**
+	 * Takes a bitmap of the given size and config out of the pool, or returns null if there isn't one.
+	 */
+	synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+		if (Build.VERSION.SDK_INT < 11) {
+			return null;
+		}
+		ArrayList<Bitmap> bucket = mBuckets.get(bucketKey(width, height, config));
+		Bitmap bmp = (bucket == null || bucket.isEmpty() ? null : bucket.remove(bucket.size()-1));
+		TileMetrics.getInstance().recordBitmapPoolLookup(bmp != null);
+		if (bmp != null) {
+			mBytes -= sizeOf(bmp);
+		}
+		return bmp;
+	}
+
+	/**
+	 * Changes the size of the pool, leaving bitmaps to the garbage collector if it shrinks.
+	 */
+	synchronized void setMaxBytes(long maxBytes) {
+		mMaxBytes = maxBytes;
+		for (Iterator<ArrayList<Bitmap>> it = mBuckets.values().iterator(); it.hasNext() && mBytes > maxBytes; ) {
+			ArrayList<Bitmap> bucket = it.next();
+			while (!bucket.isEmpty() && mBytes > maxBytes) {
+				mBytes -= sizeOf(bucket.remove(bucket.size()-1));
+			}
+			if (bucket.isEmpty()) {
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Adds a bitmap to the pool, if there is room. The caller must not use it afterwards.
+	 */
+	synchronized void put(Bitmap bmp) {
+		Bitmap.Config config = bmp.getConfig();
+		if (Build.VERSION.SDK_INT < 11 || config == null || !bmp.isMutable() || bmp.isRecycled()) {
+			return;
+		}
+		int size = sizeOf(bmp);
+		if (mBytes + size > mMaxBytes) {
+			return;
+		}
+		Long key = bucketKey(bmp.getWidth(), bmp.getHeight(), config);
+		ArrayList<Bitmap> bucket = mBuckets.get(key);
+		if (bucket == null) {
+			bucket = new ArrayList<Bitmap>();
+			mBuckets.put(key, bucket);
+		}
+		bucket.add(bmp);
+		mBytes += size;
+	}
+}
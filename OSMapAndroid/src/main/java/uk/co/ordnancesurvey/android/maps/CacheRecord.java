@@ -0,0 +1,98 @@
+/**
+ * OpenSpace Android SDK Licence Terms
+ *
+ * The OpenSpace Android SDK is protected by © Crown copyright – Ordnance Survey 2013.[https://github.com/OrdnanceSurvey]
+ *
+ * All rights reserved (subject to the BSD licence terms as follows):.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided
+ * with the distribution.
+ *
+ * Neither the name of Ordnance Survey nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE
+ *
+ */
+package uk.co.ordnancesurvey.android.maps;
+
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * The format of a tile in a {@link DiskTileCache}: a header, then the tile's data.
+ *
+ * The header is the bytes "OT", the record version, a reserved byte, then the id of the {@link OSTileSource} the tile came
+ * from and the CRC-32 of the data, both as big-endian ints. A record that fails its checksum, or has a version this code doesn't
+ * know, is treated as a miss and replaced when the tile is fetched again, so a torn write or a format change costs one tile at
+ * a time instead of the whole cache.
+ */
+final class CacheRecord {
+	static final int VERSION = 1;
+	static final int HEADER_BYTES = 12;
+
+	private static final byte MAGIC_0 = 'O';
+	private static final byte MAGIC_1 = 'T';
+
+	private CacheRecord() {
+	}
+
+	static byte[] wrap(int sourceId, byte[] data) {
+		byte[] record = new byte[HEADER_BYTES + data.length];
+		record[0] = MAGIC_0;
+		record[1] = MAGIC_1;
+		record[2] = VERSION;
+		putInt(record, 4, sourceId);
+		putInt(record, 8, crc(data, 0, data.length));
+		System.arraycopy(data, 0, record, HEADER_BYTES, data.length);
+		return record;
+	}
+
+	/**
+	 * Whether the bytes have a record header, of any version.
+	 */
+	static boolean isRecord(byte[] bytes) {
+		return bytes.length >= HEADER_BYTES && bytes[0] == MAGIC_0 && bytes[1] == MAGIC_1;
+	}
+
+	static int sourceId(byte[] record) {
+		return getInt(record, 4);
+	}
+
+	/**
+	 * Returns a copy of the record's data, or null if it is a version this code can't read or fails its checksum.
+	 */
+	static byte[] dataOrNull(byte[] record) {
+		if (!isRecord(record) || record[2] != VERSION) {
+			return null;
+		}
+		int length = record.length - HEADER_BYTES;
+		if (crc(record, HEADER_BYTES, length) != getInt(record, 8)) {
+			return null;
+		}
+		return Arrays.copyOfRange(record, HEADER_BYTES, record.length);
+	}
+
+	private static int crc(byte[] bytes, int offset, int length) {
+		CRC32 crc = new CRC32();
+		crc.update(bytes, offset, length);
+		return (int)crc.getValue();
+	}
+
+	private static void putInt(byte[] bytes, int offset, int value) {
+		bytes[offset] = (byte)(value >> 24);
+		bytes[offset + 1] = (byte)(value >> 16);
+		bytes[offset + 2] = (byte)(value >> 8);
+		bytes[offset + 3] = (byte)value;
+	}
+
+	private static int getInt(byte[] bytes, int offset) {
+		return ((bytes[offset] & 0xff) << 24) | ((bytes[offset + 1] & 0xff) << 16) | ((bytes[offset + 2] & 0xff) << 8) | (bytes[offset + 3] & 0xff);
+	}
+}
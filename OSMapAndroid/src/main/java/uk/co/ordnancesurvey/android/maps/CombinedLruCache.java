@@ -26,22 +26,36 @@ import java.io.File;
 import java.io.IOException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
 
-import android.support.v4.util.LruCache;
 import android.util.Log;
 
-abstract class CombinedLruCache<K> {
+/**
+ * A memory cache in front of a disk cache. Keys are turned into longs once, by {@link #longForKey}, and both tiers use the
+ * long, so a lookup that hits the memory cache doesn't allocate.
+ */
+abstract class CombinedLruCache<K> implements MemoryGovernor.Tier {
 	private static final String TAG = "TileCache";
 	private static final int BYTES_PER_MB = 1024*1024;
+	// A few screenfuls of tiles waiting to be written to disk.
+	private static final int WRITE_BEHIND_MAX_BYTES = 4*BYTES_PER_MB;
+
+	private final LongLruCache mMemoryCache;
+	private final int mMemoryCacheMaxBytes;
+	private final DiskTileCache mDiskCache;
+	private final WriteBehindQueue mWriteBehindQueue;
+	private volatile boolean mClosed;
+
+	/**
+	 * Creates a cache with the given disk tier, or none.
+	 */
+	CombinedLruCache(int memoryMB, DiskTileCache diskCacheOrNull) {
+		mMemoryCache = newMemoryCacheOrNull(memoryMB);
+		mMemoryCacheMaxBytes = (mMemoryCache != null ? mMemoryCache.maxSize() : 0);
+		mDiskCache = diskCacheOrNull;
+		mWriteBehindQueue = newWriteBehindQueueOrNull(mDiskCache);
+	}
 
-	private final TileMemoryCache<K> mMemoryCache;
-	private final DiskLruCache mDiskCache;
-	private final ThreadPoolExecutor mAsyncExecutor;
-
-	public CombinedLruCache(int memoryMB, int diskMB, File dir, int appVersion) {
+	private static LongLruCache newMemoryCacheOrNull(int memoryMB) {
 		if (memoryMB > 0)
 		{
 			if (memoryMB > Integer.MAX_VALUE/BYTES_PER_MB)
@@ -50,85 +64,191 @@ abstract class CombinedLruCache<K> {
 				assert !BuildConfig.DEBUG || false : "Too big!";
 				memoryMB = Integer.MAX_VALUE/BYTES_PER_MB;
 			}
-			mMemoryCache = new TileMemoryCache<K>(memoryMB*BYTES_PER_MB);
-		} else {
-			mMemoryCache = null;
+			return new LongLruCache(memoryMB*BYTES_PER_MB);
 		}
+		return null;
+	}
 
-		mDiskCache = (diskMB > 0) ? openDiskCacheOrNull(dir, appVersion, 1, diskMB*(long)BYTES_PER_MB) : null;
-		mAsyncExecutor = (mDiskCache != null) ? new ThreadPoolExecutor(0, 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>()) : null;
+	private static WriteBehindQueue newWriteBehindQueueOrNull(DiskTileCache diskCache) {
+		return (diskCache != null) ? new WriteBehindQueue(diskCache, WRITE_BEHIND_MAX_BYTES) : null;
 	}
 
-	public byte[] get(K key) {
+	/**
+	 * Returns the data for a key, or null if it isn't cached. The disk cache only returns tiles from the given sources (or any
+	 * source if the array is null), so a tile from a source that is no longer in use is a miss rather than a wrong tile.
+	 */
+	public byte[] get(K k, int[] sourceIdsOrNull) {
+		long key = longForKey(k);
+		TileMetrics metrics = TileMetrics.getInstance();
 		if (mMemoryCache != null) {
 			byte[] ret = mMemoryCache.get(key);
+			metrics.recordMemoryCacheLookup(ret != null);
 			if (ret != null) {
 				return ret;
 			}
 		}
 
-		if (mDiskCache != null) {
-			try {
-				DiskLruCache.Snapshot snapshot = mDiskCache.get(stringForKey(key));
-				if (snapshot != null) {
-					byte[] ret = snapshot.getBytes(0);
-					if (ret != null) {
-						return ret;
-					}
+		if (mDiskCache != null && !mClosed) {
+			byte[] record = mWriteBehindQueue.get(key);
+			if (record == null) {
+				try {
+					record = mDiskCache.get(key);
+				} catch (IOException e) {
+					Log.w(TAG, "Failed to read cache", e);
 				}
-			} catch (IOException e) {
-				Log.w(TAG, "Failed to read cache", e);
+			}
+			byte[] ret = (record != null) ? dataForRecord(record, sourceIdsOrNull) : null;
+			metrics.recordDiskCacheLookup(ret != null);
+			if (ret != null) {
+				return ret;
 			}
 		}
 
 		return null;
 	}
 
-	public void putAsync(K key, final byte[] value) {
+	private static byte[] dataForRecord(byte[] record, int[] sourceIdsOrNull) {
+		if (!CacheRecord.isRecord(record)) {
+			TileMetrics.getInstance().recordDiskCacheCorrupt();
+			return null;
+		}
+		if (!isAcceptedSource(CacheRecord.sourceId(record), sourceIdsOrNull)) {
+			return null;
+		}
+		byte[] ret = CacheRecord.dataOrNull(record);
+		if (ret == null) {
+			// It will be overwritten when the tile is fetched again.
+			TileMetrics.getInstance().recordDiskCacheCorrupt();
+		}
+		return ret;
+	}
+
+	private static boolean isAcceptedSource(int sourceId, int[] sourceIdsOrNull) {
+		if (sourceIdsOrNull == null) {
+			return true;
+		}
+		for (int id : sourceIdsOrNull) {
+			if (id == sourceId) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Limits the memory cache. The disk cache doesn't use memory to speak of.
+	 */
+	@Override
+	public void setBudgetFraction(float fraction) {
+		if (mMemoryCache != null) {
+			mMemoryCache.resize((int)(mMemoryCacheMaxBytes * fraction));
+		}
+	}
+
+	/**
+	 * Adds data to the memory cache, and to the disk cache in the background. The disk cache may leave it out if it is too far
+	 * behind. The disk copy is a {@link CacheRecord}, which remembers the source and checks the data when it is read back.
+	 */
+	public void putAsync(K k, byte[] value, int sourceId) {
+		long key = longForKey(k);
 		if (mMemoryCache != null) {
 			mMemoryCache.put(key, value);
 		}
 
 		if (mDiskCache != null) {
-			final String stringKey = stringForKey(key);
-			final DiskLruCache cache = mDiskCache;
-
-			mAsyncExecutor.submit(new Runnable() {
-				@Override
-				public void run() {
-					try {
-						DiskLruCache.Editor editor = cache.edit(stringKey);
-						if (editor != null) {
-							editor.set(0, value);
-							editor.commit();
-						}
-					} catch (IOException e) {
-						Log.e(TAG, "Failed to write cache entry", e);
-					}
-				}
-			});
+			mWriteBehindQueue.offer(key, CacheRecord.wrap(sourceId, value));
 		}
 	}
 
-	abstract String stringForKey(K key);
+	/**
+	 * Writes the tiles waiting to be written, and closes the disk cache. Afterwards this is only a memory cache, so threads
+	 * which still have it carry on working.
+	 */
+	public void close() {
+		mClosed = true;
+		if (mWriteBehindQueue != null) {
+			try {
+				mWriteBehindQueue.close();
+			} catch (IOException e) {
+				Log.w(TAG, "Failed to close cache", e);
+			}
+		}
+	}
+
+	/**
+	 * The long key for a cache key. Keys that aren't equal must have different long keys, which must stay the same from one run
+	 * to the next, since they are stored on disk.
+	 */
+	abstract long longForKey(K key);
+
+	/**
+	 * The DiskLruCache key for a long key.
+	 */
+	static String stringForKey(long key) {
+		return Long.toHexString(key);
+	}
 
-	static DiskLruCache openDiskCacheOrNull(File directory, int appVersion, int valueCount, long maxSize) {
+	/**
+	 * The long key for a DiskLruCache key, or -1 if it isn't one.
+	 */
+	static long longForString(String key) {
 		try {
-			return DiskLruCache.open(directory, appVersion, valueCount, maxSize);
-		} catch (IOException e) {
-			Log.w(TAG, "Failed to open cache directory " + directory.getPath(), e);
-			return null;
+			// Long keys don't use the top bit, so this doesn't overflow.
+			return Long.parseLong(key, 16);
+		} catch (NumberFormatException e) {
+			return -1;
 		}
-
 	}
-	static final class TileMemoryCache<K> extends LruCache<K, byte[]>{
-		public TileMemoryCache(int maxSize) {
-			super(maxSize);
+
+	private static final class DiskLruCacheAdapter implements DiskTileCache {
+		private final DiskLruCache mCache;
+
+		DiskLruCacheAdapter(DiskLruCache cache) {
+			mCache = cache;
+		}
+
+		@Override
+		public byte[] get(long key) throws IOException {
+			DiskLruCache.Snapshot snapshot;
+			try {
+				snapshot = mCache.get(stringForKey(key));
+			} catch (IllegalStateException e) {
+				// Closed by another thread since the caller checked.
+				return null;
+			}
+			return (snapshot != null) ? snapshot.getBytes(0) : null;
+		}
+
+		@Override
+		public void putAll(long[] keys, byte[][] values, int count) throws IOException {
+			String[] strings = new String[count];
+			for (int i = 0; i < count; i++) {
+				strings[i] = stringForKey(keys[i]);
+			}
+			mCache.putAll(strings, values, count);
 		}
 
 		@Override
-		protected int sizeOf(K key, byte[] value) {
-			return value.length;
+		public void close() throws IOException {
+			mCache.close();
 		}
 	}
-}
\ No newline at end of file
+
+	/**
+	 * Opens a {@link DiskLruCache} to use as a disk tier, or returns null if it can't be opened.
+	 */
+	static DiskTileCache openDiskLruCacheTierOrNull(File directory, int appVersion, long maxSize, DiskLruCache.EvictionPolicy evictionPolicyOrNull) {
+		DiskLruCache cache = openDiskCacheOrNull(directory, appVersion, 1, maxSize, evictionPolicyOrNull);
+		return (cache != null) ? new DiskLruCacheAdapter(cache) : null;
+	}
+
+	static DiskLruCache openDiskCacheOrNull(File directory, int appVersion, int valueCount, long maxSize, DiskLruCache.EvictionPolicy evictionPolicyOrNull) {
+		try {
+			return DiskLruCache.open(directory, appVersion, valueCount, maxSize, evictionPolicyOrNull);
+		} catch (IOException e) {
+			Log.w(TAG, "Failed to open cache directory " + directory.getPath(), e);
+			return null;
+		}
+
+	}
+}
@@ -0,0 +1,187 @@
+/**
+ * OpenSpace Android SDK Licence Terms
+ *
+ * The OpenSpace Android SDK is protected by © Crown copyright – Ordnance Survey 2013.[https://github.com/OrdnanceSurvey]
+ *
+ * All rights reserved (subject to the BSD licence terms as follows):.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided
+ * with the distribution.
+ *
+ * Neither the name of Ordnance Survey nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE
+ *
+ */
+package uk.co.ordnancesurvey.android.maps;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Several tile packages behind one source, which sends each tile to the packages whose zoom level can contain it.
+ *
+ * Given the packages as separate sources, a tile missing from all of them cost a query per package. Here, each layer has a
+ * {@link TileBoxIndex} of the packages' bounding boxes, so a tile goes to the one or two packages that cover it. Where packages
+ * overlap, the earlier one wins, as it would have as separate sources.
+ */
+final class CompositeDBTileSource extends OSTileSource {
+	private final DBTileSource[] mPackages;
+	// Indexed by MapLayer.index. Null for layers none of the packages have.
+	private final TileBoxIndex[] mIndexByLayer;
+	private final String mMetricsName;
+
+	/**
+	 * A tile which more than one package might have, and the packages to try if the first of them doesn't.
+	 */
+	private static final class Overlap {
+		final MapTile tile;
+		final int[] packages;
+		final int next;
+
+		Overlap(MapTile tile, int[] packages, int next) {
+			this.tile = tile;
+			this.packages = packages;
+			this.next = next;
+		}
+	}
+
+	CompositeDBTileSource(Collection<DBTileSource> packages) {
+		super(null);
+		mPackages = packages.toArray(new DBTileSource[0]);
+		mMetricsName = "DBTileSource:" + mPackages.length + " packages";
+		mIndexByLayer = new TileBoxIndex[MapLayer.getLayerCount()];
+		for (int i = 0; i < mIndexByLayer.length; i++) {
+			MapLayer layer = MapLayer.forIndex(i);
+			int[][] boxes = new int[mPackages.length][];
+			boolean any = false;
+			for (int p = 0; p < mPackages.length; p++) {
+				DBTileSource.ZoomLevel zl = mPackages[p].zoomLevelForLayer(layer);
+				if (zl != null) {
+					boxes[p] = new int[] { zl.bbox_x0, zl.bbox_y0, zl.bbox_x1, zl.bbox_y1 };
+					any = true;
+				}
+			}
+			mIndexByLayer[i] = (any ? new TileBoxIndex(boxes) : null);
+		}
+	}
+
+	private int[] packagesNear(MapTile tile) {
+		TileBoxIndex index = mIndexByLayer[tile.layer.index];
+		return (index != null ? index.idsNear(tile.x, tile.y) : null);
+	}
+
+	@Override
+	byte[] dataForTile(MapTile tile) {
+		int[] packages = packagesNear(tile);
+		return (packages != null ? dataForTile(tile, packages, 0) : null);
+	}
+
+	/**
+	 * Tries the packages from packages[start] on, in order.
+	 */
+	private byte[] dataForTile(MapTile tile, int[] packages, int start) {
+		for (int i = start; i < packages.length; i++) {
+			byte[] data = mPackages[packages[i]].dataForTile(tile);
+			if (data != null) {
+				return data;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Gives each package the tiles it might have in one batch, then tries the tiles it didn't have in any later package that
+	 * covers them.
+	 */
+	@Override
+	Map<MapTile, byte[]> dataForTiles(Collection<MapTile> tiles) {
+		HashMap<MapTile, byte[]> ret = new HashMap<MapTile, byte[]>();
+		HashMap<DBTileSource, ArrayList<MapTile>> tilesByPackage = new HashMap<DBTileSource, ArrayList<MapTile>>();
+		ArrayList<Overlap> overlapping = new ArrayList<Overlap>();
+		for (MapTile tile : tiles) {
+			int[] packages = packagesNear(tile);
+			if (packages == null) {
+				continue;
+			}
+			DBTileSource first = null;
+			for (int i = 0; i < packages.length; i++) {
+				DBTileSource source = mPackages[packages[i]];
+				if (!source.mightHaveTile(tile)) {
+					continue;
+				}
+				if (first == null) {
+					first = source;
+				} else {
+					// Packages before this one either don't have it or are given it in a batch.
+					overlapping.add(new Overlap(tile, packages, i));
+					break;
+				}
+			}
+			if (first == null) {
+				continue;
+			}
+			ArrayList<MapTile> packageTiles = tilesByPackage.get(first);
+			if (packageTiles == null) {
+				packageTiles = new ArrayList<MapTile>();
+				tilesByPackage.put(first, packageTiles);
+			}
+			packageTiles.add(tile);
+		}
+
+		for (Map.Entry<DBTileSource, ArrayList<MapTile>> entry : tilesByPackage.entrySet()) {
+			ret.putAll(entry.getKey().dataForTiles(entry.getValue()));
+		}
+		// Tiles which more than one package might have, and the first didn't, are rare enough to fetch one at a time. The package
+		// which has just missed isn't asked again.
+		for (Overlap overlap : overlapping) {
+			if (!ret.containsKey(overlap.tile)) {
+				byte[] data = dataForTile(overlap.tile, overlap.packages, overlap.next);
+				if (data != null) {
+					ret.put(overlap.tile, data);
+				}
+			}
+		}
+		return ret;
+	}
+
+	@Override
+	boolean isNetwork() {
+		return false;
+	}
+
+	@Override
+	boolean isSynchronous() {
+		return true;
+	}
+
+	@Override
+	String getMetricsName() {
+		return mMetricsName;
+	}
+
+	@Override
+	public void close() throws IOException {
+		IOException failure = null;
+		for (DBTileSource source : mPackages) {
+			try {
+				source.close();
+			} catch (IOException e) {
+				failure = e;
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+}
@@ -24,16 +24,40 @@ package uk.co.ordnancesurvey.android.maps;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import android.annotation.TargetApi;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
 import android.os.Environment;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+import android.util.Log;
 
 final class DBTileSource extends OSTileSource {
-	//private final static String TAG = "DBTileSource";
+	private final static String TAG = "DBTileSource";
+
+	// A batch is fetched with a single query over its bounding box, unless the box has more than this many tiles per tile wanted.
+	private static final int MAX_BATCH_AREA_PER_TILE = 4;
+	private static final int OPEN_FLAGS = SQLiteDatabase.OPEN_READONLY | SQLiteDatabase.NO_LOCALIZED_COLLATORS;
+	// Zoom levels whose bounding box has more tiles than this (a megabyte of bits) don't get a presence bitmap.
+	private static final long MAX_PRESENCE_BITS = 8*1024*1024;
+	private static final String TILE_QUERY = "SELECT tile_data FROM tiles WHERE tile_row = ? and tile_column = ? and zoom_level = ?";
+	private static final long IDLE_CLOSE_MILLIS = 30*1000;
 
 	static final class ZoomLevel
 	{
@@ -43,6 +67,9 @@ final class DBTileSource extends OSTileSource {
 		final int bbox_x1;
 		final int bbox_y0;
 		final int bbox_y1;
+		// Which tiles in the bounding box are in the package. Null until it has been built, or if it won't be.
+		volatile BitSet presence;
+		final AtomicBoolean presenceRequested = new AtomicBoolean();
 
 		ZoomLevel(int internalZoomLevel, String product_code, int bbox_x0, int bbox_x1, int bbox_y0, int bbox_y1) {
 			this.internalZoomLevel = internalZoomLevel;
@@ -56,25 +83,131 @@ final class DBTileSource extends OSTileSource {
 		boolean containsTile(int x, int y) {
 			return (bbox_x0 <= x && x < bbox_x1 && bbox_y0 <= y && y < bbox_y1);
 		}
+
+		long area() {
+			return (long)(bbox_x1 - bbox_x0) * (bbox_y1 - bbox_y0);
+		}
+
+		// Only valid for tiles in the bounding box.
+		int presenceIndex(int x, int y) {
+			return (y - bbox_y0) * (bbox_x1 - bbox_x0) + (x - bbox_x0);
+		}
 	};
 
-	
-	private final SQLiteDatabase mDB;
-	private final ZoomLevel[] mZoomLevels;
+	/**
+	 * A connection to the database, and its compiled tile query.
+	 *
+	 * A connection runs one query at a time, so when the GL thread and the decode threads shared one they waited for each
+	 * other. Threads borrow a reader from a pool for each read instead, so there are only as many as read at once, and a thread
+	 * that goes away (such as a decode thread of a MapView that has been destroyed) doesn't keep one open. Not thread-safe; each
+	 * is used by one thread at a time.
+	 */
+	private static final class Reader {
+		final SQLiteDatabase db;
+		// Only compiled on API level 11 and later, which can read a blob without a cursor.
+		private final SQLiteStatement mTileStatement;
+		// Reused for reading blobs, and grown to the largest one.
+		private byte[] mBuffer = new byte[64*1024];
+
+		Reader(SQLiteDatabase db) {
+			this.db = db;
+			mTileStatement = (Build.VERSION.SDK_INT >= 11 ? db.compileStatement(TILE_QUERY) : null);
+		}
+
+		byte[] readTile(int row, int column, int zoomLevel) throws IOException {
+			if (mTileStatement != null) {
+				return readTileAPI11(row, column, zoomLevel);
+			}
+			Cursor cursor = db.rawQuery(TILE_QUERY, new String[]{String.valueOf(row), String.valueOf(column), String.valueOf(zoomLevel)});
+			try {
+				return (cursor.moveToFirst() ? cursor.getBlob(0) : null);
+			} finally {
+				cursor.close();
+			}
+		}
+
+		/**
+		 * Reads the blob through a file descriptor. Unlike a cursor, this doesn't allocate a CursorWindow (up to 2 MB of shared
+		 * memory) for every tile, or the query's arguments as strings.
+		 */
+		@TargetApi(11)
+		private byte[] readTileAPI11(int row, int column, int zoomLevel) throws IOException {
+			mTileStatement.bindLong(1, row);
+			mTileStatement.bindLong(2, column);
+			mTileStatement.bindLong(3, zoomLevel);
+			ParcelFileDescriptor fd;
+			try {
+				fd = mTileStatement.simpleQueryForBlobFileDescriptor();
+			} catch (SQLiteDoneException e) {
+				// No such tile.
+				return null;
+			}
+			if (fd == null) {
+				return null;
+			}
+			InputStream in = new ParcelFileDescriptor.AutoCloseInputStream(fd);
+			try {
+				int length = 0;
+				for (;;) {
+					if (length == mBuffer.length) {
+						mBuffer = Arrays.copyOf(mBuffer, length * 2);
+					}
+					int bytesRead = in.read(mBuffer, length, mBuffer.length - length);
+					if (bytesRead < 0) {
+						break;
+					}
+					length += bytesRead;
+				}
+				return Arrays.copyOf(mBuffer, length);
+			} finally {
+				in.close();
+			}
+		}
+
+		void close() {
+			if (mTileStatement != null) {
+				mTileStatement.close();
+			}
+			db.close();
+		}
+	}
+
+	private final String mPath;
+	// Indexed by MapLayer.index. Null for layers the package doesn't have.
+	private final ZoomLevel[] mZoomLevelsByLayer;
+	private final String mMetricsName;
+	private final Runnable mCloseIfIdle = new Runnable() {
+		@Override
+		public void run() {
+			closeIfIdle();
+		}
+	};
+
+	// Guarded by this. Open readers which no thread is using.
+	private final ArrayList<Reader> mIdleReaders = new ArrayList<Reader>();
+	private long mLastUseMillis;
+	private boolean mCloseScheduled;
+	private boolean mClosed;
 	
 	private DBTileSource(Context context, String path) throws SQLiteException {
 		super(null);
-		mDB = SQLiteDatabase.openDatabase(path, null, SQLiteDatabase.OPEN_READONLY | SQLiteDatabase.NO_LOCALIZED_COLLATORS);
+		mPath = path;
+		mMetricsName = "DBTileSource:" + new File(path).getName();
+		// This connection is only for the zoom levels. Tiles are read on pooled connections, which are opened when they are
+		// first needed and closed after IDLE_CLOSE_MILLIS without a read, so a package that isn't being looked at doesn't hold
+		// one open.
+		SQLiteDatabase db = SQLiteDatabase.openDatabase(path, null, OPEN_FLAGS);
 		
-		Cursor cursor = mDB.rawQuery("select * from zoom_levels", null);
+		ArrayList<ZoomLevel> levels = new ArrayList<ZoomLevel>();
+		Cursor cursor = null;
 		try {
+			cursor = db.rawQuery("select * from zoom_levels", null);
 			int bbox_x0 = cursor.getColumnIndexOrThrow("bbox_x0");
 			int bbox_x1= cursor.getColumnIndexOrThrow("bbox_x1");
 			int bbox_y0 = cursor.getColumnIndexOrThrow("bbox_y0");
 			int bbox_y1 = cursor.getColumnIndexOrThrow("bbox_y1");
 			int product_code = cursor.getColumnIndexOrThrow("product_code");
 			int zoom_level = cursor.getColumnIndexOrThrow("zoom_level");
-			ArrayList<ZoomLevel> levels = new ArrayList<ZoomLevel>();
 			while(cursor.moveToNext())
 			{
 				ZoomLevel zl = new ZoomLevel(
@@ -87,9 +220,22 @@ final class DBTileSource extends OSTileSource {
 
 				levels.add(zl);
 			}
-			mZoomLevels = levels.toArray(new ZoomLevel[0]);
 		} finally {
-			cursor.close();
+			if (cursor != null) {
+				cursor.close();
+			}
+			db.close();
+		}
+
+		mZoomLevelsByLayer = new ZoomLevel[MapLayer.getLayerCount()];
+		for (int i = 0; i < mZoomLevelsByLayer.length; i++) {
+			String productCode = MapLayer.forIndex(i).productCode;
+			for (ZoomLevel zl : levels) {
+				if (zl.product_code.equals(productCode)) {
+					mZoomLevelsByLayer[i] = zl;
+					break;
+				}
+			}
 		}
 	}
 
@@ -114,16 +260,141 @@ final class DBTileSource extends OSTileSource {
 		return openFile(context, db);
 	}
 
-	private ZoomLevel zoomLevelForLayer(MapLayer layer) {
-		String productCode = layer.productCode;
-		for(ZoomLevel zl : mZoomLevels)
-		{
-			if(zl.product_code.equals(productCode))
-			{
-				return zl;
+	/**
+	 * Returns a reader for the calling thread to use on its own, opening one if none is idle, or null if the source has been
+	 * closed. It must be handed back with {@link #returnReader}.
+	 */
+	private Reader takeReaderOrNull() throws SQLiteException {
+		synchronized (this) {
+			if (mClosed) {
+				return null;
+			}
+			noteUse();
+			int count = mIdleReaders.size();
+			if (count > 0) {
+				return mIdleReaders.remove(count - 1);
+			}
+		}
+		// Opening doesn't need the lock, so other threads can carry on with their queries.
+		SQLiteDatabase db = SQLiteDatabase.openDatabase(mPath, null, OPEN_FLAGS);
+		try {
+			return new Reader(db);
+		} catch (SQLiteException e) {
+			db.close();
+			throw e;
+		}
+	}
+
+	private void returnReader(Reader reader) {
+		synchronized (this) {
+			if (!mClosed) {
+				// Counts as a use, so the reader isn't closed straight away, and is closed if it stays idle.
+				noteUse();
+				mIdleReaders.add(reader);
+				return;
+			}
+		}
+		reader.close();
+	}
+
+	// Called with the lock held.
+	private void noteUse() {
+		mLastUseMillis = SystemClock.uptimeMillis();
+		if (!mCloseScheduled) {
+			mCloseScheduled = true;
+			GeoPackageTileSource.sIdleCloser.schedule(mCloseIfIdle, IDLE_CLOSE_MILLIS, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	// Runs on the idle closer's thread.
+	private synchronized void closeIfIdle() {
+		mCloseScheduled = false;
+		long idleMillis = SystemClock.uptimeMillis() - mLastUseMillis;
+		if (idleMillis >= IDLE_CLOSE_MILLIS) {
+			closeIdleReaders();
+		} else {
+			mCloseScheduled = true;
+			GeoPackageTileSource.sIdleCloser.schedule(mCloseIfIdle, IDLE_CLOSE_MILLIS - idleMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	// Called with the lock held.
+	private void closeIdleReaders() {
+		for (Reader reader : mIdleReaders) {
+			reader.close();
+		}
+		mIdleReaders.clear();
+	}
+
+	/**
+	 * Returns the package's zoom level for the layer, or null if it doesn't have the layer.
+	 */
+	ZoomLevel zoomLevelForLayer(MapLayer layer) {
+		return mZoomLevelsByLayer[layer.index];
+	}
+
+	/**
+	 * Returns false if the package definitely doesn't have the tile.
+	 */
+	boolean mightHaveTile(MapTile tile) {
+		ZoomLevel zl = zoomLevelForLayer(tile.layer);
+		return (zl != null && mightHaveTile(zl, tile.x, tile.y));
+	}
+
+	/**
+	 * Returns false if the package definitely doesn't have the tile. This is only a bounding box check until the zoom level's
+	 * presence bitmap has been built, which the first thread to ask for it does.
+	 */
+	private boolean mightHaveTile(ZoomLevel zl, int x, int y) {
+		if (!zl.containsTile(x, y)) {
+			return false;
+		}
+		BitSet presence = zl.presence;
+		if (presence == null && zl.presenceRequested.compareAndSet(false, true)) {
+			presence = buildPresenceOrNull(zl);
+		}
+		return (presence == null || presence.get(zl.presenceIndex(x, y)));
+	}
+
+	/**
+	 * Reads which tiles the zoom level has, without reading their data. Packages tend to be sparse (a national park doesn't fill
+	 * its bounding box), so this saves a query for every tile that isn't there.
+	 */
+	private BitSet buildPresenceOrNull(ZoomLevel zl) {
+		long area = zl.area();
+		if (area <= 0 || area > MAX_PRESENCE_BITS) {
+			return null;
+		}
+		Reader reader = null;
+		Cursor cursor = null;
+		try {
+			reader = takeReaderOrNull();
+			if (reader == null) {
+				return null;
+			}
+			BitSet presence = new BitSet((int)area);
+			cursor = reader.db.rawQuery("SELECT tile_column, tile_row FROM tiles WHERE zoom_level = ?", new String[]{String.valueOf(zl.internalZoomLevel)});
+			while (cursor.moveToNext()) {
+				int x = cursor.getInt(0);
+				int y = cursor.getInt(1);
+				if (zl.containsTile(x, y)) {
+					presence.set(zl.presenceIndex(x, y));
+				}
+			}
+			zl.presence = presence;
+			return presence;
+		} catch (SQLiteException e) {
+			// Carry on without it.
+			Log.w(TAG, "Failed to read which tiles are present", e);
+			return null;
+		} finally {
+			if (cursor != null) {
+				cursor.close();
+			}
+			if (reader != null) {
+				returnReader(reader);
 			}
 		}
-		return null;
 	}
 
 	@Override
@@ -131,30 +402,118 @@ final class DBTileSource extends OSTileSource {
 		MapLayer layer = tile.layer;
 
 		ZoomLevel zl = zoomLevelForLayer(layer);
-		if(zl == null || !zl.containsTile(tile.x, tile.y))
+		if(zl == null || !mightHaveTile(zl, tile.x, tile.y))
 		{
 			return null;
 		}
 
-		Cursor cursor = null;
+		Reader reader = null;
+		try {
+			reader = takeReaderOrNull();
+			return (reader != null ? reader.readTile(tile.y, tile.x, zl.internalZoomLevel) : null);
+		} catch (IOException e) {
+			Log.w(TAG, "Failed to read tile", e);
+			return null;
+		} catch (SQLiteException e) {
+			Log.w(TAG, "Failed to read tile", e);
+			return null;
+		} finally {
+			if (reader != null) {
+				returnReader(reader);
+			}
+		}
+	}
 
-        try {
-            cursor = mDB.rawQuery(
-                "SELECT tile_data FROM tiles WHERE tile_row = ? and tile_column = ? and zoom_level = ?",
-                new String[]{String.valueOf(tile.y),  String.valueOf(tile.x), String.valueOf(zl.internalZoomLevel)});
+	/**
+	 * Fetches tiles with one query per zoom level, over the bounding box of the tiles. If the tiles are too spread out for
+	 * the bounding box to be a good idea, they are fetched one at a time.
+	 */
+	@Override
+	Map<MapTile, byte[]> dataForTiles(Collection<MapTile> tiles) {
+		HashMap<MapTile, byte[]> ret = new HashMap<MapTile, byte[]>();
+		HashMap<ZoomLevel, ArrayList<MapTile>> tilesByZoomLevel = new HashMap<ZoomLevel, ArrayList<MapTile>>();
+		for (MapTile tile : tiles) {
+			ZoomLevel zl = zoomLevelForLayer(tile.layer);
+			if (zl == null || !mightHaveTile(zl, tile.x, tile.y)) {
+				continue;
+			}
+			ArrayList<MapTile> zlTiles = tilesByZoomLevel.get(zl);
+			if (zlTiles == null) {
+				zlTiles = new ArrayList<MapTile>();
+				tilesByZoomLevel.put(zl, zlTiles);
+			}
+			zlTiles.add(tile);
+		}
 
-            if(cursor.moveToFirst())
-            {
-                return cursor.getBlob(0);
-            }
-        } finally {
-            if (cursor != null) {
-                cursor.close();
-            }
-        }
+		for (Map.Entry<ZoomLevel, ArrayList<MapTile>> entry : tilesByZoomLevel.entrySet()) {
+			ZoomLevel zl = entry.getKey();
+			ArrayList<MapTile> zlTiles = entry.getValue();
+			int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+			for (MapTile tile : zlTiles) {
+				minX = Math.min(minX, tile.x);
+				minY = Math.min(minY, tile.y);
+				maxX = Math.max(maxX, tile.x);
+				maxY = Math.max(maxY, tile.y);
+			}
+			long area = (long)(maxX-minX+1) * (maxY-minY+1);
+			if (zlTiles.size() == 1 || area > MAX_BATCH_AREA_PER_TILE * zlTiles.size()) {
+				putTilesOneAtATime(zlTiles, ret);
+				continue;
+			}
 
+			HashSet<MapTile> wanted = new HashSet<MapTile>(zlTiles);
+			MapLayer layer = zlTiles.get(0).layer;
+			MapTile probe = new MapTile();
+			Reader reader = null;
+			Cursor cursor = null;
+			boolean failed = false;
+			try {
+				reader = takeReaderOrNull();
+				if (reader == null) {
+					break;
+				}
+				cursor = reader.db.rawQuery(
+					"SELECT tile_column, tile_row, tile_data FROM tiles WHERE zoom_level = ? and tile_column BETWEEN ? AND ? and tile_row BETWEEN ? AND ?",
+					new String[]{String.valueOf(zl.internalZoomLevel), String.valueOf(minX), String.valueOf(maxX), String.valueOf(minY), String.valueOf(maxY)});
+				while (cursor.moveToNext()) {
+					probe.set(cursor.getInt(0), cursor.getInt(1), layer);
+					// Only copy out the blobs we were asked for.
+					if (wanted.contains(probe)) {
+						ret.put(new MapTile(probe), cursor.getBlob(2));
+					}
+				}
+			} catch (SQLiteException e) {
+				// e.g. a corrupt page somewhere in the box. It might not hold the tiles we want, so try them one at a time.
+				Log.w(TAG, "Failed to read tiles", e);
+				failed = true;
+			} finally {
+				if (cursor != null) {
+					cursor.close();
+				}
+				if (reader != null) {
+					returnReader(reader);
+				}
+			}
+			if (failed) {
+				putTilesOneAtATime(zlTiles, ret);
+			}
+		}
+		return ret;
+	}
 
-		return null;
+	/**
+	 * Reads the tiles which aren't already in ret one at a time, leaving out the ones which can't be read.
+	 */
+	private void putTilesOneAtATime(ArrayList<MapTile> tiles, HashMap<MapTile, byte[]> ret) {
+		for (MapTile tile : tiles) {
+			if (ret.containsKey(tile)) {
+				continue;
+			}
+			byte[] data = dataForTile(tile);
+			if (data != null) {
+				ret.put(tile, data);
+			}
+		}
 	}
 
 	@Override
@@ -167,12 +526,15 @@ final class DBTileSource extends OSTileSource {
 		return true;
 	}
 
-    @Override
-    public void close() throws IOException {
-        if (mDB == null) {
-            return;
-        }
+	@Override
+	String getMetricsName() {
+		return mMetricsName;
+	}
 
-        mDB.close();
-    }
+	@Override
+	public synchronized void close() throws IOException {
+		// Readers in use are closed when they are handed back.
+		mClosed = true;
+		closeIdleReaders();
+	}
 }
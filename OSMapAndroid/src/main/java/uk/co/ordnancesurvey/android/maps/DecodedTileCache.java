@@ -0,0 +1,231 @@
+/**
+ * OpenSpace Android SDK Licence Terms
+ *
+ * The OpenSpace Android SDK is protected by © Crown copyright – Ordnance Survey 2013.[https://github.com/OrdnanceSurvey]
+ *
+ * All rights reserved (subject to the BSD licence terms as follows):.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided
+ * with the distribution.
+ *
+ * Neither the name of Ordnance Survey nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE
+ *
+ */
+package uk.co.ordnancesurvey.android.maps;
+
+import java.util.WeakHashMap;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.support.v4.util.LruCache;
+
+/**
+ * Decoded tile bitmaps, in front of the compressed tile data in {@link TileCache}.
+ *
+ * A texture evicted from a map's GLTileCache (e.g. when zooming back and forth between two layers) can be uploaded again from
+ * here without decoding it again. The cache is sized by the bitmaps' pixel bytes and evicts the least recently used.
+ *
+ * Bitmaps are reference counted, because the bitmap being uploaded by a map may be evicted at any time. {@link #decode} and
+ * {@link #get} return a reference that the caller must {@link #release}; the bitmaps passed to
+ * {@link TileFetcherDelegate#tileReadyAsyncCallback} are such references. Once a bitmap is neither cached nor referenced (e.g. it
+ * has been evicted and uploaded), it goes to a {@link BitmapPool} to be decoded into again.
+ *
+ * There is one instance per process, since {@link InFlightTileTable} hands the same bitmap to every map that wants it.
+ *
+ * This class is threadsafe.
+ */
+final class DecodedTileCache {
+	// Most of the heap is for the app; the compressed tile cache and GL textures are sized separately.
+	// A fling decodes a few screens of tiles, and each one can reuse a bitmap from the pool.
+	private static final DecodedTileCache INSTANCE = new DecodedTileCache((int)Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory()/8),
+			Runtime.getRuntime().maxMemory()/32);
+
+	private static final class References {
+		int count;
+		boolean cached;
+	}
+
+	// All guarded by this.
+	private final LruCache<MapTile, Bitmap> mBitmaps;
+	// The bitmaps which are cached or referenced. Bitmap doesn't override equals(), so this is by identity. The keys are weak so
+	// that a reference which is never released (e.g. because the map was destroyed before uploading it) doesn't leak.
+	private final WeakHashMap<Bitmap, References> mReferences = new WeakHashMap<Bitmap, References>();
+	private final BitmapPool mPool;
+	private final int mMaxBytes;
+	// The size the cache is limited to by MemoryGovernor. The LruCache itself stays at mMaxBytes, and is trimmed to this.
+	private int mBudgetBytes;
+
+	static DecodedTileCache getInstance() {
+		return INSTANCE;
+	}
+
+	private DecodedTileCache(int maxBytes, final long maxPoolBytes) {
+		mMaxBytes = maxBytes;
+		mBudgetBytes = maxBytes;
+		mPool = new BitmapPool(maxPoolBytes);
+		mBitmaps = new LruCache<MapTile, Bitmap>(maxBytes) {
+			@Override
+			protected int sizeOf(MapTile key, Bitmap value) {
+				// Bitmap.getByteCount() requires API level 12. Use this instead.
+				return value.getRowBytes() * value.getHeight();
+			}
+
+			@Override
+			protected void entryRemoved(boolean evicted, MapTile key, Bitmap oldValue, Bitmap newValue) {
+				// This is always called from a method holding the lock.
+				References references = mReferences.get(oldValue);
+				references.cached = false;
+				if (references.count == 0) {
+					discard(oldValue);
+				}
+			}
+		};
+
+		MemoryGovernor governor = MemoryGovernor.getInstance();
+		governor.register(new MemoryGovernor.Tier() {
+			@Override
+			public void setBudgetFraction(float fraction) {
+				mPool.setMaxBytes((long)(maxPoolBytes * fraction));
+			}
+		}, MemoryGovernor.PRIORITY_SPARE);
+		governor.register(new MemoryGovernor.Tier() {
+			@Override
+			public void setBudgetFraction(float fraction) {
+				setBudgetBytes((int)(mMaxBytes * fraction));
+			}
+		}, MemoryGovernor.PRIORITY_DECODED);
+	}
+
+	private synchronized void setBudgetBytes(int budgetBytes) {
+		mBudgetBytes = budgetBytes;
+		mBitmaps.trimToSize(budgetBytes);
+	}
+
+	/**
+	 * Returns a reference to the cached bitmap for the tile, or null.
+	 */
+	synchronized Bitmap get(MapTile tile) {
+		Bitmap bmp = mBitmaps.get(tile);
+		TileMetrics.getInstance().recordDecodedCacheLookup(bmp != null);
+		if (bmp != null) {
+			mReferences.get(bmp).count++;
+		}
+		return bmp;
+	}
+
+	/**
+	 * Adds a bitmap returned by {@link #decode} to the cache. The caller keeps its reference.
+	 */
+	synchronized void put(MapTile tile, Bitmap bmp) {
+		References references = mReferences.get(bmp);
+		if (references == null || references.count == 0) {
+			assert false : "Only referenced bitmaps from decode() can be cached.";
+			return;
+		}
+		if (references.cached) {
+			return;
+		}
+		references.cached = true;
+		// Copy the tile!
+		mBitmaps.put(new MapTile(tile), bmp);
+		if (mBudgetBytes < mMaxBytes) {
+			mBitmaps.trimToSize(mBudgetBytes);
+		}
+	}
+
+	/**
+	 * Adds a reference to a bitmap which the caller has a reference to, e.g. to pass it on.
+	 */
+	synchronized void acquire(Bitmap bmp) {
+		mReferences.get(bmp).count++;
+	}
+
+	/**
+	 * Gives up a reference. The caller must not use the bitmap afterwards.
+	 */
+	synchronized void release(Bitmap bmp) {
+		References references = mReferences.get(bmp);
+		assert references.count > 0;
+		references.count--;
+		if (references.count == 0 && !references.cached) {
+			discard(bmp);
+		}
+	}
+
+	// Called with the lock held, once a bitmap isn't cached or referenced.
+	private void discard(Bitmap bmp) {
+		mReferences.remove(bmp);
+		mPool.put(bmp);
+	}
+
+	/**
+	 * Decodes a tile's data, reusing a pooled bitmap if there is one, and returns a reference to the bitmap (or null if the data
+	 * can't be decoded).
+	 */
+	Bitmap decode(MapTile tile, byte[] data) {
+		Bitmap bmp;
+		if (TileTranscoder.isTranscoded(data)) {
+			bmp = copyTranscoded(data);
+		} else if (Build.VERSION.SDK_INT >= 11) {
+			bmp = decodeReusingAPI11(tile.layer.tileSizePixels, data);
+		} else {
+			bmp = BitmapFactory.decodeByteArray(data, 0, data.length);
+		}
+		if (bmp != null) {
+			synchronized (this) {
+				References references = new References();
+				references.count = 1;
+				mReferences.put(bmp, references);
+			}
+		}
+		return bmp;
+	}
+
+	private Bitmap copyTranscoded(byte[] data) {
+		int width = TileTranscoder.width(data);
+		int height = TileTranscoder.height(data);
+		if (width == 0 || height == 0) {
+			return null;
+		}
+		Bitmap bmp = mPool.get(width, height, TileTranscoder.CONFIG);
+		if (bmp == null) {
+			bmp = Bitmap.createBitmap(width, height, TileTranscoder.CONFIG);
+		}
+		if (!TileTranscoder.copyPixels(data, bmp)) {
+			mPool.put(bmp);
+			return null;
+		}
+		return bmp;
+	}
+
+	@TargetApi(11)
+	private Bitmap decodeReusingAPI11(int tileSizePixels, byte[] data) {
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+		options.inMutable = true;
+		// Tiles are almost always the layer's size, so don't spend time decoding the bounds first.
+		Bitmap reusable = mPool.get(tileSizePixels, tileSizePixels, options.inPreferredConfig);
+		if (reusable != null) {
+			options.inBitmap = reusable;
+			try {
+				return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+			} catch (IllegalArgumentException e) {
+				// The image wasn't the expected size, so decode into a new bitmap. The pooled one is still good for other tiles.
+				options.inBitmap = null;
+				mPool.put(reusable);
+			}
+		}
+		return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+	}
+}
@@ -44,9 +44,13 @@
 
 package uk.co.ordnancesurvey.android.maps;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
@@ -57,7 +61,10 @@ import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
 import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -92,6 +99,9 @@ import android.util.Log;
  * deleted. The limit does not include filesystem overhead or the cache
  * journal so space-sensitive applications should set a conservative limit.
  *
+ * <p>Entries are removed in least recently used order, unless an {@link
+ * EvictionPolicy} gives them credit to stay.
+ *
  * <p>Clients call {@link #edit} to create or update the values of an entry. An
  * entry may have only one editor at one time; if a value is not available to be
  * edited then {@link #edit} will return null.
@@ -124,6 +134,8 @@ final class DiskLruCache implements Closeable {
   private static final String TAG = "DiskLruCache";
   private static final String JOURNAL_FILE = "journal";
   private static final String JOURNAL_FILE_TMP = "journal.tmp";
+  private static final String SNAPSHOT_FILE = "journal.snapshot";
+  private static final String SNAPSHOT_FILE_TMP = "journal.snapshot.tmp";
   private static final String MAGIC = "libcore.io.DiskLruCache";
   private static final String VERSION_1 = "1";
   private static final long ANY_SEQUENCE_NUMBER = -1;
@@ -131,6 +143,10 @@ final class DiskLruCache implements Closeable {
   private static final String DIRTY = "DIRTY";
   private static final String REMOVE = "REMOVE";
   private static final String READ = "READ";
+  private static final int SNAPSHOT_MAGIC = 0x444c5253; // "DLRS"
+  private static final int SNAPSHOT_VERSION = 2;
+  /** A snapshot is written after this many journal lines. */
+  private static final int SNAPSHOT_INTERVAL_OPS = 1000;
 
   // This cache uses a journal file named "journal". A typical journal file
   // looks like this:
@@ -169,18 +185,71 @@ final class DiskLruCache implements Closeable {
   // occasionally be compacted by dropping redundant lines. A temporary file named
   // "journal.tmp" will be used during compaction; that file should be deleted if
   // it exists when the cache is opened.
+  //
+  // Replaying a long journal is slow, so the index is also saved now and then
+  // (and when the cache is closed) to a binary file named "journal.snapshot".
+  // Its header is a magic number, its version, the application's version, the
+  // value count, the length of the journal when the snapshot was taken and the
+  // number of entries. Each entry is its key (in modified UTF-8), whether it
+  // was being edited, its eviction credit and the lengths of its values.
+  // Entries are in LRU order.
+  //
+  // The snapshot is read in one go when the cache is opened, and only the
+  // journal written after it is replayed. The journal is only appended to
+  // between compactions, and compaction deletes the snapshot, so the journal
+  // length always finds the first line written after the snapshot.
+  //
+  // The index is loaded on a background thread. Until it has been loaded,
+  // get() reads values directly from their clean files, which only exist once
+  // an edit has been committed, and edits wait.
+
+  /**
+   * Chooses which entries to keep when the cache is over its size. The cache
+   * still looks at entries in least recently used order, but an entry with
+   * credit is moved to the most recently used end instead of being removed,
+   * and loses a credit. Credit is given when an entry is written or read; an
+   * entry that is only ever written behaves as in plain LRU, so entries that
+   * are read again are kept for longer, as in a segmented LRU.
+   *
+   * <p>Methods are called with the cache's lock held, so must be quick.
+   */
+  interface EvictionPolicy {
+    /** Credit that is never used up. Pinned entries are only removed if every entry is pinned. */
+    int PINNED = Integer.MAX_VALUE;
+
+    /** The credit an entry gets when it is written, usually 0. */
+    int creditOnWrite(String key);
+
+    /** The credit an entry gets when it is read. */
+    int creditOnRead(String key);
+  }
 
   private final File directory;
   private final File journalFile;
   private final File journalFileTmp;
+  private final File snapshotFile;
+  private final File snapshotFileTmp;
   private final int appVersion;
   private final long maxSize;
+  private final EvictionPolicy evictionPolicy;
   private final int valueCount;
   private long size = 0;
   private Writer journalWriter;
+  /** The stream under journalWriter, to sync it. */
+  private FileOutputStream journalOut;
+  /**
+   * Serialises syncs of the journal, which happen without holding the cache's
+   * lock so that reads don't wait for them.
+   */
+  private final Object syncLock = new Object();
   private final LinkedHashMap<String, Entry> lruEntries =
       new LinkedHashMap<String, Entry>(0, 0.75f, true);
   private int redundantOpCount;
+  private int opsSinceSnapshot;
+  /** True while the index is being loaded in the background. */
+  private boolean loading;
+  /** True if the cache couldn't be loaded or recreated; it then behaves as if it were empty. */
+  private boolean loadFailed;
 
   /**
    * To differentiate between old and current snapshots, each entry is given
@@ -202,24 +271,41 @@ final class DiskLruCache implements Closeable {
         if (journalRebuildRequired()) {
           rebuildJournal();
           redundantOpCount = 0;
+          // The rebuild deleted the snapshot.
+          executorService.submit(snapshotCallable);
         }
       }
       return null;
     }
   };
+  private final Callable<Void> snapshotCallable = new Callable<Void>() {
+    @Override public Void call() throws Exception {
+      writeSnapshot();
+      return null;
+    }
+  };
+  private final Callable<Void> loadCallable = new Callable<Void>() {
+    @Override public Void call() throws Exception {
+      load();
+      return null;
+    }
+  };
 
-  private DiskLruCache(File directory, int appVersion, int valueCount, long maxSize) {
+  private DiskLruCache(File directory, int appVersion, int valueCount, long maxSize, EvictionPolicy evictionPolicyOrNull) {
     this.directory = directory;
     this.appVersion = appVersion;
     this.journalFile = new File(directory, JOURNAL_FILE);
     this.journalFileTmp = new File(directory, JOURNAL_FILE_TMP);
+    this.snapshotFile = new File(directory, SNAPSHOT_FILE);
+    this.snapshotFileTmp = new File(directory, SNAPSHOT_FILE_TMP);
     this.valueCount = valueCount;
     this.maxSize = maxSize;
+    this.evictionPolicy = evictionPolicyOrNull;
   }
 
   /**
    * Opens the cache in {@code directory}, creating a cache if none exists
-   * there.
+   * there. An existing cache is loaded in the background.
    *
    * @param directory a writable directory
    * @param valueCount the number of values per cache entry. Must be positive.
@@ -228,6 +314,16 @@ final class DiskLruCache implements Closeable {
    */
   static DiskLruCache open(File directory, int appVersion, int valueCount, long maxSize)
       throws IOException {
+    return open(directory, appVersion, valueCount, maxSize, null);
+  }
+
+  /**
+   * Opens the cache in {@code directory} like {@link #open(File, int, int,
+   * long)}, choosing which entries to remove with {@code evictionPolicyOrNull},
+   * or in least recently used order if it is null.
+   */
+  static DiskLruCache open(File directory, int appVersion, int valueCount, long maxSize,
+      EvictionPolicy evictionPolicyOrNull) throws IOException {
     if (maxSize <= 0) {
       throw new IllegalArgumentException("maxSize <= 0");
     }
@@ -236,32 +332,258 @@ final class DiskLruCache implements Closeable {
     }
 
     // prefer to pick up where we left off
-    DiskLruCache cache = new DiskLruCache(directory, appVersion, valueCount, maxSize);
+    DiskLruCache cache = new DiskLruCache(directory, appVersion, valueCount, maxSize, evictionPolicyOrNull);
+    if (cache.journalFile.exists() && !cache.hasJournalHeader()) {
+      // Written by another version. Remove it now, because get() reads files
+      // directly while the index is loading.
+      Log.w(TAG, "Removing cache written by another version in " + directory.getPath());
+      deleteContents(directory);
+    }
     if (cache.journalFile.exists()) {
-      try {
-        cache.readJournal();
-        cache.processJournal();
-        cache.journalWriter = new BufferedWriter(new FileWriter(cache.journalFile, true));
-        return cache;
-      } catch (IOException journalIsCorrupt) {
-        Log.w(TAG,"Directory"
-                + " is corrupt: "
-                + journalIsCorrupt.getMessage()
-                + ", removing");
-        cache.delete();
-      }
+      cache.loading = true;
+      cache.executorService.submit(cache.loadCallable);
+      return cache;
     }
 
     // create a new empty cache
     directory.mkdirs();
-    cache = new DiskLruCache(directory, appVersion, valueCount, maxSize);
     cache.rebuildJournal();
     return cache;
   }
 
-  private void readJournal() throws IOException {
-    StrictLineReader reader = new StrictLineReader(new FileInputStream(journalFile), US_ASCII);
+  /**
+   * Loads the index from the snapshot and journal. This runs on the executor
+   * without holding the lock, so that get() can carry on meanwhile.
+   */
+  private void load() throws IOException {
+    LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(0, 0.75f, true);
+    boolean replayedWholeJournal = false;
+    long loadedSize;
     try {
+      long journalOffset = readSnapshot(entries);
+      try {
+        readJournal(entries, journalOffset);
+      } catch (IOException snapshotIsStale) {
+        if (journalOffset < 0) {
+          throw snapshotIsStale;
+        }
+        // The snapshot doesn't match the journal, so replay all of it.
+        Log.w(TAG, "Ignoring snapshot: " + snapshotIsStale.getMessage());
+        entries.clear();
+        journalOffset = -1;
+        readJournal(entries, journalOffset);
+      }
+      replayedWholeJournal = (journalOffset < 0);
+      loadedSize = processJournal(entries);
+    } catch (IOException journalIsCorrupt) {
+      Log.w(TAG,"Directory"
+              + " is corrupt: "
+              + journalIsCorrupt.getMessage()
+              + ", removing");
+      synchronized (this) {
+        try {
+          deleteContents(directory);
+          directory.mkdirs();
+          rebuildJournal();
+        } catch (IOException e) {
+          Log.w(TAG, "Failed to recreate cache", e);
+          loadFailed = true;
+        }
+        loading = false;
+        notifyAll();
+      }
+      return;
+    }
+
+    synchronized (this) {
+      lruEntries.putAll(entries);
+      size = loadedSize;
+      try {
+        openJournalWriter();
+      } catch (IOException e) {
+        Log.w(TAG, "Failed to open journal", e);
+        loadFailed = true;
+      }
+      loading = false;
+      notifyAll();
+      if (journalWriter != null) {
+        if (replayedWholeJournal) {
+          // Make the next open fast.
+          executorService.submit(snapshotCallable);
+        }
+        if (size > maxSize || journalRebuildRequired()) {
+          executorService.submit(cleanupCallable);
+        }
+      }
+    }
+  }
+
+  /**
+   * Reads the snapshot into {@code entries} and returns the length of the
+   * journal it covers, or -1 if there is no usable snapshot.
+   */
+  private long readSnapshot(Map<String, Entry> entries) {
+    if (!snapshotFile.exists()) {
+      return -1;
+    }
+    try {
+      byte[] bytes;
+      RandomAccessFile file = new RandomAccessFile(snapshotFile, "r");
+      try {
+        bytes = new byte[(int) file.length()];
+        file.readFully(bytes);
+      } finally {
+        closeQuietly(file);
+      }
+
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+      if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION
+          || in.readInt() != appVersion || in.readInt() != valueCount) {
+        return -1;
+      }
+      long journalLength = in.readLong();
+      if (journalLength > journalFile.length()) {
+        return -1;
+      }
+      int count = in.readInt();
+      for (int i = 0; i < count; i++) {
+        Entry entry = new Entry(in.readUTF());
+        boolean dirty = in.readBoolean();
+        entry.credit = in.readInt();
+        for (int t = 0; t < valueCount; t++) {
+          entry.lengths[t] = in.readLong();
+        }
+        if (dirty) {
+          entry.currentEditor = new Editor(entry);
+        } else {
+          entry.readable = true;
+        }
+        entries.put(entry.key, entry);
+      }
+      return journalLength;
+    } catch (IOException e) {
+      Log.w(TAG, "Failed to read snapshot", e);
+      entries.clear();
+      return -1;
+    }
+  }
+
+  /**
+   * Writes the index to the snapshot. This holds the lock throughout, which
+   * costs a few milliseconds every {@link #SNAPSHOT_INTERVAL_OPS} operations.
+   */
+  private synchronized void writeSnapshot() throws IOException {
+    if (journalWriter == null) {
+      return; // closed
+    }
+    journalWriter.flush();
+    opsSinceSnapshot = 0;
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(snapshotFileTmp)));
+    try {
+      out.writeInt(SNAPSHOT_MAGIC);
+      out.writeInt(SNAPSHOT_VERSION);
+      out.writeInt(appVersion);
+      out.writeInt(valueCount);
+      out.writeLong(journalFile.length());
+      out.writeInt(lruEntries.size());
+      for (Entry entry : lruEntries.values()) {
+        out.writeUTF(entry.key);
+        out.writeBoolean(entry.currentEditor != null || !entry.readable);
+        out.writeInt(entry.credit);
+        for (long length : entry.lengths) {
+          out.writeLong(length);
+        }
+      }
+    } finally {
+      out.close();
+    }
+    if (!snapshotFileTmp.renameTo(snapshotFile)) {
+      deleteIfExists(snapshotFileTmp);
+    }
+  }
+
+  /** Call after appending a line to the journal. */
+  private void journalLineWritten() {
+    opsSinceSnapshot++;
+    if (opsSinceSnapshot == SNAPSHOT_INTERVAL_OPS) {
+      executorService.submit(snapshotCallable);
+    }
+  }
+
+  /**
+   * Waits for the index to be loaded. Returns false if the cache couldn't be
+   * loaded, in which case it behaves as if it were empty.
+   */
+  private synchronized boolean awaitLoaded() throws IOException {
+    while (loading) {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while loading cache");
+      }
+    }
+    return !loadFailed;
+  }
+
+  private void openJournalWriter() throws IOException {
+    journalOut = new FileOutputStream(journalFile, true);
+    journalWriter = new BufferedWriter(new OutputStreamWriter(journalOut, US_ASCII));
+  }
+
+  /**
+   * Reads {@code entries} from the journal, starting after the header or, if
+   * {@code offset} isn't negative, at that offset.
+   */
+  private void readJournal(Map<String, Entry> entries, long offset) throws IOException {
+    InputStream in = new FileInputStream(journalFile);
+    if (offset >= 0) {
+      long skipped = 0;
+      while (skipped < offset) {
+        long n = in.skip(offset - skipped);
+        if (n <= 0) {
+          closeQuietly(in);
+          throw new IOException("journal is shorter than its snapshot");
+        }
+        skipped += n;
+      }
+    }
+    StrictLineReader reader = new StrictLineReader(in, US_ASCII);
+    try {
+      if (offset < 0) {
+        readJournalHeader(reader);
+      }
+      while (true) {
+        try {
+          readJournalLine(entries, reader.readLine());
+        } catch (EOFException endOfJournal) {
+          break;
+        }
+      }
+    } finally {
+      closeQuietly(reader);
+    }
+  }
+
+  /**
+   * Returns true if the journal starts with the header this cache would
+   * write. Only the header is read.
+   */
+  private boolean hasJournalHeader() {
+    StrictLineReader reader = null;
+    try {
+      reader = new StrictLineReader(new FileInputStream(journalFile), US_ASCII);
+      readJournalHeader(reader);
+      return true;
+    } catch (IOException e) {
+      return false;
+    } finally {
+      closeQuietly(reader);
+    }
+  }
+
+  private void readJournalHeader(StrictLineReader reader) throws IOException {
+    {
       String magic = reader.readLine();
       String version = reader.readLine();
       String appVersionString = reader.readLine();
@@ -280,20 +602,10 @@ final class DiskLruCache implements Closeable {
             + blank
             + "]");
       }
-
-      while (true) {
-        try {
-          readJournalLine(reader.readLine());
-        } catch (EOFException endOfJournal) {
-          break;
-        }
-      }
-    } finally {
-      closeQuietly(reader);
     }
   }
 
-  private void readJournalLine(String line) throws IOException {
+  private void readJournalLine(Map<String, Entry> lruEntries, String line) throws IOException {
     String[] parts = line.split(" ");
     if (parts.length < 2) {
       throw new IOException("unexpected journal line: " + line);
@@ -318,7 +630,10 @@ final class DiskLruCache implements Closeable {
     } else if (parts[0].equals(DIRTY) && parts.length == 2) {
       entry.currentEditor = new Editor(entry);
     } else if (parts[0].equals(READ) && parts.length == 2) {
-      // this work was already done by calling lruEntries.get()
+      // the move to the MRU end was already done by calling lruEntries.get()
+      if (evictionPolicy != null) {
+        entry.credit = evictionPolicy.creditOnRead(key);
+      }
     } else {
       throw new IOException("unexpected journal line: " + line);
     }
@@ -328,8 +643,10 @@ final class DiskLruCache implements Closeable {
    * Computes the initial size and collects garbage as a part of opening the
    * cache. Dirty entries are assumed to be inconsistent and will be deleted.
    */
-  private void processJournal() {
+  private long processJournal(Map<String, Entry> lruEntries) {
     deleteIfExists(journalFileTmp);
+    deleteIfExists(snapshotFileTmp);
+    long size = 0;
     for (Iterator<Entry> i = lruEntries.values().iterator(); i.hasNext(); ) {
       Entry entry = i.next();
       if (entry.currentEditor == null) {
@@ -345,6 +662,7 @@ final class DiskLruCache implements Closeable {
         i.remove();
       }
     }
+    return size;
   }
 
   /**
@@ -355,6 +673,8 @@ final class DiskLruCache implements Closeable {
     if (journalWriter != null) {
       journalWriter.close();
     }
+    // It won't match the new journal.
+    deleteIfExists(snapshotFile);
 
     Writer writer = new BufferedWriter(new FileWriter(journalFileTmp));
     writer.write(MAGIC);
@@ -377,7 +697,7 @@ final class DiskLruCache implements Closeable {
 
     writer.close();
     journalFileTmp.renameTo(journalFile);
-    journalWriter = new BufferedWriter(new FileWriter(journalFile, true));
+    openJournalWriter();
   }
 
   private static void deleteIfExists(File file) {
@@ -390,6 +710,12 @@ final class DiskLruCache implements Closeable {
    * the head of the LRU queue.
    */
   synchronized Snapshot get(String key) throws IOException {
+    if (loading) {
+      return getWhileLoading(key);
+    }
+    if (loadFailed) {
+      return null;
+    }
     checkNotClosed();
     validateKey(key);
     Entry entry = lruEntries.get(key);
@@ -400,6 +726,9 @@ final class DiskLruCache implements Closeable {
     if (!entry.readable) {
       return null;
     }
+    if (evictionPolicy != null) {
+      entry.credit = evictionPolicy.creditOnRead(key);
+    }
 
     // Open all streams eagerly to guarantee that we see a single published
     // snapshot. If we opened streams lazily then the streams could come
@@ -416,6 +745,7 @@ final class DiskLruCache implements Closeable {
 
     redundantOpCount++;
     journalWriter.append(READ + ' ' + key + '\n');
+    journalLineWritten();
     if (journalRebuildRequired()) {
       executorService.submit(cleanupCallable);
     }
@@ -423,6 +753,27 @@ final class DiskLruCache implements Closeable {
     return new Snapshot(key, entry.sequenceNumber, ins);
   }
 
+  /**
+   * Reads a value before the index has been loaded. A clean file is only
+   * there once an edit has been committed, so it's safe to return. The read
+   * isn't journalled, so it doesn't count towards the LRU order.
+   */
+  private Snapshot getWhileLoading(String key) {
+    validateKey(key);
+    InputStream[] ins = new InputStream[valueCount];
+    for (int i = 0; i < valueCount; i++) {
+      try {
+        ins[i] = new FileInputStream(new File(directory, key + "." + i));
+      } catch (FileNotFoundException e) {
+        for (int j = 0; j < i; j++) {
+          closeQuietly(ins[j]);
+        }
+        return null;
+      }
+    }
+    return new Snapshot(key, ANY_SEQUENCE_NUMBER, ins);
+  }
+
   /**
    * Returns an editor for the entry named {@code key}, or null if another
    * edit is in progress.
@@ -432,6 +783,9 @@ final class DiskLruCache implements Closeable {
   }
 
   private synchronized Editor edit(String key, long expectedSequenceNumber) throws IOException {
+    if (!awaitLoaded()) {
+      return null;
+    }
     checkNotClosed();
     validateKey(key);
     Entry entry = lruEntries.get(key);
@@ -452,9 +806,90 @@ final class DiskLruCache implements Closeable {
     // flush the journal before creating files to prevent file leaks
     journalWriter.write(DIRTY + ' ' + key + '\n');
     journalWriter.flush();
+    journalLineWritten();
     return editor;
   }
 
+  /**
+   * Writes the first {@code count} values in one batch, for a cache with one
+   * value per entry. The DIRTY lines for the whole batch are appended and
+   * flushed together, the values are written without holding the lock, and
+   * then the CLEAN lines are appended and the journal is synced once, also
+   * without holding the lock. Keys that are already being edited are skipped.
+   */
+  void putAll(String[] keys, byte[][] values, int count) throws IOException {
+    if (valueCount != 1) {
+      throw new IllegalStateException("putAll() needs one value per entry");
+    }
+    Editor[] editors = new Editor[count];
+    synchronized (this) {
+      if (!awaitLoaded()) {
+        return;
+      }
+      checkNotClosed();
+      for (int i = 0; i < count; i++) {
+        String key = keys[i];
+        validateKey(key);
+        Entry entry = lruEntries.get(key);
+        if (entry == null) {
+          entry = new Entry(key);
+          lruEntries.put(key, entry);
+        } else if (entry.currentEditor != null) {
+          continue; // another edit is in progress
+        }
+        editors[i] = new Editor(entry);
+        entry.currentEditor = editors[i];
+        journalWriter.write(DIRTY + ' ' + key + '\n');
+        journalLineWritten();
+      }
+      journalWriter.flush();
+    }
+
+    boolean[] written = new boolean[count];
+    for (int i = 0; i < count; i++) {
+      if (editors[i] != null) {
+        try {
+          editors[i].set(0, values[i]);
+          written[i] = true;
+        } catch (IOException e) {
+          Log.w(TAG, "Failed to write " + keys[i], e);
+        }
+      }
+    }
+
+    FileOutputStream out;
+    synchronized (this) {
+      if (journalWriter == null) {
+        return; // closed, which aborted the edits
+      }
+      for (int i = 0; i < count; i++) {
+        if (editors[i] != null) {
+          if (written[i]) {
+            editors[i].commit();
+          } else {
+            editors[i].abort();
+          }
+        }
+      }
+      journalWriter.flush();
+      out = journalOut;
+    }
+
+    synchronized (syncLock) {
+      try {
+        out.getFD().sync();
+      } catch (IOException e) {
+        synchronized (this) {
+          if (out == journalOut) {
+            throw e;
+          }
+        }
+        // The journal was rebuilt or the cache closed since the lock was
+        // released, which closed this stream. The batch is in the new journal.
+      }
+    }
+  }
+
   /** Returns the directory where this cache stores its data. */
   File getDirectory() {
     return directory;
@@ -473,7 +908,8 @@ final class DiskLruCache implements Closeable {
    * this cache. This may be greater than the max size if a background
    * deletion is pending.
    */
-  synchronized long size() {
+  synchronized long size() throws IOException {
+    awaitLoaded();
     return size;
   }
 
@@ -521,11 +957,15 @@ final class DiskLruCache implements Closeable {
       journalWriter.write(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
       if (success) {
         entry.sequenceNumber = nextSequenceNumber++;
+        if (evictionPolicy != null) {
+          entry.credit = Math.max(entry.credit, evictionPolicy.creditOnWrite(entry.key));
+        }
       }
     } else {
       lruEntries.remove(entry.key);
       journalWriter.write(REMOVE + ' ' + entry.key + '\n');
     }
+    journalLineWritten();
 
     if (size > maxSize || journalRebuildRequired()) {
       executorService.submit(cleanupCallable);
@@ -548,6 +988,9 @@ final class DiskLruCache implements Closeable {
    * @return true if an entry was removed.
    */
   synchronized boolean remove(String key) throws IOException {
+    if (!awaitLoaded()) {
+      return false;
+    }
     checkNotClosed();
     validateKey(key);
     Entry entry = lruEntries.get(key);
@@ -566,6 +1009,7 @@ final class DiskLruCache implements Closeable {
 
     redundantOpCount++;
     journalWriter.append(REMOVE + ' ' + key + '\n');
+    journalLineWritten();
     lruEntries.remove(key);
 
     if (journalRebuildRequired()) {
@@ -588,14 +1032,21 @@ final class DiskLruCache implements Closeable {
 
   /** Force buffered operations to the filesystem. */
   synchronized void flush() throws IOException {
+    if (!awaitLoaded()) {
+      return;
+    }
     checkNotClosed();
     trimToSize();
     journalWriter.flush();
   }
 
-  /** Closes this cache. Stored values will remain on the filesystem. */
+  /**
+   * Closes this cache. Stored values will remain on the filesystem, along with
+   * a snapshot of the index.
+   */
   @Override
   public synchronized void close() throws IOException {
+    awaitLoaded();
     if (journalWriter == null) {
       return; // already closed
     }
@@ -605,13 +1056,34 @@ final class DiskLruCache implements Closeable {
       }
     }
     trimToSize();
+    try {
+      writeSnapshot();
+    } catch (IOException e) {
+      Log.w(TAG, "Failed to write snapshot", e);
+    }
     journalWriter.close();
     journalWriter = null;
+    journalOut = null;
   }
 
   private void trimToSize() throws IOException {
+    // Counts pinned entries passed over since the last change, so that this
+    // stops passing over them once it has seen them all.
+    int pinnedSeen = 0;
     while (size > maxSize) {
       Map.Entry<String, Entry> toEvict = lruEntries.entrySet().iterator().next();
+      Entry entry = toEvict.getValue();
+      if (entry.credit > 0 && pinnedSeen < lruEntries.size()) {
+        if (entry.credit == EvictionPolicy.PINNED) {
+          pinnedSeen++;
+        } else {
+          entry.credit--;
+          pinnedSeen = 0;
+        }
+        // Move it to the MRU end. This isn't journalled; it's only an order.
+        lruEntries.get(entry.key);
+        continue;
+      }
       remove(toEvict.getKey());
     }
   }
@@ -821,6 +1293,9 @@ final class DiskLruCache implements Closeable {
     /** The sequence number of the most recently committed edit to this entry. */
     private long sequenceNumber;
 
+    /** How many more times to keep this entry when it would be removed. */
+    private int credit;
+
     private Entry(String key) {
       this.key = key;
       this.lengths = new long[valueCount];
@@ -0,0 +1,52 @@
+/**
+ * OpenSpace Android SDK Licence Terms
+ *
+ * The OpenSpace Android SDK is protected by © Crown copyright – Ordnance Survey 2013.[https://github.com/OrdnanceSurvey]
+ *
+ * All rights reserved (subject to the BSD licence terms as follows):.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided
+ * with the distribution.
+ *
+ * Neither the name of Ordnance Survey nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE
+ *
+ */
+package uk.co.ordnancesurvey.android.maps;
+
+import java.io.IOException;
+
+/**
+ * The on-disk tier of a {@link CombinedLruCache}.
+ *
+ * <b>Implementations must be thread-safe.</b> get() is called from decode threads while putAll() is called from the cache's
+ * writer thread.
+ *
+ * Keys are the long keys of {@link CombinedLruCache#longForKey}. Values are {@link CacheRecord}s.
+ */
+interface DiskTileCache {
+	/**
+	 * Returns the cached data, or null if there isn't any.
+	 */
+	byte[] get(long key) throws IOException;
+
+	/**
+	 * Adds the first count values to the cache, replacing any data already cached for their keys. The keys are distinct. The
+	 * implementation may evict other entries, or decide not to cache some of the values.
+	 */
+	void putAll(long[] keys, byte[][] values, int count) throws IOException;
+
+	/**
+	 * Writes out anything buffered and releases the files. After this, get() returns null and putAll() does nothing, or either
+	 * may throw an IOException.
+	 */
+	void close() throws IOException;
+}
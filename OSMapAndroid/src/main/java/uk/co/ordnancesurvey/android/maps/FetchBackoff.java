@@ -0,0 +1,178 @@
+/**
+ * OpenSpace Android SDK Licence Terms
+ *
+ * The OpenSpace Android SDK is protected by © Crown copyright – Ordnance Survey 2013.[https://github.com/OrdnanceSurvey]
+ *
+ * All rights reserved (subject to the BSD licence terms as follows):.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided
+ * with the distribution.
+ *
+ * Neither the name of Ordnance Survey nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE
+ *
+ */
+package uk.co.ordnancesurvey.android.maps;
+
+import java.util.HashMap;
+
+/**
+ * Remembers recent failures to fetch tiles from the network so that they aren't retried every frame.
+ *
+ * There are two kinds of failure. If a host can't be reached (an IOException or a 5xx response), every tile from that host is
+ * held off. If a host says a tile is bad (any other non-2xx response), only that tile is held off from that host, in a negative cache. Either
+ * way, each consecutive failure doubles the wait, up to a limit, and a success resets it.
+ *
+ * When the device gets a network connection back, {@link #onNetworkReachable()} forgets the host failures (which were probably
+ * caused by the missing connection) but not the negative cache.
+ *
+ * There is one instance per process, since tile sources for the same host share its fate.
+ *
+ * This class is threadsafe.
+ */
+final class FetchBackoff {
+	private static final FetchBackoff INSTANCE = new FetchBackoff();
+
+	private static final long HOST_INITIAL_BACKOFF_MILLIS = 1000;
+	private static final long HOST_MAX_BACKOFF_MILLIS = 5*60*1000;
+	private static final long TILE_INITIAL_BACKOFF_MILLIS = 30*1000;
+	private static final long TILE_MAX_BACKOFF_MILLIS = 30*60*1000;
+	private static final int NEGATIVE_CACHE_CAPACITY = 1024;
+
+	private static final class Backoff {
+		int failures;
+		long retryUptimeMillis;
+
+		void fail(long initialMillis, long maxMillis, long nowUptimeMillis) {
+			// Don't let the shift overflow.
+			long delay = initialMillis << Math.min(failures, 20);
+			retryUptimeMillis = nowUptimeMillis + Math.min(delay, maxMillis);
+			failures++;
+		}
+	}
+
+	/**
+	 * A tile from a particular host. Another host (e.g. a different web source) might well have the tile.
+	 */
+	private static final class HostTile {
+		String host;
+		final MapTile tile = new MapTile();
+
+		HostTile() {
+		}
+
+		HostTile(HostTile other) {
+			host = other.host;
+			tile.set(other.tile.x, other.tile.y, other.tile.layer);
+		}
+
+		HostTile set(String host, MapTile tile) {
+			this.host = host;
+			this.tile.set(tile.x, tile.y, tile.layer);
+			return this;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof HostTile)) {
+				return false;
+			}
+			HostTile other = (HostTile)o;
+			return host.equals(other.host) && tile.equals(other.tile);
+		}
+
+		@Override
+		public int hashCode() {
+			return host.hashCode()*31 + tile.hashCode();
+		}
+	}
+
+	// Guarded by this.
+	private final HashMap<String, Backoff> mHosts = new HashMap<String, Backoff>();
+	private final LRUHashMap<HostTile, Backoff> mTiles = new LRUHashMap<HostTile, Backoff>(16, 0.75f);
+	// Reused for lookups, to avoid allocating a key each time.
+	private final HostTile rKey = new HostTile();
+
+	static FetchBackoff getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Returns false if the tile (or its host) failed recently and shouldn't be fetched yet.
+	 */
+	synchronized boolean shouldFetch(String host, MapTile tile, long nowUptimeMillis) {
+		Backoff hostBackoff = mHosts.get(host);
+		if (hostBackoff != null && nowUptimeMillis < hostBackoff.retryUptimeMillis) {
+			return false;
+		}
+		Backoff tileBackoff = mTiles.get(rKey.set(host, tile));
+		if (tileBackoff != null && nowUptimeMillis < tileBackoff.retryUptimeMillis) {
+			return false;
+		}
+		return true;
+	}
+
+	synchronized void recordSuccess(String host, MapTile tile) {
+		mHosts.remove(host);
+		mTiles.remove(rKey.set(host, tile));
+	}
+
+	/**
+	 * Records a failure to reach the host, e.g. an IOException or a 5xx response.
+	 */
+	synchronized void recordHostFailure(String host, long nowUptimeMillis) {
+		Backoff backoff = mHosts.get(host);
+		if (backoff == null) {
+			backoff = new Backoff();
+			mHosts.put(host, backoff);
+		}
+		backoff.fail(HOST_INITIAL_BACKOFF_MILLIS, HOST_MAX_BACKOFF_MILLIS, nowUptimeMillis);
+	}
+
+	/**
+	 * Records a response saying the tile can't be fetched (e.g. 404), which is unlikely to change soon.
+	 */
+	synchronized void recordTileFailure(String host, MapTile tile, long nowUptimeMillis) {
+		// The host is up, even if it doesn't have the tile.
+		mHosts.remove(host);
+		Backoff backoff = mTiles.get(rKey.set(host, tile));
+		if (backoff == null) {
+			backoff = new Backoff();
+			mTiles.put(new HostTile(rKey), backoff);
+			if (mTiles.size() > NEGATIVE_CACHE_CAPACITY) {
+				mTiles.remove(mTiles.getProbableEldestKey());
+			}
+		}
+		backoff.fail(TILE_INITIAL_BACKOFF_MILLIS, TILE_MAX_BACKOFF_MILLIS, nowUptimeMillis);
+	}
+
+	synchronized void onNetworkReachable() {
+		mHosts.clear();
+	}
+
+	/**
+	 * Returns how long until a host can be retried, or -1 if no host is backing off.
+	 * Tiles in the negative cache aren't counted, since it isn't worth redrawing the map for them.
+	 */
+	synchronized long millisUntilNextHostRetry(long nowUptimeMillis) {
+		long ret = -1;
+		for (Backoff backoff : mHosts.values()) {
+			long millis = backoff.retryUptimeMillis - nowUptimeMillis;
+			if (millis <= 0) {
+				continue;
+			}
+			if (ret < 0 || millis < ret) {
+				ret = millis;
+			}
+		}
+		return ret;
+	}
+}
@@ -58,13 +58,7 @@ final class GLImageCache {
 		}
 
 		// We're about to do something vaguely expensive, so we might as well clear unused textures.
-		for (ImageTexture reapable; null != (reapable = (ImageTexture)mReapableQueue.poll()); ) {
-			// Only remove textures which we think are "loaded".
-			// This stops us from deleting textures that were created before the most recent resetForSurfaceCreated().
-			if (mLoadedTextures.remove(reapable)) {
-				Utils.deleteTexture(reapable.textureId);
-			}
-		}
+		deleteUnusedTextures();
 
 		// TODO: This can leak a texture in the face of exceptions.
 		tex = new ImageTexture(bmp, mReapableQueue);
@@ -74,6 +68,19 @@ final class GLImageCache {
 		return tex;
 	}
 
+	/**
+	* Deletes the textures of bitmaps which have been garbage collected. The textures of live bitmaps are all in use.
+	*/
+	public void deleteUnusedTextures() {
+		for (ImageTexture reapable; null != (reapable = (ImageTexture)mReapableQueue.poll()); ) {
+			// Only remove textures which we think are "loaded".
+			// This stops us from deleting textures that were created before the most recent resetForSurfaceCreated().
+			if (mLoadedTextures.remove(reapable)) {
+				Utils.deleteTexture(reapable.textureId);
+			}
+		}
+	}
+
 	/**
 	* A loaded texture. The textureId is only valid in the GL context in which it was originally loaded.
 	* It becomes invalid when the GL context is lost.
@@ -80,7 +80,7 @@ final class GLMapRenderer extends GLSurfaceView implements GLSurfaceView.Rendere
 	private static final String TAG = "GLMapRenderer";
 	private final Context mContext;
 	
-	public GLMapRenderer(Context context, MapScrollController scrollController) {
+	public GLMapRenderer(Context context, MapScrollController scrollController, boolean mappedTileCache, boolean transcodedTileCache) {
 		
 		super(context);
 		mContext = context;
@@ -141,15 +141,33 @@ final class GLMapRenderer extends GLSurfaceView implements GLSurfaceView.Rendere
 		// The "memory class" is the recommended maximum per-app memory usage in MB. Let the GL tile cache use around half of this.
 		mGLTileCache = new GLTileCache(memoryClass * (1048576/2));
 		mGLImageCache = new GLImageCache();
+		MemoryGovernor governor = MemoryGovernor.getInstance();
+		governor.attach(context);
+		governor.register(mMemoryTier, MemoryGovernor.PRIORITY_GL);
 
 		mScrollController = scrollController;
 
-		mTileFetcher = new TileFetcher(context, this);
+		mTileFetcher = new TileFetcher(context, this, mappedTileCache, transcodedTileCache);
 		mLocationSource = new OSLocation(context);
 	}
 	
 	private final GLTileCache mGLTileCache;
 	private final GLImageCache mGLImageCache;
+	// The GL caches can only be trimmed on the GL thread.
+	private final MemoryGovernor.Tier mMemoryTier = new MemoryGovernor.Tier() {
+		@Override
+		public void setBudgetFraction(final float fraction) {
+			queueEvent(new Runnable() {
+				@Override
+				public void run() {
+					mGLTileCache.setBudgetFraction(fraction);
+					if (fraction < 1) {
+						mGLImageCache.deleteUnusedTextures();
+					}
+				}
+			});
+		}
+	};
 	private final TileFetcher mTileFetcher;
 	private final MapScrollController mScrollController;
 	private final MapScrollController.ScrollPosition mScrollState = new MapScrollController.ScrollPosition();
@@ -182,12 +200,20 @@ final class GLMapRenderer extends GLSurfaceView implements GLSurfaceView.Rendere
 	private final FetchQuota rFetchQuota = new FetchQuota();
 
 	private MapLayer[] mLayers;
+	// How many tiles beyond the edge of the screen to prefetch.
+	private volatile int mPrefetchRingTiles = OSMapOptions.DEFAULT_PREFETCH_RING;
 
 	private MapLayer mPreviousLayer;
 	private MapLayer mFadingOutLayer;
 	private long mFadingInStartUptimeMillis;
 	private static final int ZOOM_FADE_DURATION= 400; // It's 0.4s in the iOS code.
 	private final Handler mHandler;
+	private final Runnable mRetryRunnable = new Runnable() {
+		public void run() {
+			// Tiles are requested again when the map is drawn.
+			requestRender();
+		}
+	};
 	private final Runnable mCameraChangeRunnable = new Runnable() {
 		public void run() {
 			// This listener is set on the main thread, so no problem using it like this.
@@ -301,6 +327,13 @@ final class GLMapRenderer extends GLSurfaceView implements GLSurfaceView.Rendere
 		mLayers = layers;
 	}
 
+	void setPrefetchRing(int tiles) {
+		if (tiles < 0) {
+			throw new IllegalArgumentException("Prefetch ring must not be negative, got " + tiles);
+		}
+		mPrefetchRingTiles = tiles;
+	}
+
 	public void setInfoWindowAdapter(InfoWindowAdapter adapter)
 	{
 		mInfoWindowAdapter = adapter;
@@ -460,6 +493,7 @@ final class GLMapRenderer extends GLSurfaceView implements GLSurfaceView.Rendere
 	
 
 	void onDestroy() {		
+		MemoryGovernor.getInstance().unregister(mMemoryTier);
 		mTileFetcher.stop(false);
 		mLocationSource.deactivate();
 	}
@@ -546,17 +580,9 @@ final class GLMapRenderer extends GLSurfaceView implements GLSurfaceView.Rendere
 			return 0;
 		}
 
-		Bitmap bmp = mTileFetcher.requestBitmapForTile(tile, quota.canAsyncFetch());
-		if (bmp == null)
-		{
-			quota.fetchFailure();
-		}
-		else
-		{
-			quota.fetchSuccess();
-			textureId = mGLTileCache.putTextureForTile(tile, bmp);
-		}
-		return textureId;
+		// The tile is loaded and decoded on another thread and uploaded by tileReadyCallback().
+		mTileFetcher.requestTile(tile, quota.canAsyncFetch());
+		return 0;
 	}
 
 	public final void clear() {
@@ -665,24 +691,37 @@ final class GLMapRenderer extends GLSurfaceView implements GLSurfaceView.Rendere
 		}
 	}
 
-	public void tileReadyAsyncCallback(final MapTile tile, final Bitmap bmp)
+	public void tileReadyAsyncCallback(final TileRequest request, final Bitmap bmp)
 	{
 		queueEvent(new Runnable() {
 			public void run() {
-				tileReadyCallback(tile, bmp);
+				tileReadyCallback(request, bmp);
 			}			
 		});
 	}
 
 	
-	public void tileReadyCallback(final MapTile tile, final Bitmap bmp)
+	public void retryAsyncCallback(long delayMillis)
 	{
+		mHandler.removeCallbacks(mRetryRunnable);
+		mHandler.postDelayed(mRetryRunnable, delayMillis);
+	}
+
+	public void tileReadyCallback(final TileRequest request, final Bitmap bmp)
+	{
+		// Don't upload tiles that were cancelled after they were decoded; they would only push visible tiles out of the cache.
+		boolean upload = (bmp != null && !request.isCancelled());
+		if (upload)
+		{
+			mGLTileCache.putTextureForTile(request.tile, bmp);
+			TileMetrics.getInstance().recordFirstDraw(SystemClock.uptimeMillis() - request.firstRequestedUptimeMillis);
+		}
+		mTileFetcher.finishRequest(request);
 		if (bmp != null)
 		{
-			mGLTileCache.putTextureForTile(tile, bmp);
+			DecodedTileCache.getInstance().release(bmp);
 		}
-		mTileFetcher.finishRequest(tile);
-		if(bmp != null)
+		if(upload)
 		{
 			requestRender();
 		}
@@ -788,8 +827,7 @@ final class GLMapRenderer extends GLSurfaceView implements GLSurfaceView.Rendere
 		// At the start of each frame, mark each tile as off-screen.
 		// They are marked on-screen as part of tile drawing.
 		mGLTileCache.resetTileVisibility();
-		mTileFetcher.lock();
-		mTileFetcher.clear();
+		mTileFetcher.beginFrame(projection);
 		
 		Utils.throwIfErrors();
 		
@@ -914,7 +952,17 @@ final class GLMapRenderer extends GLSurfaceView implements GLSurfaceView.Rendere
 		// Always redraw if we're fading.
 		needRedraw |= fading;
 
-		mTileFetcher.unlock();
+		// Now that the visible tiles have been requested, prefetch around them and on the layers either side.
+		// Don't bother while fading, since the zoom will have moved on by the time they arrive.
+		if (!fading)
+		{
+			mTileFetcher.prefetchAround(currentLayer, mPrefetchRingTiles, mScrollState.velocityX, mScrollState.velocityY);
+			int currentIndex = indexForMapLayerOrNegative(currentLayer);
+			mTileFetcher.prefetchAround(mapLayerForIndexOrNull(currentIndex-1), 0, 0, 0);
+			mTileFetcher.prefetchAround(mapLayerForIndexOrNull(currentIndex+1), 0, 0, 0);
+		}
+
+		mTileFetcher.endFrame();
 
 		Utils.throwIfErrors();
 
@@ -1577,19 +1625,13 @@ final class GLMapRenderer extends GLSurfaceView implements GLSurfaceView.Rendere
 	}
 	
 	private static class FetchQuota {
-		// Always perform at least 4 async fetches or 1 sync fetch, even after the render time limit is exceeded.
-		public int remainingAsyncFetches;
-		public int remainingSyncFetches;
 		private long limitUptimeMillis;
-		private long hardLimitUptimeMillis;
 		private boolean noAsyncFetches;
 
 		public void reset(long now) {
-			// Allow 10mS per frame for loading tiles to prevent scroll judder. We could similarly throttle annotations....
-			remainingAsyncFetches = 4;
-			remainingSyncFetches = 1;
+			// Allow 10mS per frame for requesting tiles to prevent scroll judder. We could similarly throttle annotations....
+			// Requests don't load or decode anything on this thread, so this is rarely hit.
 			limitUptimeMillis = now + 10;
-			hardLimitUptimeMillis = now + 200;
 			noAsyncFetches = false;
 		}
 		
@@ -1601,34 +1643,9 @@ final class GLMapRenderer extends GLSurfaceView implements GLSurfaceView.Rendere
 			return !noAsyncFetches;
 		}
 		
-		public void fetchSuccess()
-		{
-			remainingSyncFetches--;
-		}
-		
-		public void fetchFailure()
-		{
-			if(!noAsyncFetches)
-			{
-				remainingAsyncFetches--;
-			}
-		}
-		
 		public boolean isExceeded()
 		{
-			long t = SystemClock.uptimeMillis();
-			if(t > limitUptimeMillis)
-			{
-				if(remainingSyncFetches <= 0)
-				{
-					return true;
-				}
-				if(t > hardLimitUptimeMillis)
-				{
-					return true;
-				}
-			}
-			return false;			
+			return SystemClock.uptimeMillis() > limitUptimeMillis;
 		}
 	}
 
@@ -1655,6 +1672,9 @@ final class GLMapRenderer extends GLSurfaceView implements GLSurfaceView.Rendere
 
 	@Override
 	public OSTileSource localTileSource(Context context, File file) throws FailedToLoadException {
+		if (file.getName().endsWith(".gpkg")) {
+			return GeoPackageTileSource.openFile(context, file);
+		}
 		return DBTileSource.openFile(context, file);
 	}
 
@@ -1666,16 +1686,28 @@ final class GLMapRenderer extends GLSurfaceView implements GLSurfaceView.Rendere
 		{
 			return ret;
 		}
+		ArrayList<DBTileSource> packages = new ArrayList<DBTileSource>();
+		ArrayList<GeoPackageTileSource> geoPackages = new ArrayList<GeoPackageTileSource>();
 		for (File f : files) {
-			if (!f.getName().endsWith(".ostiles")) {
-				continue;
-			}
 			try {
-				ret.add(DBTileSource.openFile(context, f));
+				if (f.getName().endsWith(".ostiles")) {
+					packages.add(DBTileSource.openFile(context, f));
+				} else if (f.getName().endsWith(".gpkg")) {
+					// These reject tiles outside their tile matrices without a query, so they don't need routing.
+					geoPackages.add(GeoPackageTileSource.openFile(context, f));
+				}
 			} catch (FailedToLoadException e) {
 				Log.v(TAG, "Failed to load " + f.getPath(), e);
 			}
 		}
+		// Several packages are searched as one source, so a tile only goes to the packages that cover it.
+		if (packages.size() > 1) {
+			ret.add(new CompositeDBTileSource(packages));
+		} else {
+			ret.addAll(packages);
+		}
+		// The first source with a tile wins, so .ostiles packages win where they overlap a GeoPackage.
+		ret.addAll(geoPackages);
 		return ret;
 	}
 	/*
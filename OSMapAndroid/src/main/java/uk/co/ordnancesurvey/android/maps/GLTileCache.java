@@ -24,6 +24,7 @@ package uk.co.ordnancesurvey.android.maps;
 
 import static android.opengl.GLES20.*;
 
+import java.util.Iterator;
 import java.util.Locale;
 
 import android.graphics.Bitmap;
@@ -35,7 +36,9 @@ final class GLTileCache {
 	private final static String TAG = "GLTileCache";
 
 	private final LRUHashMap<MapTile, TileTexture> mTiles;
-	private final int mMemorySoftLimit;
+	private final int mMaxMemorySoftLimit;
+	// Lowered by MemoryGovernor when memory is short.
+	private int mMemorySoftLimit;
 	private int mCurrentMemoryUsage;
 
 	// Counter-based visibility check. Much faster than moving things between HashMaps!
@@ -49,8 +52,12 @@ final class GLTileCache {
 	private int statReuseCount;
 	private int statFailedReuseCount;
 	private long statLastPrinted;
+	// The hit and miss counts last added to TileMetrics.
+	private int statReportedHitCount;
+	private int statReportedMissCount;
 
 	public GLTileCache(int memorySoftLimitBytes) {
+		mMaxMemorySoftLimit = memorySoftLimitBytes;
 		mMemorySoftLimit = memorySoftLimitBytes;
 
 		float loadFactor = 0.75f;
@@ -68,6 +75,26 @@ final class GLTileCache {
 		mCurrentMemoryUsage = 0;
 	}
 
+	/**
+	* Limits the textures to a fraction of the normal soft limit, and deletes the least recently used textures that are not on
+	* screen until they fit. Call this on the GL thread.
+	*/
+	public void setBudgetFraction(float fraction) {
+		mMemorySoftLimit = (int)(mMaxMemorySoftLimit * fraction);
+		int currentVisibilityCount = mCurrentVisibilityCount;
+		for (Iterator<TileTexture> it = mTiles.values().iterator(); it.hasNext() && mCurrentMemoryUsage > mMemorySoftLimit; ) {
+			TileTexture tex = it.next();
+			int lastVisibilityCount = tex.lastVisibilityCount;
+			if (lastVisibilityCount == currentVisibilityCount || lastVisibilityCount == currentVisibilityCount-1) {
+				// On screen.
+				continue;
+			}
+			it.remove();
+			mCurrentMemoryUsage -= tex.memoryUsage;
+			Utils.deleteTexture(tex.textureId);
+		}
+	}
+
 	/**
 	* Call this at the start of GLSurfaceView.Renderer.onDrawFrame() and then get textures to mark them "on-screen".
 	*/
@@ -76,6 +103,7 @@ final class GLTileCache {
 
 		// Log stats here, since it's a convenient method that's called once per frame.
 		logStats();
+		reportMetrics();
 	}
 
 	/**
@@ -221,6 +249,17 @@ final class GLTileCache {
 		}
 	}
 
+	private void reportMetrics() {
+		int hits = statHitCount - statReportedHitCount;
+		int misses = statMissCount - statReportedMissCount;
+		if (hits == 0 && misses == 0) {
+			return;
+		}
+		TileMetrics.getInstance().recordGLCacheLookups(hits + misses, hits);
+		statReportedHitCount = statHitCount;
+		statReportedMissCount = statMissCount;
+	}
+
 	final static class TileTexture {
 		int textureId;
 		int memoryUsage;
@@ -0,0 +1,322 @@
+/**
+ * OpenSpace Android SDK Licence Terms
+ *
+ * The OpenSpace Android SDK is protected by © Crown copyright – Ordnance Survey 2013.[https://github.com/OrdnanceSurvey]
+ *
+ * All rights reserved (subject to the BSD licence terms as follows):.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided
+ * with the distribution.
+ *
+ * Neither the name of Ordnance Survey nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE
+ *
+ */
+package uk.co.ordnancesurvey.android.maps;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Reads tiles from an OGC GeoPackage whose tile pyramid is on the British National Grid (EPSG:27700).
+ *
+ * The database is only open while it is being used. Opening reads the tile matrices and closes it again; after that, a tile
+ * outside the package's tile matrices is rejected without touching the file, the first tile inside them opens it, and it is
+ * closed after {@link #IDLE_CLOSE_MILLIS} without a request. So a map with dozens of areas installed only keeps open the few it
+ * is showing.
+ *
+ * A connection runs one query at a time, so threads reading at the same time each get their own. As in {@link DBTileSource},
+ * connections are borrowed from a pool rather than kept per thread, so that idle ones can be closed without closing one that
+ * another thread is using.
+ *
+ * A layer is served from the tile matrix with the same tile size in pixels and metres, if that matrix's tiles line up with
+ * the grid's. MBTiles files aren't supported, because they are defined to be in Web Mercator.
+ */
+final class GeoPackageTileSource extends OSTileSource {
+	private final static String TAG = "GeoPackageTileSource";
+	private static final long IDLE_CLOSE_MILLIS = 30*1000;
+	private static final int OPEN_FLAGS = SQLiteDatabase.OPEN_READONLY | SQLiteDatabase.NO_LOCALIZED_COLLATORS;
+	// A tolerance for comparing sizes in metres, relative to the size of a tile.
+	private static final double EPSILON = 1e-4;
+
+	// Also closes DBTileSource's idle connections.
+	static final ScheduledThreadPoolExecutor sIdleCloser = newIdleCloser();
+
+	/**
+	 * Where a layer's tiles are in the GeoPackage's tile matrix.
+	 */
+	static final class TileMatrix {
+		final int zoomLevel;
+		// The grid tile x of the first column, and the grid tile y of the first (northernmost) row.
+		final int firstX;
+		final int firstY;
+		final int width;
+		final int height;
+
+		private TileMatrix(int zoomLevel, int firstX, int firstY, int width, int height) {
+			this.zoomLevel = zoomLevel;
+			this.firstX = firstX;
+			this.firstY = firstY;
+			this.width = width;
+			this.height = height;
+		}
+
+		/**
+		 * Returns where the layer's tiles are in a GeoPackage tile matrix, or null if the matrix doesn't have the layer's tiles.
+		 *
+		 * @param minX The tile matrix set's western edge, in metres.
+		 * @param maxY The tile matrix set's northern edge, in metres.
+		 */
+		static TileMatrix forLayerOrNull(MapLayer layer, int zoomLevel, double minX, double maxY, int matrixWidth, int matrixHeight,
+				int tileWidth, int tileHeight, double pixelXSize, double pixelYSize) {
+			if (tileWidth != layer.tileSizePixels || tileHeight != layer.tileSizePixels || matrixWidth <= 0 || matrixHeight <= 0) {
+				return null;
+			}
+			double tileSizeMetres = layer.tileSizeMetres;
+			if (Math.abs(tileWidth * pixelXSize - tileSizeMetres) > EPSILON * tileSizeMetres
+					|| Math.abs(tileHeight * pixelYSize - tileSizeMetres) > EPSILON * tileSizeMetres) {
+				return null;
+			}
+			double columns = minX / tileSizeMetres;
+			double rows = maxY / tileSizeMetres;
+			if (Math.abs(columns - Math.rint(columns)) > EPSILON || Math.abs(rows - Math.rint(rows)) > EPSILON) {
+				// The tiles straddle the grid's tiles.
+				return null;
+			}
+			// Grid tile y counts northwards from the origin, and rows count southwards from maxY.
+			return new TileMatrix(zoomLevel, (int)Math.rint(columns), (int)Math.rint(rows) - 1, matrixWidth, matrixHeight);
+		}
+
+		int column(MapTile tile) {
+			return tile.x - firstX;
+		}
+
+		int row(MapTile tile) {
+			return firstY - tile.y;
+		}
+
+		boolean containsTile(MapTile tile) {
+			int column = column(tile);
+			int row = row(tile);
+			return (0 <= column && column < width && 0 <= row && row < height);
+		}
+	}
+
+	private final String mPath;
+	private final String mMetricsName;
+	private final String mTileQuery;
+	// Indexed by MapLayer.index. Null for layers the package doesn't have.
+	private final TileMatrix[] mMatricesByLayer;
+	private final Runnable mCloseIfIdle = new Runnable() {
+		@Override
+		public void run() {
+			closeIfIdle();
+		}
+	};
+
+	// Guarded by this. Open connections which no thread is using.
+	private final ArrayList<SQLiteDatabase> mIdleConnections = new ArrayList<SQLiteDatabase>();
+	private long mLastUseMillis;
+	private boolean mCloseScheduled;
+	private boolean mClosed;
+
+	private GeoPackageTileSource(String path) throws SQLiteException, FailedToLoadException {
+		super(null);
+		mPath = path;
+		mMetricsName = "GeoPackageTileSource:" + new File(path).getName();
+		mMatricesByLayer = new TileMatrix[MapLayer.getLayerCount()];
+
+		SQLiteDatabase db = SQLiteDatabase.openDatabase(path, null, OPEN_FLAGS);
+		try {
+			String table;
+			double minX, maxY;
+			Cursor cursor = db.rawQuery(
+					"SELECT s.table_name, s.min_x, s.max_y FROM gpkg_contents c" +
+					" JOIN gpkg_tile_matrix_set s ON s.table_name = c.table_name" +
+					" JOIN gpkg_spatial_ref_sys r ON r.srs_id = s.srs_id" +
+					" WHERE c.data_type = 'tiles' AND upper(r.organization) = 'EPSG' AND r.organization_coordsys_id = 27700", null);
+			try {
+				if (!cursor.moveToFirst()) {
+					throw new FailedToLoadException("No British National Grid tiles in " + path);
+				}
+				table = cursor.getString(0);
+				minX = cursor.getDouble(1);
+				maxY = cursor.getDouble(2);
+			} finally {
+				cursor.close();
+			}
+			mTileQuery = "SELECT tile_data FROM \"" + table.replace("\"", "\"\"") + "\" WHERE zoom_level = ? and tile_column = ? and tile_row = ?";
+
+			cursor = db.rawQuery(
+					"SELECT zoom_level, matrix_width, matrix_height, tile_width, tile_height, pixel_x_size, pixel_y_size" +
+					" FROM gpkg_tile_matrix WHERE table_name = ?", new String[]{table});
+			try {
+				while (cursor.moveToNext()) {
+					for (int i = 0; i < mMatricesByLayer.length; i++) {
+						TileMatrix matrix = TileMatrix.forLayerOrNull(MapLayer.forIndex(i), cursor.getInt(0), minX, maxY,
+								cursor.getInt(1), cursor.getInt(2), cursor.getInt(3), cursor.getInt(4), cursor.getDouble(5), cursor.getDouble(6));
+						if (matrix != null && mMatricesByLayer[i] == null) {
+							mMatricesByLayer[i] = matrix;
+						}
+					}
+				}
+			} finally {
+				cursor.close();
+			}
+		} finally {
+			db.close();
+		}
+	}
+
+	public static GeoPackageTileSource openFile(Context context, File file) throws FailedToLoadException {
+		if (!file.exists()) {
+			// Don't let Sqlite log about a file that doesn't exist.
+			throw new FailedToLoadException("File not found: " + file.getPath());
+		}
+		try {
+			return new GeoPackageTileSource(file.getPath());
+		} catch (SQLiteException e) {
+			throw new FailedToLoadException(e);
+		}
+	}
+
+	private static ScheduledThreadPoolExecutor newIdleCloser() {
+		ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
+		// Don't keep a thread around while no packages are open.
+		executor.setKeepAliveTime(60, TimeUnit.SECONDS);
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
+	@Override
+	byte[] dataForTile(MapTile tile) {
+		TileMatrix matrix = mMatricesByLayer[tile.layer.index];
+		if (matrix == null || !matrix.containsTile(tile)) {
+			return null;
+		}
+		try {
+			return readTile(matrix.zoomLevel, matrix.column(tile), matrix.row(tile));
+		} catch (SQLiteException e) {
+			Log.w(TAG, "Failed to read tile", e);
+			return null;
+		}
+	}
+
+	private byte[] readTile(int zoomLevel, int column, int row) throws SQLiteException {
+		SQLiteDatabase db = takeConnectionOrNull();
+		if (db == null) {
+			return null;
+		}
+		try {
+			Cursor cursor = db.rawQuery(mTileQuery, new String[]{String.valueOf(zoomLevel), String.valueOf(column), String.valueOf(row)});
+			try {
+				return (cursor.moveToFirst() ? cursor.getBlob(0) : null);
+			} finally {
+				cursor.close();
+			}
+		} finally {
+			returnConnection(db);
+		}
+	}
+
+	/**
+	 * Returns a connection for the calling thread to use on its own, opening one if none is idle, or null if the source has
+	 * been closed. It must be handed back with {@link #returnConnection}.
+	 */
+	private SQLiteDatabase takeConnectionOrNull() throws SQLiteException {
+		synchronized (this) {
+			if (mClosed) {
+				return null;
+			}
+			noteUse();
+			int count = mIdleConnections.size();
+			if (count > 0) {
+				return mIdleConnections.remove(count - 1);
+			}
+		}
+		// Opening doesn't need the lock, so other threads can carry on with their queries.
+		return SQLiteDatabase.openDatabase(mPath, null, OPEN_FLAGS);
+	}
+
+	private void returnConnection(SQLiteDatabase db) {
+		synchronized (this) {
+			if (!mClosed) {
+				// Counts as a use, so the connection isn't closed straight away, and is closed if it stays idle.
+				noteUse();
+				mIdleConnections.add(db);
+				return;
+			}
+		}
+		db.close();
+	}
+
+	// Called with the lock held.
+	private void noteUse() {
+		mLastUseMillis = SystemClock.uptimeMillis();
+		if (!mCloseScheduled) {
+			mCloseScheduled = true;
+			sIdleCloser.schedule(mCloseIfIdle, IDLE_CLOSE_MILLIS, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	// Runs on the idle closer's thread.
+	private synchronized void closeIfIdle() {
+		mCloseScheduled = false;
+		long idleMillis = SystemClock.uptimeMillis() - mLastUseMillis;
+		if (idleMillis >= IDLE_CLOSE_MILLIS) {
+			// A connection which is still in use is closed once it has been idle for as long.
+			closeIdleConnections();
+		} else {
+			mCloseScheduled = true;
+			sIdleCloser.schedule(mCloseIfIdle, IDLE_CLOSE_MILLIS - idleMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	// Called with the lock held.
+	private void closeIdleConnections() {
+		for (SQLiteDatabase db : mIdleConnections) {
+			db.close();
+		}
+		mIdleConnections.clear();
+	}
+
+	@Override
+	boolean isNetwork() {
+		return false;
+	}
+
+	@Override
+	boolean isSynchronous() {
+		return true;
+	}
+
+	@Override
+	String getMetricsName() {
+		return mMetricsName;
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		// Connections in use are closed when they are handed back.
+		mClosed = true;
+		closeIdleConnections();
+	}
+}
@@ -31,9 +31,19 @@ final class Helpers {
 	private Helpers() { }
 
 	static byte[] readAllNoClose(InputStream is) throws IOException {
+		return readAllNoClose(is, null);
+	}
+
+	/**
+	 * Reads the stream to the end, or returns null as soon as the request is cancelled.
+	 */
+	static byte[] readAllNoClose(InputStream is, TileRequest requestOrNull) throws IOException {
 		ByteArrayOutputStream ret = new ByteArrayOutputStream();
 		byte[] buf = new byte[4096];
 		for (;;) {
+			if (requestOrNull != null && requestOrNull.isCancelled()) {
+				return null;
+			}
 			int bytesRead = is.read(buf);
 			if (bytesRead <= 0) {
 				break;
@@ -0,0 +1,149 @@
+/**
+ * OpenSpace Android SDK Licence Terms
+ *
+ * The OpenSpace Android SDK is protected by © Crown copyright – Ordnance Survey 2013.[https://github.com/OrdnanceSurvey]
+ *
+ * All rights reserved (subject to the BSD licence terms as follows):.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided
+ * with the distribution.
+ *
+ * Neither the name of Ordnance Survey nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE
+ *
+ */
+package uk.co.ordnancesurvey.android.maps;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An {@link HttpTransport} that reuses connections, and limits how many each host gets.
+ *
+ * HttpURLConnection keeps a pool of idle keep-alive connections, but a connection only goes back to it if the response was read
+ * to the end and the stream closed. Calling disconnect() instead (as we used to after every tile) can close the socket, so the
+ * next tile paid for a new TCP and TLS handshake. Here, only failed or cancelled requests disconnect.
+ *
+ * Requests to a host share {@link #MAX_CONNECTIONS_PER_HOST} permits across every map and source in the process. That keeps
+ * within the size of the idle pool (5 by default), so connections are reused rather than opened and thrown away, and stops a
+ * burst of prefetching from opening many connections at once. Android's HttpURLConnection negotiates SPDY or HTTP/2 itself where
+ * it supports them; that isn't something this class can choose.
+ */
+final class HttpURLConnectionTransport implements HttpTransport {
+	static final int MAX_CONNECTIONS_PER_HOST = 4;
+	// How often a request waiting for a connection checks if it has been cancelled.
+	private static final long PERMIT_POLL_MILLIS = 100;
+
+	private static final HttpURLConnectionTransport INSTANCE = new HttpURLConnectionTransport();
+
+	private final ConcurrentHashMap<String, Semaphore> mPermitsByHost = new ConcurrentHashMap<String, Semaphore>();
+
+	private HttpURLConnectionTransport() {
+	}
+
+	static HttpURLConnectionTransport getInstance() {
+		return INSTANCE;
+	}
+
+	@Override
+	public byte[] get(URL url, TileRequest requestOrNull) throws IOException {
+		Semaphore permits = permitsForHost(url.getHost());
+		if (!acquire(permits, requestOrNull)) {
+			return null;
+		}
+		try {
+			return getWithPermit(url, requestOrNull);
+		} finally {
+			permits.release();
+		}
+	}
+
+	private Semaphore permitsForHost(String host) {
+		Semaphore permits = mPermitsByHost.get(host);
+		if (permits == null) {
+			Semaphore newPermits = new Semaphore(MAX_CONNECTIONS_PER_HOST);
+			permits = mPermitsByHost.putIfAbsent(host, newPermits);
+			if (permits == null) {
+				permits = newPermits;
+			}
+		}
+		return permits;
+	}
+
+	/**
+	 * Waits for a permit, and returns false if the request is cancelled first.
+	 */
+	private static boolean acquire(Semaphore permits, TileRequest requestOrNull) {
+		try {
+			while (!permits.tryAcquire(PERMIT_POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+				if (requestOrNull != null && requestOrNull.isCancelled()) {
+					return false;
+				}
+			}
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	private static byte[] getWithPermit(URL url, TileRequest requestOrNull) throws IOException {
+		HttpURLConnection urlConnection = (HttpURLConnection)url.openConnection();
+		boolean reusable = false;
+		try {
+			// tchan: It is not worth using a BufferedInputStream; the vast majority of the CPU time is spent before getInputStream() returns.
+			InputStream inputStream;
+			try {
+				inputStream = urlConnection.getInputStream();
+			} catch (IOException e) {
+				// getInputStream() throws for 4xx and 5xx responses, so see if we got that far.
+				int httpStatusCode = responseCodeOrNegative(urlConnection);
+				if (httpStatusCode > 0) {
+					throw new HttpStatusException(httpStatusCode);
+				}
+				throw e;
+			}
+
+			// We can only get the response code after getInputStream() returns.
+			//   http://www.tbray.org/ongoing/When/201x/2012/01/17/HttpURLConnection
+			int httpStatusCode = urlConnection.getResponseCode();
+			if (httpStatusCode/100 != 2) {
+				throw new HttpStatusException(httpStatusCode);
+			}
+
+			// If the request is cancelled part-way through, this returns null and disconnect() below abandons the rest of the response.
+			byte[] ret = Helpers.readAllNoClose(inputStream, requestOrNull);
+			if (ret != null) {
+				// The whole response has been read, so closing the stream returns the connection to the pool.
+				inputStream.close();
+				reusable = true;
+			}
+			return ret;
+		} finally {
+			if (!reusable) {
+				urlConnection.disconnect();
+			}
+		}
+	}
+
+	private static int responseCodeOrNegative(HttpURLConnection urlConnection) {
+		try {
+			return urlConnection.getResponseCode();
+		} catch (IOException e) {
+			return -1;
+		}
+	}
+}
@@ -0,0 +1,148 @@
+/**
+ * OpenSpace Android SDK Licence Terms
+ *
+ * The OpenSpace Android SDK is protected by © Crown copyright – Ordnance Survey 2013.[https://github.com/OrdnanceSurvey]
+ *
+ * All rights reserved (subject to the BSD licence terms as follows):.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided
+ * with the distribution.
+ *
+ * Neither the name of Ordnance Survey nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE
+ *
+ */
+package uk.co.ordnancesurvey.android.maps;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+
+import android.graphics.Bitmap;
+
+/**
+ * The tiles which are being loaded by any {@link TileFetcher} in the process.
+ *
+ * Every map has its own TileFetcher, but they share the {@link TileCache}, so two maps showing the same area would otherwise load and
+ * decode the same tiles at the same time. Before doing any work for a request, a worker thread calls {@link #join} with it.
+ * The first request for a tile "leads": its thread does the work and passes the result to {@link InFlightTile#complete}. Requests
+ * for the same tile from other fetchers are attached to the leader and get their callbacks when it completes, without any work
+ * of their own.
+ *
+ * A tile is identified only by its MapTile, just as it is in the TileCache.
+ *
+ * This class is threadsafe.
+ */
+final class InFlightTileTable {
+	private static final InFlightTileTable INSTANCE = new InFlightTileTable();
+
+	private final ConcurrentHashMap<MapTile, InFlightTile> mTiles = new ConcurrentHashMap<MapTile, InFlightTile>();
+
+	static InFlightTileTable getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Returns a new InFlightTile if the caller should load the tile, or null if the request has been attached to a load that is
+	 * already in progress. In that case the delegate is called when the load completes.
+	 */
+	InFlightTile join(TileRequest request, TileFetcherDelegate delegate) {
+		InFlightTile fresh = null;
+		for (;;) {
+			InFlightTile existing = mTiles.get(request.tile);
+			if (existing == null) {
+				if (fresh == null) {
+					fresh = new InFlightTile(request.tile);
+				}
+				existing = mTiles.putIfAbsent(request.tile, fresh);
+				if (existing == null) {
+					return fresh;
+				}
+			}
+			if (existing.addWaiter(request, delegate)) {
+				return null;
+			}
+			// It completed while we were looking at it.
+			mTiles.remove(request.tile, existing);
+		}
+	}
+
+	final class InFlightTile {
+		private final MapTile mTile;
+		// Guarded by this.
+		private ArrayList<TileRequest> mWaiters;
+		private ArrayList<TileFetcherDelegate> mWaiterDelegates;
+		private boolean mCompleted;
+
+		InFlightTile(MapTile tile) {
+			mTile = tile;
+		}
+
+		synchronized boolean addWaiter(TileRequest request, TileFetcherDelegate delegate) {
+			if (mCompleted) {
+				return false;
+			}
+			if (mWaiters == null) {
+				mWaiters = new ArrayList<TileRequest>(1);
+				mWaiterDelegates = new ArrayList<TileFetcherDelegate>(1);
+			}
+			mWaiters.add(request);
+			mWaiterDelegates.add(delegate);
+			return true;
+		}
+
+		/**
+		 * Returns true if any attached request wants a bitmap, so the leader should decode even if it only wanted to prefetch.
+		 */
+		synchronized boolean waiterWantsBitmap() {
+			if (mWaiters != null) {
+				for (TileRequest waiter : mWaiters) {
+					if (!waiter.prefetch && !waiter.isCancelled()) {
+						return true;
+					}
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * Removes the tile from the table and calls back every attached request. The leader's own request is not called back.
+		 * If the leader gave up (e.g. it was cancelled), pass null and false; the other fetchers will request the tile again.
+		 *
+		 * @param bmp The decoded tile, or null. The leader keeps its reference.
+		 * @param loaded Whether the tile's data was found or fetched (and is therefore in the cache).
+		 */
+		void complete(Bitmap bmp, boolean loaded) {
+			ArrayList<TileRequest> waiters;
+			ArrayList<TileFetcherDelegate> delegates;
+			synchronized (this) {
+				assert !mCompleted;
+				mCompleted = true;
+				waiters = mWaiters;
+				delegates = mWaiterDelegates;
+			}
+			mTiles.remove(mTile, this);
+			if (waiters == null) {
+				return;
+			}
+			for (int i = 0; i < waiters.size(); i++) {
+				TileRequest waiter = waiters.get(i);
+				waiter.loaded = loaded;
+				// Prefetches shouldn't be uploaded.
+				Bitmap waiterBmp = (waiter.prefetch ? null : bmp);
+				if (waiterBmp != null) {
+					// Each map releases its own reference once it has uploaded the bitmap.
+					DecodedTileCache.getInstance().acquire(waiterBmp);
+				}
+				delegates.get(i).tileReadyAsyncCallback(waiter, waiterBmp);
+			}
+		}
+	}
+}
@@ -0,0 +1,198 @@
+/**
+ * OpenSpace Android SDK Licence Terms
+ *
+ * The OpenSpace Android SDK is protected by © Crown copyright – Ordnance Survey 2013.[https://github.com/OrdnanceSurvey]
+ *
+ * All rights reserved (subject to the BSD licence terms as follows):.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided
+ * with the distribution.
+ *
+ * Neither the name of Ordnance Survey nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE
+ *
+ */
+package uk.co.ordnancesurvey.android.maps;
+
+/**
+ * A least-recently-used cache of byte arrays with long keys, sized by the total length of the arrays. It does the job of an
+ * {@link android.support.v4.util.LruCache} in {@link CombinedLruCache}, but get() doesn't allocate: there is no boxing of keys,
+ * and the hash chains and LRU list are linked through the entries themselves.
+ *
+ * This class is threadsafe.
+ */
+final class LongLruCache {
+	private static final int INITIAL_BUCKETS = 64;
+
+	private static final class Entry {
+		long key;
+		byte[] value;
+		// The next entry in the same bucket.
+		Entry nextInBucket;
+		// Neighbours in the LRU list.
+		Entry older;
+		Entry newer;
+	}
+
+	private int mMaxBytes;
+	private Entry[] mBuckets = new Entry[INITIAL_BUCKETS];
+	// The head of a circular list: its newer entry is the eldest and its older entry is the newest.
+	private final Entry mLru = new Entry();
+	// An evicted entry kept for the next put().
+	private Entry mSpare;
+	private int mCount;
+	private int mBytes;
+
+	LongLruCache(int maxBytes) {
+		mMaxBytes = maxBytes;
+		mLru.older = mLru;
+		mLru.newer = mLru;
+	}
+
+	private static int bucketIndex(long key, int bucketCount) {
+		// Fibonacci hashing, so that neighbouring tiles spread out.
+		return (int)((key * 0x9e3779b97f4a7c15L) >>> 40) & (bucketCount - 1);
+	}
+
+	private Entry find(long key) {
+		for (Entry e = mBuckets[bucketIndex(key, mBuckets.length)]; e != null; e = e.nextInBucket) {
+			if (e.key == key) {
+				return e;
+			}
+		}
+		return null;
+	}
+
+	private void unlink(Entry e) {
+		e.older.newer = e.newer;
+		e.newer.older = e.older;
+	}
+
+	private void linkNewest(Entry e) {
+		e.older = mLru.older;
+		e.newer = mLru;
+		mLru.older.newer = e;
+		mLru.older = e;
+	}
+
+	/**
+	 * Returns the value for the key and makes it the most recently used, or returns null.
+	 */
+	synchronized byte[] get(long key) {
+		Entry e = find(key);
+		if (e == null) {
+			return null;
+		}
+		unlink(e);
+		linkNewest(e);
+		return e.value;
+	}
+
+	/**
+	 * Adds a value, replacing any value already there. A value bigger than the whole cache isn't added.
+	 */
+	synchronized void put(long key, byte[] value) {
+		Entry e = find(key);
+		if (e != null) {
+			mBytes -= e.value.length;
+			e.value = value;
+			mBytes += value.length;
+			unlink(e);
+			linkNewest(e);
+		} else {
+			if (value.length > mMaxBytes) {
+				return;
+			}
+			if (mCount >= mBuckets.length - (mBuckets.length >> 2)) {
+				rehash(mBuckets.length * 2);
+			}
+			e = mSpare;
+			if (e != null) {
+				mSpare = null;
+			} else {
+				e = new Entry();
+			}
+			e.key = key;
+			e.value = value;
+			int index = bucketIndex(key, mBuckets.length);
+			e.nextInBucket = mBuckets[index];
+			mBuckets[index] = e;
+			linkNewest(e);
+			mCount++;
+			mBytes += value.length;
+		}
+		trimToSize(mMaxBytes);
+	}
+
+	/**
+	 * Evicts the least recently used values until the cache holds at most maxBytes.
+	 */
+	synchronized void trimToSize(int maxBytes) {
+		while (mBytes > maxBytes && mLru.newer != mLru) {
+			remove(mLru.newer);
+		}
+	}
+
+	/**
+	 * The total length of the cached values.
+	 */
+	synchronized int size() {
+		return mBytes;
+	}
+
+	synchronized int maxSize() {
+		return mMaxBytes;
+	}
+
+	/**
+	 * Changes the size of the cache, evicting values if it shrinks.
+	 */
+	synchronized void resize(int maxBytes) {
+		mMaxBytes = maxBytes;
+		trimToSize(maxBytes);
+	}
+
+	private void remove(Entry e) {
+		int index = bucketIndex(e.key, mBuckets.length);
+		if (mBuckets[index] == e) {
+			mBuckets[index] = e.nextInBucket;
+		} else {
+			Entry previous = mBuckets[index];
+			while (previous.nextInBucket != e) {
+				previous = previous.nextInBucket;
+			}
+			previous.nextInBucket = e.nextInBucket;
+		}
+		unlink(e);
+		mCount--;
+		mBytes -= e.value.length;
+		e.value = null;
+		e.nextInBucket = null;
+		e.older = null;
+		e.newer = null;
+		mSpare = e;
+	}
+
+	private void rehash(int bucketCount) {
+		Entry[] buckets = new Entry[bucketCount];
+		for (Entry head : mBuckets) {
+			Entry e = head;
+			while (e != null) {
+				Entry next = e.nextInBucket;
+				int index = bucketIndex(e.key, bucketCount);
+				e.nextInBucket = buckets[index];
+				buckets[index] = e;
+				e = next;
+			}
+		}
+		mBuckets = buckets;
+	}
+}
@@ -33,8 +33,13 @@ final class MapLayer {
 	final int tileSizePixels;
 	final float tileSizeMetres;
 	final float metresPerPixel;
+	// The layer's position in ALL_LAYERS. It is part of the tile cache keys on disk, so layers must only be added at the end.
+	final int index;
+
+	private static int sLayerCount;
 
 	private MapLayer(String productCode, String layerCode, int tileSizePixels, float tileSizeMetres, String retinaProductCode, String forceFallbackCode) {
+		this.index = sLayerCount++;
 		this.productCode = productCode;
 		this.layerCode = layerCode;
 		this.tileSizePixels = tileSizePixels;
@@ -65,6 +70,20 @@ final class MapLayer {
 		return ret;
 	}
 
+	/**
+	 * Returns the layer with the given {@link #index}, or null.
+	 */
+	static MapLayer forIndex(int index) {
+		return (0 <= index && index < ALL_LAYERS.length ? ALL_LAYERS[index] : null);
+	}
+
+	/**
+	 * The number of layers, so that arrays can be indexed by {@link #index}.
+	 */
+	static int getLayerCount() {
+		return ALL_LAYERS.length;
+	}
+
 	static MapLayer[] getDefaultLayers() {
 		return layersForProductCodes(new String[] {"SV","SVR","50K","50KR","250K","250KR","MS","MSR","OV2","OV1","OV0"});
 	}
@@ -121,6 +140,8 @@ final class MapLayer {
 		new MapLayer("50K-660DPI", null, 260,    500), // 1:50k
 		new MapLayer("50K-330DPI", null, 260,   1000, "50K-660DPI", "50K-660DPI"), // 1:50k
 		new MapLayer("50K-165DPI", null, 260,   2000, "50K-330DPI", "50K-660DPI"), // 1:50k
+
+		// Add new layers here, so existing layers keep their index.
 	};
 
 	public final static Comparator<MapLayer> COMPARE_METRES_PER_PIXEL = new MetresPerPixelComparator();
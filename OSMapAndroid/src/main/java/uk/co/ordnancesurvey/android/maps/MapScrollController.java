@@ -48,6 +48,9 @@ final class MapScrollController extends CombinedGestureDetector {
 
 	private final Scroller mScroller;
 	private int mFlingPrevX, mFlingPrevY;
+	private long mFlingPrevUptimeMillis;
+	// Fling velocity in metres per second, measured between frames.
+	private float mVelocityX, mVelocityY;
 
 	private final Zoomer mZoomer;
 	private float mZoomFocusOffsetX, mZoomFocusOffsetY;
@@ -287,10 +290,13 @@ final class MapScrollController extends CombinedGestureDetector {
 				mZoomer.forceFinished(true);
 			}
 
+			mVelocityX = 0;
+			mVelocityY = 0;
 			if (flingVX != 0 || flingVY != 0)
 			{
 				mFlingPrevX = 0;
 				mFlingPrevY = 0;
+				mFlingPrevUptimeMillis = SystemClock.uptimeMillis();
 				mScroller.fling(0, 0, Math.round(flingVX), -Math.round(flingVY), Integer.MIN_VALUE, Integer.MAX_VALUE, Integer.MIN_VALUE, Integer.MAX_VALUE);
 			}
 		}
@@ -306,6 +312,7 @@ final class MapScrollController extends CombinedGestureDetector {
 		boolean animatingZoom = false;
 		float animationStartScale = 0;
 		float animationFinalScale = 0;
+		float velocityX, velocityY;
 		synchronized (this) {
 			scale = mScale;
 			x = mX;
@@ -322,11 +329,26 @@ final class MapScrollController extends CombinedGestureDetector {
 					int flingY = mScroller.getCurrY();
 					x += (flingX-mFlingPrevX)*scale;
 					y += (flingY-mFlingPrevY)*scale;
+
+					// Scroller.getCurrVelocity() needs API 14 and doesn't give the direction anyway.
+					long uptimeMillis = SystemClock.uptimeMillis();
+					long dt = uptimeMillis - mFlingPrevUptimeMillis;
+					if (dt > 0)
+					{
+						mVelocityX = (flingX-mFlingPrevX)*scale*1000/dt;
+						mVelocityY = (flingY-mFlingPrevY)*scale*1000/dt;
+					}
 					mFlingPrevX = flingX;
 					mFlingPrevY = flingY;
+					mFlingPrevUptimeMillis = uptimeMillis;
 
 					animatingScroll = !mScroller.isFinished();
 				}
+				if (!animatingScroll)
+				{
+					mVelocityX = 0;
+					mVelocityY = 0;
+				}
 				if (mZoomer.computeScrollOffset())
 				{
 					float prevScale = scale;
@@ -368,11 +390,15 @@ final class MapScrollController extends CombinedGestureDetector {
 					animatingScroll = true;
 				}
 			}
+			velocityX = mVelocityX;
+			velocityY = mVelocityY;
 		}
 		ret.x = x;
 		ret.y = y;
 		ret.metresPerPixel = scale;
 		ret.animatingScroll = animatingScroll;
+		ret.velocityX = velocityX;
+		ret.velocityY = velocityY;
 		ret.animatingZoom = animatingZoom;
 		ret.animationStartMetresPerPixel = animationStartScale;
 		ret.animationFinalMetresPerPixel= animationFinalScale;
@@ -423,6 +449,8 @@ final class MapScrollController extends CombinedGestureDetector {
 		double x,y;
 		public float metresPerPixel = 1;
 		public boolean animatingScroll;
+		// Metres per second, or 0 if not flinging.
+		public float velocityX, velocityY;
 		public boolean animatingZoom;
 		public float animationStartMetresPerPixel;
 		public float animationFinalMetresPerPixel;
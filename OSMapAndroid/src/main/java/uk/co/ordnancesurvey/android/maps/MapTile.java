@@ -39,6 +39,14 @@ final class MapTile {
 		y = yy;
 		layer = l;
 	}
+
+	/**
+	 * Packs the tile into a long, for use as a cache key: the layer's index in the top 16 bits, then 24 bits each of x and y.
+	 * That is far more tiles than any layer has.
+	 */
+	long key() {
+		return ((long)layer.index << 48) | ((long)(x & 0xffffff) << 24) | (y & 0xffffff);
+	}
 	@Override
 	public boolean equals(Object o) {
 		if (this == o) {
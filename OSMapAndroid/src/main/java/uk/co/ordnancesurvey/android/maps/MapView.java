@@ -23,6 +23,7 @@
 package uk.co.ordnancesurvey.android.maps;
 
 
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.os.Bundle;
 import android.util.AttributeSet;
@@ -98,7 +99,10 @@ final class MapView extends FrameLayout {
 		setOnTouchListener(scrollController);
 
 
-		GLMapRenderer map = new GLMapRenderer(context, scrollController);
+		// The cache is opened by the renderer, so pass its format in rather than switching to it afterwards.
+		boolean mappedTileCache = (options != null && options.getMappedTileCache());
+		boolean transcodedTileCache = (options != null && options.getTranscodedTileCache());
+		GLMapRenderer map = new GLMapRenderer(context, scrollController, mappedTileCache, transcodedTileCache);
 		map.setLayoutParams(fill);
 		addView(map);
 
@@ -118,6 +122,14 @@ final class MapView extends FrameLayout {
 			map.setMapLayers(MapLayer.layersForProductCodes(options.getProducts()));
 
 		}
+		if(options != null)
+		{
+			map.setPrefetchRing(options.getPrefetchRing());
+			if (options.getPinnedTileCacheRegions() != null)
+			{
+				TileEvictionPolicy.getInstance().setPinnedRegions(options.getPinnedTileCacheRegions());
+			}
+		}
 		return map;
 	}
 	
@@ -146,6 +158,8 @@ final class MapView extends FrameLayout {
 	*/
 	public final void onLowMemory()
 	{
+		// Before API level 14, this is the only warning.
+		MemoryGovernor.getInstance().onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
 	}
 	/**
 	* Must be forwarded from the containing Activity/Fragment.
@@ -159,6 +173,7 @@ final class MapView extends FrameLayout {
 	*/
 	public final void onResume()
 	{
+		MemoryGovernor.getInstance().onResume();
 		mMapRenderer.onResume();
 	}
 	/**
@@ -0,0 +1,377 @@
+/**
+ * OpenSpace Android SDK Licence Terms
+ *
+ * The OpenSpace Android SDK is protected by © Crown copyright – Ordnance Survey 2013.[https://github.com/OrdnanceSurvey]
+ *
+ * All rights reserved (subject to the BSD licence terms as follows):.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided
+ * with the distribution.
+ *
+ * Neither the name of Ordnance Survey nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE
+ *
+ */
+package uk.co.ordnancesurvey.android.maps;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import android.util.Log;
+
+/**
+ * An on-disk tile cache made of a few large files, instead of a file per tile like {@link DiskLruCache}. There is no journal to
+ * read when it is opened and no directory full of small files.
+ *
+ * Tiles are appended to one of a fixed number of memory-mapped segment files. When the current segment is full, the oldest
+ * segment is emptied and reused, so tiles are evicted a segment at a time, in the order they were added. Each segment has a
+ * generation which increases every time it is reused.
+ *
+ * A memory-mapped index finds tiles by their long key (see {@link MapTile#key}). It is an open-addressed hash table of slots,
+ * each of which holds the key's hash and the segment, generation, offset and length of the tile's record. A slot whose generation no longer matches its
+ * segment is dead, and can be reused. Lookups check the record's key as well, so a torn write or hash collision is only a miss.
+ *
+ * A lookup reads the index and record straight from the mappings and copies the tile's data once, into the array that is
+ * returned, with no system calls. It can't hand out the mapping itself, because the segment might be reused while the data
+ * is being decoded.
+ *
+ * This class is threadsafe. Lookups can run concurrently; writes are exclusive.
+ */
+final class MappedTileStore implements DiskTileCache {
+	private static final String TAG = "MappedTileStore";
+
+	private static final int MAGIC = 0x4f535453; // "OSTS"
+	private static final int FORMAT_VERSION = 2;
+	private static final int SEGMENT_COUNT = 8;
+	// Tiles are typically 10-20 KB. Allow for smaller ones, and keep the index at most half full.
+	private static final int EXPECTED_BYTES_PER_TILE = 8*1024;
+	// Inserts give up after this many slots, so lookups never have to look further.
+	private static final int MAX_PROBES = 32;
+
+	// The index is a header (magic, version, app version, slot count) followed by the slots.
+	private static final int INDEX_HEADER_BYTES = 16;
+	// Each slot is a long hash (0 if the slot is empty), then int segment, generation, offset and length.
+	private static final int SLOT_BYTES = 24;
+	// Each segment is a header (magic, version, generation, bytes used) followed by the records.
+	private static final int SEGMENT_HEADER_BYTES = 16;
+	private static final int SEGMENT_GENERATION_OFFSET = 8;
+	private static final int SEGMENT_USED_OFFSET = 12;
+	// Each record is the long key, followed by the data.
+	private static final int RECORD_HEADER_BYTES = 8;
+
+	private static final class Segment {
+		final MappedByteBuffer buffer;
+		// Mirrors of the header, so lookups don't need to read it.
+		volatile int generation;
+		volatile int used;
+
+		Segment(MappedByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		void setHeader(int generation, int used) {
+			this.generation = generation;
+			this.used = used;
+			buffer.putInt(SEGMENT_GENERATION_OFFSET, generation);
+			buffer.putInt(SEGMENT_USED_OFFSET, used);
+		}
+	}
+
+	private final ReentrantReadWriteLock mLock = new ReentrantReadWriteLock();
+	private final MappedByteBuffer mIndex;
+	private final int mSlotMask;
+	private final Segment[] mSegments = new Segment[SEGMENT_COUNT];
+	private final int mSegmentBytes;
+	// Guarded by the write lock.
+	private int mCurrentSegment;
+	private int mLastGeneration;
+	private boolean mClosed;
+
+	/**
+	 * Opens the store in the directory, creating it if necessary. If it was written by a different app version or with a
+	 * different size, it is emptied. Returns null if it can't be opened.
+	 *
+	 * The files are mapped all the time, so this uses maxBytes of address space.
+	 */
+	static MappedTileStore openOrNull(File dir, int appVersion, long maxBytes) {
+		try {
+			return new MappedTileStore(dir, appVersion, maxBytes);
+		} catch (IOException e) {
+			Log.w(TAG, "Failed to open tile store in " + dir.getPath(), e);
+			return null;
+		}
+	}
+
+	private MappedTileStore(File dir, int appVersion, long maxBytes) throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Couldn't create " + dir.getPath());
+		}
+		mSegmentBytes = (int)Math.min(Integer.MAX_VALUE, maxBytes / SEGMENT_COUNT);
+		int slotCount = Integer.highestOneBit((int)Math.min(1 << 24, Math.max(1024, 2 * maxBytes / EXPECTED_BYTES_PER_TILE)));
+		mSlotMask = slotCount - 1;
+
+		boolean valid = true;
+		File indexFile = new File(dir, "index");
+		int indexBytes = INDEX_HEADER_BYTES + slotCount * SLOT_BYTES;
+		valid &= (indexFile.length() == indexBytes);
+		mIndex = map(indexFile, indexBytes);
+		valid &= (mIndex.getInt(0) == MAGIC && mIndex.getInt(4) == FORMAT_VERSION && mIndex.getInt(8) == appVersion && mIndex.getInt(12) == slotCount);
+
+		for (int i = 0; i < SEGMENT_COUNT; i++) {
+			File segmentFile = new File(dir, "segment." + i);
+			valid &= (segmentFile.length() == mSegmentBytes);
+			Segment segment = new Segment(map(segmentFile, mSegmentBytes));
+			ByteBuffer buffer = segment.buffer;
+			valid &= (buffer.getInt(0) == MAGIC && buffer.getInt(4) == FORMAT_VERSION);
+			segment.generation = buffer.getInt(SEGMENT_GENERATION_OFFSET);
+			segment.used = buffer.getInt(SEGMENT_USED_OFFSET);
+			valid &= (SEGMENT_HEADER_BYTES <= segment.used && segment.used <= mSegmentBytes);
+			mSegments[i] = segment;
+		}
+
+		if (valid) {
+			// Carry on appending to the newest segment.
+			for (int i = 0; i < SEGMENT_COUNT; i++) {
+				if (mSegments[i].generation > mLastGeneration) {
+					mLastGeneration = mSegments[i].generation;
+					mCurrentSegment = i;
+				}
+			}
+		}
+		if (!valid || mLastGeneration == 0) {
+			clear(appVersion, slotCount);
+		}
+	}
+
+	private static MappedByteBuffer map(File file, int bytes) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(bytes);
+			// The mapping stays valid after the file is closed.
+			return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+		} finally {
+			raf.close();
+		}
+	}
+
+	// Called from the constructor.
+	private void clear(int appVersion, int slotCount) {
+		for (int i = INDEX_HEADER_BYTES; i < mIndex.capacity(); i += 8) {
+			mIndex.putLong(i, 0);
+		}
+		mIndex.putInt(0, MAGIC);
+		mIndex.putInt(4, FORMAT_VERSION);
+		mIndex.putInt(8, appVersion);
+		mIndex.putInt(12, slotCount);
+		for (Segment segment : mSegments) {
+			segment.buffer.putInt(0, MAGIC);
+			segment.buffer.putInt(4, FORMAT_VERSION);
+			segment.setHeader(0, SEGMENT_HEADER_BYTES);
+		}
+		mLastGeneration = 1;
+		mCurrentSegment = 0;
+		mSegments[0].setHeader(mLastGeneration, SEGMENT_HEADER_BYTES);
+	}
+
+	private static long hash(long key) {
+		// The finalizer of MurmurHash3, so that neighbouring tiles spread out.
+		long h = key;
+		h = (h ^ (h >>> 33)) * 0xff51afd7ed558ccdL;
+		h = (h ^ (h >>> 33)) * 0xc4ceb9fe1a85ec53L;
+		h ^= (h >>> 33);
+		// 0 marks an empty slot.
+		return (h == 0 ? 1 : h);
+	}
+
+	private static int slotPosition(int slot) {
+		return INDEX_HEADER_BYTES + slot * SLOT_BYTES;
+	}
+
+	// Whether the slot's record is still in its segment. Called with either lock held.
+	private boolean isLive(int position) {
+		int segmentIndex = mIndex.getInt(position + 8);
+		if (segmentIndex < 0 || segmentIndex >= SEGMENT_COUNT) {
+			return false;
+		}
+		Segment segment = mSegments[segmentIndex];
+		int offset = mIndex.getInt(position + 16);
+		int length = mIndex.getInt(position + 20);
+		return mIndex.getInt(position + 12) == segment.generation && offset >= SEGMENT_HEADER_BYTES && length >= 0 &&
+				(long)offset + length <= segment.used;
+	}
+
+	// Returns the position of the slot holding the key's hash, or -1. Called with either lock held.
+	private int findSlot(long hash) {
+		int slot = (int)(hash ^ (hash >>> 32)) & mSlotMask;
+		for (int i = 0; i < MAX_PROBES; i++) {
+			int position = slotPosition(slot);
+			long slotHash = mIndex.getLong(position);
+			if (slotHash == hash) {
+				return position;
+			}
+			if (slotHash == 0) {
+				break;
+			}
+			slot = (slot + 1) & mSlotMask;
+		}
+		return -1;
+	}
+
+	@Override
+	public byte[] get(long key) {
+		long hash = hash(key);
+		mLock.readLock().lock();
+		try {
+			if (mClosed) {
+				return null;
+			}
+			int position = findSlot(hash);
+			if (position < 0 || !isLive(position)) {
+				return null;
+			}
+			ByteBuffer buffer = mSegments[mIndex.getInt(position + 8)].buffer;
+			int offset = mIndex.getInt(position + 16);
+			int length = mIndex.getInt(position + 20);
+
+			// Check it's really this tile.
+			if (length < RECORD_HEADER_BYTES || buffer.getLong(offset) != key) {
+				return null;
+			}
+
+			byte[] ret = new byte[length - RECORD_HEADER_BYTES];
+			// Use a duplicate, since other threads are using the buffer's position.
+			ByteBuffer data = buffer.duplicate();
+			data.position(offset + RECORD_HEADER_BYTES);
+			data.get(ret);
+			return ret;
+		} finally {
+			mLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Adds a tile, replacing any copy already there.
+	 */
+	void put(long key, byte[] value) {
+		mLock.writeLock().lock();
+		try {
+			if (mClosed) {
+				return;
+			}
+			putLocked(key, value);
+		} finally {
+			mLock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void putAll(long[] keys, byte[][] values, int count) {
+		mLock.writeLock().lock();
+		try {
+			if (mClosed) {
+				return;
+			}
+			for (int i = 0; i < count; i++) {
+				putLocked(keys[i], values[i]);
+			}
+		} finally {
+			mLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Writes the mappings out to their files. The mappings themselves can't be unmapped explicitly; they go when they are
+	 * garbage collected, which can only happen once nothing refers to the store.
+	 */
+	@Override
+	public void close() {
+		mLock.writeLock().lock();
+		try {
+			if (mClosed) {
+				return;
+			}
+			mClosed = true;
+			mIndex.force();
+			for (Segment segment : mSegments) {
+				segment.buffer.force();
+			}
+		} finally {
+			mLock.writeLock().unlock();
+		}
+	}
+
+	// Called with the write lock held.
+	private void putLocked(long key, byte[] value) {
+		int recordBytes = RECORD_HEADER_BYTES + value.length;
+		if (recordBytes > mSegmentBytes - SEGMENT_HEADER_BYTES) {
+			return;
+		}
+		long hash = hash(key);
+
+		int position = slotForInsert(hash);
+		if (position < 0) {
+			// The neighbourhood is full of live tiles. Leave this one out.
+			return;
+		}
+
+		Segment segment = mSegments[mCurrentSegment];
+		if (segment.used + recordBytes > mSegmentBytes) {
+			// Evict the oldest segment. Its slots die with it.
+			mCurrentSegment = (mCurrentSegment + 1) % SEGMENT_COUNT;
+			mLastGeneration++;
+			segment = mSegments[mCurrentSegment];
+			segment.setHeader(mLastGeneration, SEGMENT_HEADER_BYTES);
+			// The slot we found might have been in the evicted segment, but it's still the right one to use.
+		}
+
+		int offset = segment.used;
+		ByteBuffer buffer = segment.buffer.duplicate();
+		buffer.putLong(offset, key);
+		buffer.position(offset + RECORD_HEADER_BYTES);
+		buffer.put(value);
+		segment.setHeader(segment.generation, offset + recordBytes);
+
+		// Write the hash last, so that a half-written slot is never found.
+		mIndex.putLong(position, 0);
+		mIndex.putInt(position + 8, mCurrentSegment);
+		mIndex.putInt(position + 12, segment.generation);
+		mIndex.putInt(position + 16, offset);
+		mIndex.putInt(position + 20, recordBytes);
+		mIndex.putLong(position, hash);
+	}
+
+	// Returns the position of the slot to write the key to, or -1 if there isn't one. Called with the write lock held.
+	private int slotForInsert(long hash) {
+		int reusable = -1;
+		int slot = (int)(hash ^ (hash >>> 32)) & mSlotMask;
+		for (int i = 0; i < MAX_PROBES; i++) {
+			int position = slotPosition(slot);
+			long slotHash = mIndex.getLong(position);
+			if (slotHash == hash) {
+				// Replace the old copy, so there's only ever one slot per key.
+				return position;
+			}
+			if (slotHash == 0) {
+				return (reusable >= 0 ? reusable : position);
+			}
+			if (reusable < 0 && !isLive(position)) {
+				reusable = position;
+			}
+			slot = (slot + 1) & mSlotMask;
+		}
+		return reusable;
+	}
+}
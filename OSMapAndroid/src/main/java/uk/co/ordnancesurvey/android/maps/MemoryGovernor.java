@@ -0,0 +1,240 @@
+/**
+ * OpenSpace Android SDK Licence Terms
+ *
+ * The OpenSpace Android SDK is protected by © Crown copyright – Ordnance Survey 2013.[https://github.com/OrdnanceSurvey]
+ *
+ * All rights reserved (subject to the BSD licence terms as follows):.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided
+ * with the distribution.
+ *
+ * Neither the name of Ordnance Survey nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE
+ *
+ */
+package uk.co.ordnancesurvey.android.maps;
+
+import java.util.ArrayList;
+import java.util.Locale;
+
+import android.annotation.TargetApi;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+/**
+ * Shrinks the map's memory caches when the system is short of memory, and lets them grow back when it isn't.
+ *
+ * Each cache registers as a {@link Tier} with a priority. Tiers are shed in priority order, cheapest to rebuild first:
+ * <ol>
+ * <li>{@link #PRIORITY_SPARE}: the pool of unused bitmaps, which is only there to save allocations.
+ * <li>{@link #PRIORITY_DATA}: compressed tile data in memory, which is also cached on disk.
+ * <li>{@link #PRIORITY_DECODED}: decoded tile bitmaps, which take a decode to rebuild.
+ * <li>{@link #PRIORITY_GL}: tile and image textures, which are what is on screen.
+ * </ol>
+ * The budget each priority gets at each level of ComponentCallbacks2.onTrimMemory() is in {@link #BUDGETS}. Every response is
+ * logged and recorded in {@link TileMetrics}.
+ *
+ * There is no callback for the pressure easing, so after {@link #RELAX_DELAY_MILLIS} without another trim, the level steps down
+ * and the budgets grow again. The running levels step down one at a time. The background levels step down to UI_HIDDEN and then
+ * to none, because the running levels below them keep less tile data. Returning to the foreground drops the levels that are
+ * about being in the background at once.
+ *
+ * Before API level 14 there is no onTrimMemory(), and the only signal is {@link MapView#onLowMemory}.
+ *
+ * There is one per process. Its methods are called on the main thread, so tiers must be threadsafe or pass the work on.
+ */
+final class MemoryGovernor {
+	private static final String TAG = "MemoryGovernor";
+
+	/**
+	 * Something whose memory use can be limited.
+	 */
+	interface Tier {
+		/**
+		 * Limits the tier to a fraction of its normal budget, between 0 (empty it) and 1. Called on the main thread, or on the
+		 * thread registering the tier.
+		 */
+		void setBudgetFraction(float fraction);
+	}
+
+	static final int PRIORITY_SPARE = 0;
+	static final int PRIORITY_DATA = 1;
+	static final int PRIORITY_DECODED = 2;
+	static final int PRIORITY_GL = 3;
+	private static final int PRIORITY_COUNT = 4;
+
+	// The ComponentCallbacks2 constants, which are compile-time constants and so can be used before API level 14.
+	private static final int[] LEVELS = {
+		0,
+		ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE,
+		ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW,
+		ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL,
+		ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN,
+		ComponentCallbacks2.TRIM_MEMORY_BACKGROUND,
+		ComponentCallbacks2.TRIM_MEMORY_MODERATE,
+		ComponentCallbacks2.TRIM_MEMORY_COMPLETE,
+	};
+
+	// The budget for each priority at each of LEVELS. While the app is running, everything but the screen's textures goes
+	// before they do. Once it's hidden, nothing is drawn, so the decoded bitmaps and textures go first and the tile data (which
+	// makes coming back quick) goes last.
+	private static final float[][] BUDGETS = {
+		// spare data   decoded GL
+		{ 1,    1,     1,      1    }, // none
+		{ 0,    0.5f,  1,      1    }, // RUNNING_MODERATE
+		{ 0,    0.25f, 0.5f,   1    }, // RUNNING_LOW
+		{ 0,    0,     0.25f,  0.5f }, // RUNNING_CRITICAL
+		{ 0,    0.5f,  0,      0    }, // UI_HIDDEN
+		{ 0,    0.25f, 0,      0    }, // BACKGROUND
+		{ 0,    0,     0,      0    }, // MODERATE
+		{ 0,    0,     0,      0    }, // COMPLETE
+	};
+
+	// The index in LEVELS of TRIM_MEMORY_UI_HIDDEN, the lowest background level.
+	private static final int UI_HIDDEN_INDEX = 4;
+
+	// How long the level has to stay the same before it steps down.
+	static final long RELAX_DELAY_MILLIS = 30000;
+
+	private static final MemoryGovernor INSTANCE = new MemoryGovernor();
+
+	private final Handler mHandler = new Handler(Looper.getMainLooper());
+	private final Runnable mRelaxRunnable = new Runnable() {
+		@Override
+		public void run() {
+			relax();
+		}
+	};
+
+	// All guarded by this. Indexed by priority.
+	private final ArrayList<ArrayList<Tier>> mTiers;
+	// The index in LEVELS of the current level.
+	private int mLevelIndex;
+	private boolean mAttached;
+
+	private MemoryGovernor() {
+		mTiers = new ArrayList<ArrayList<Tier>>(PRIORITY_COUNT);
+		for (int i = 0; i < PRIORITY_COUNT; i++) {
+			mTiers.add(new ArrayList<Tier>());
+		}
+	}
+
+	static MemoryGovernor getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Starts listening for onTrimMemory(), if this API level has it. Safe to call more than once.
+	 */
+	synchronized void attach(Context context) {
+		if (mAttached || Build.VERSION.SDK_INT < 14) {
+			return;
+		}
+		mAttached = true;
+		registerCallbacksAPI14(context.getApplicationContext());
+	}
+
+	@TargetApi(14)
+	private void registerCallbacksAPI14(Context applicationContext) {
+		applicationContext.registerComponentCallbacks(new ComponentCallbacks2() {
+			@Override
+			public void onTrimMemory(int level) {
+				MemoryGovernor.this.onTrimMemory(level);
+			}
+
+			@Override
+			public void onLowMemory() {
+				MemoryGovernor.this.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+			}
+
+			@Override
+			public void onConfigurationChanged(Configuration newConfig) {
+			}
+		});
+	}
+
+	/**
+	 * Adds a tier, and limits it straight away if memory is already short.
+	 */
+	synchronized void register(Tier tier, int priority) {
+		mTiers.get(priority).add(tier);
+		float fraction = BUDGETS[mLevelIndex][priority];
+		if (fraction < 1) {
+			tier.setBudgetFraction(fraction);
+		}
+	}
+
+	synchronized void unregister(Tier tier) {
+		for (ArrayList<Tier> tiers : mTiers) {
+			tiers.remove(tier);
+		}
+	}
+
+	/**
+	 * Responds to ComponentCallbacks2.onTrimMemory(), or to onLowMemory() with TRIM_MEMORY_COMPLETE.
+	 */
+	synchronized void onTrimMemory(int level) {
+		// Levels between the known ones are treated as the known one below.
+		int index = 0;
+		for (int i = 1; i < LEVELS.length; i++) {
+			if (level >= LEVELS[i]) {
+				index = i;
+			}
+		}
+		setLevelIndex(index, "onTrimMemory(" + level + ")");
+	}
+
+	/**
+	 * Call when a map is resumed. The levels for being in the background no longer apply.
+	 */
+	synchronized void onResume() {
+		if (LEVELS[mLevelIndex] >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+			setLevelIndex(0, "onResume()");
+		}
+	}
+
+	/**
+	 * Steps the level down after RELAX_DELAY_MILLIS without a trim. Every step only grows the budgets.
+	 */
+	synchronized void relax() {
+		if (mLevelIndex > UI_HIDDEN_INDEX) {
+			setLevelIndex(UI_HIDDEN_INDEX, "relax()");
+		} else if (mLevelIndex == UI_HIDDEN_INDEX) {
+			setLevelIndex(0, "relax()");
+		} else if (mLevelIndex > 0) {
+			setLevelIndex(mLevelIndex - 1, "relax()");
+		}
+	}
+
+	// Called with the lock held.
+	private void setLevelIndex(int index, String reason) {
+		mLevelIndex = index;
+		float[] budgets = BUDGETS[index];
+		for (int priority = 0; priority < PRIORITY_COUNT; priority++) {
+			for (Tier tier : mTiers.get(priority)) {
+				tier.setBudgetFraction(budgets[priority]);
+			}
+		}
+		Log.i(TAG, String.format(Locale.ENGLISH, "%s: level %d, budgets: spare %.2f, data %.2f, decoded %.2f, GL %.2f", reason,
+				LEVELS[index], budgets[PRIORITY_SPARE], budgets[PRIORITY_DATA], budgets[PRIORITY_DECODED], budgets[PRIORITY_GL]));
+		TileMetrics.getInstance().recordMemoryTrim(LEVELS[index]);
+
+		mHandler.removeCallbacks(mRelaxRunnable);
+		if (index > 0) {
+			mHandler.postDelayed(mRelaxRunnable, RELAX_DELAY_MILLIS);
+		}
+	}
+}
@@ -353,6 +353,16 @@ public interface OSMap {
 	 * @return
 	 */
 	public OSTileSource webTileSource(String apiKey, boolean openSpacePro, String[] productsOrNull);
+	/**
+	 * Opens an .ostiles package, or a GeoPackage if the file name ends in .gpkg. A GeoPackage's tiles must be on the British
+	 * National Grid, with the same tile sizes as the map's layers. It is only kept open while tiles are being read from it.
+	 */
 	public OSTileSource localTileSource(Context context, File file) throws FailedToLoadException;
+	/**
+	 * Opens the .ostiles packages and GeoPackages (.gpkg, on the British National Grid) in a directory. Several .ostiles
+	 * packages are returned as a single source, which only searches the packages that cover each tile; closing it closes them
+	 * all. The .ostiles packages come before the GeoPackages, so where both have a tile, the one from the .ostiles package is
+	 * shown.
+	 */
 	public Collection<OSTileSource> localTileSourcesInDirectory(Context context, File dir);
 }
@@ -29,7 +29,13 @@ package uk.co.ordnancesurvey.android.maps;
  *
 */
 public final class OSMapOptions {
+	static final int DEFAULT_PREFETCH_RING = 1;
+
 	private String[] mProducts;
+	private int mPrefetchRing = DEFAULT_PREFETCH_RING;
+	private boolean mMappedTileCache;
+	private boolean mTranscodedTileCache;
+	private GridRect[] mPinnedTileCacheRegions;
 	public OSMapOptions() 
 	{
 	}
@@ -45,4 +51,77 @@ public final class OSMapOptions {
 		return mProducts;
 	}
 
+	/**
+	 * Sets how many tiles beyond the edge of the screen are loaded in advance, so that they are ready when the map is scrolled.
+	 * The ring is extended in the direction of a fling. Pass 0 to only prefetch along a fling. The default is 1.
+	 *
+	 * Prefetching over the network is limited to a rate that depends on the type of connection.
+	 */
+	public OSMapOptions prefetchRing(int tiles)
+	{
+		if (tiles < 0)
+		{
+			throw new IllegalArgumentException("Prefetch ring must not be negative, got " + tiles);
+		}
+		mPrefetchRing = tiles;
+		return this;
+	}
+
+	public int getPrefetchRing()
+	{
+		return mPrefetchRing;
+	}
+
+	/**
+	 * Sets whether downloaded tiles are cached on disk in a few large memory-mapped files, instead of a file per tile.
+	 * This opens faster when the cache is full, but evicts tiles in the order they were downloaded rather than least recently used
+	 * first, and uses 128 MB of address space. Maps with the same settings share a cache; maps with different settings each
+	 * have their own. The default is false.
+	 */
+	public OSMapOptions mappedTileCache(boolean mapped)
+	{
+		mMappedTileCache = mapped;
+		return this;
+	}
+
+	public boolean getMappedTileCache()
+	{
+		return mMappedTileCache;
+	}
+
+	/**
+	 * Sets whether opaque tiles are stored in the disk cache as raw RGB 565 pixels, converted in the background after they are
+	 * downloaded. Loading such a tile from disk is a copy instead of a PNG decode, and its texture takes half the memory, but
+	 * each tile takes several times more space, so the cache holds fewer tiles. Tiles with transparency are cached as they are.
+	 * Maps with the same settings share a cache; maps with different settings each have their own. The default is false.
+	 */
+	public OSMapOptions transcodedTileCache(boolean transcoded)
+	{
+		mTranscodedTileCache = transcoded;
+		return this;
+	}
+
+	public boolean getTranscodedTileCache()
+	{
+		return mTranscodedTileCache;
+	}
+
+	/**
+	 * Sets regions whose tiles are kept in the disk cache when it is full, at every zoom level, for example an area the user
+	 * has chosen to use offline. Other tiles are evicted first; tiles from small-scale layers, which every session needs, are
+	 * kept longer than detailed ones. Pinned tiles are still evicted if they fill the whole cache, so keep the regions small.
+	 * The cache is shared by every map in the process, so the most recently created map's regions apply. This has no effect
+	 * on the memory-mapped cache. The default is none.
+	 */
+	public OSMapOptions pinnedTileCacheRegions(GridRect[] regions)
+	{
+		mPinnedTileCacheRegions = regions;
+		return this;
+	}
+
+	public GridRect[] getPinnedTileCacheRegions()
+	{
+		return mPinnedTileCacheRegions;
+	}
+
 }
@@ -24,6 +24,9 @@ package uk.co.ordnancesurvey.android.maps;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
 
 public abstract class OSTileSource implements Closeable
 {
@@ -43,6 +46,39 @@ public abstract class OSTileSource implements Closeable
 	 */
 	abstract byte[] dataForTile(MapTile tile);
 
+	/**
+	 * Blocking method to fetch a single tile on behalf of a request which may be cancelled while the fetch is in progress.
+	 * Slow implementations should override this to give up early when {@link TileRequest#isCancelled()} returns true.
+	 *
+	 * @param tile
+	 * @param requestOrNull The request, or null if the fetch can not be cancelled.
+	 * @return
+	 */
+	byte[] dataForTile(MapTile tile, TileRequest requestOrNull) {
+		return dataForTile(tile);
+	}
+
+	/**
+	 * Blocking method to fetch several tiles at once. Tiles which could not be fetched are left out of the result.
+	 * The default calls {@link #dataForTile(MapTile)} for each tile; sources which can fetch several tiles more cheaply than
+	 * one at a time (e.g. with a single database query) should override it.
+	 *
+	 * <b>Implementations must be thread-safe.</b>
+	 *
+	 * @param tiles
+	 * @return A map from each tile that was found to its data. The caller may modify it.
+	 */
+	Map<MapTile, byte[]> dataForTiles(Collection<MapTile> tiles) {
+		HashMap<MapTile, byte[]> ret = new HashMap<MapTile, byte[]>();
+		for (MapTile tile : tiles) {
+			byte[] data = dataForTile(tile);
+			if (data != null) {
+				ret.put(tile, data);
+			}
+		}
+		return ret;
+	}
+
 	/**
 	 * Is the tile loaded from the network? If so, we will take account of network reachability.
 	 * @return
@@ -58,6 +94,20 @@ public abstract class OSTileSource implements Closeable
 	 */
 	abstract boolean isSynchronous();
 
+	/** The name this source's loads are recorded under in {@link TileMetrics}. The default is the class name. */
+	String getMetricsName() {
+		return getClass().getSimpleName();
+	}
+
+	/**
+	 * Identifies this source's tiles in the disk cache, so that tiles cached from a different source aren't shown in its place.
+	 * Sources that would return different tiles should have different ids. It must stay the same from one run to the next.
+	 * The default is a hash of the class name.
+	 */
+	int getCacheSourceId() {
+		return getClass().getName().hashCode();
+	}
+
 	/** Whether results should be saved in the disk cache. The default is not to. */
 	boolean shouldDiskCache() {
 		return false;
@@ -0,0 +1,107 @@
+/**
+ * OpenSpace Android SDK Licence Terms
+ *
+ * The OpenSpace Android SDK is protected by © Crown copyright – Ordnance Survey 2013.[https://github.com/OrdnanceSurvey]
+ *
+ * All rights reserved (subject to the BSD licence terms as follows):.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided
+ * with the distribution.
+ *
+ * Neither the name of Ordnance Survey nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE
+ *
+ */
+package uk.co.ordnancesurvey.android.maps;
+
+import java.util.Arrays;
+
+/**
+ * A grid over some boxes of tiles, which finds the boxes that might contain a tile without looking at all of them.
+ *
+ * The grid covers the union of the boxes with at most {@link #MAX_CELLS_PER_SIDE} cells a side, and each cell lists the boxes
+ * that overlap it. A lookup is a division and an array index. This class is immutable, so it is threadsafe.
+ */
+final class TileBoxIndex {
+	static final int MAX_CELLS_PER_SIDE = 32;
+	private static final int[] NONE = new int[0];
+
+	private final int mX0;
+	private final int mY0;
+	private final int mCellSize;
+	private final int mColumns;
+	private final int mRows;
+	private final int[][] mCells;
+
+	/**
+	 * @param boxes For each id, the box {x0, y0, x1, y1} with the upper bounds exclusive, or null if the id has no box.
+	 */
+	TileBoxIndex(int[][] boxes) {
+		int x0 = Integer.MAX_VALUE, y0 = Integer.MAX_VALUE, x1 = Integer.MIN_VALUE, y1 = Integer.MIN_VALUE;
+		for (int[] box : boxes) {
+			if (box == null || box[0] >= box[2] || box[1] >= box[3]) {
+				continue;
+			}
+			x0 = Math.min(x0, box[0]);
+			y0 = Math.min(y0, box[1]);
+			x1 = Math.max(x1, box[2]);
+			y1 = Math.max(y1, box[3]);
+		}
+		if (x0 > x1) {
+			// No boxes.
+			x0 = y0 = x1 = y1 = 0;
+		}
+		long side = Math.max((long)x1 - x0, (long)y1 - y0);
+		mX0 = x0;
+		mY0 = y0;
+		mCellSize = (int)Math.max(1, (side + MAX_CELLS_PER_SIDE - 1) / MAX_CELLS_PER_SIDE);
+		mColumns = (int)(((long)x1 - x0 + mCellSize - 1) / mCellSize);
+		mRows = (int)(((long)y1 - y0 + mCellSize - 1) / mCellSize);
+		mCells = new int[mColumns * mRows][];
+		Arrays.fill(mCells, NONE);
+
+		for (int id = 0; id < boxes.length; id++) {
+			int[] box = boxes[id];
+			if (box == null || box[0] >= box[2] || box[1] >= box[3]) {
+				continue;
+			}
+			int column0 = (box[0] - x0) / mCellSize;
+			int column1 = (box[2] - 1 - x0) / mCellSize;
+			int row0 = (box[1] - y0) / mCellSize;
+			int row1 = (box[3] - 1 - y0) / mCellSize;
+			for (int row = row0; row <= row1; row++) {
+				for (int column = column0; column <= column1; column++) {
+					int cell = row * mColumns + column;
+					int[] ids = mCells[cell];
+					ids = Arrays.copyOf(ids, ids.length + 1);
+					ids[ids.length - 1] = id;
+					mCells[cell] = ids;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the ids, in increasing order, of the boxes that overlap the tile's grid cell. That includes every box containing
+	 * the tile, and maybe some that don't. The array must not be modified.
+	 */
+	int[] idsNear(int x, int y) {
+		if (x < mX0 || y < mY0) {
+			return NONE;
+		}
+		long column = ((long)x - mX0) / mCellSize;
+		long row = ((long)y - mY0) / mCellSize;
+		if (column >= mColumns || row >= mRows) {
+			return NONE;
+		}
+		return mCells[(int)row * mColumns + (int)column];
+	}
+}
@@ -23,45 +23,82 @@
 package uk.co.ordnancesurvey.android.maps;
 
 import java.io.File;
+import java.util.HashMap;
 
 final class TileCache extends CombinedLruCache<MapTile> {
 
-    private static TileCache INSTANCE;
+    /**
+     * Passed to the disk cache in place of the app's version, so that upgrading the app doesn't empty the cache. Changes to the
+     * entries are handled by {@link CacheRecord}, one entry at a time; changing this empties the cache. Caches written with the
+     * app's version, before there were records, are emptied once for that reason.
+     */
+    static final int FORMAT_VERSION = 1;
 
-    private static int memoryMB;
-    private static int diskMB;
-    private static File dir;
-    private static int appVersion;
+    // One per directory, since two caches writing the same files would overwrite each other's entries.
+    private static final HashMap<File, TileCache> INSTANCES = new HashMap<File, TileCache>();
 
+    // Used to identify the same instance.
+    private final int mMemoryMB;
+    private final int mDiskMB;
+    private final int mAppVersion;
+    private final boolean mMapped;
+    private final boolean mTranscoded;
 
-    private TileCache(int memoryMB, int diskMB, File dir, int appVersion) {
-        super(memoryMB, diskMB, dir, appVersion);
+
+    private TileCache(int memoryMB, int diskMB, int appVersion, boolean mapped, boolean transcoded, DiskTileCache diskCacheOrNull) {
+        super(memoryMB, diskCacheOrNull);
+        mMemoryMB = memoryMB;
+        mDiskMB = diskMB;
+        mAppVersion = appVersion;
+        mMapped = mapped;
+        mTranscoded = transcoded;
     }
 
     @Override
-    String stringForKey(MapTile key) {
-        return key.layer.productCode + "_" + key.x + "_" + key.y;
+    long longForKey(MapTile key) {
+        return key.key();
     }
 
-    public static synchronized TileCache newInstance(int memoryMB, int diskMB, File dir, int appVersion) {
-        if (INSTANCE != null &&
-            memoryMB == TileCache.memoryMB &&
-            diskMB == TileCache.diskMB &&
-            appVersion == TileCache.appVersion &&
-            dir.equals(TileCache.dir)) {
+    /**
+     * Returns the cache for the directory, opening it if necessary. If it is already open with different settings, the old
+     * cache is closed first, so it stops using the directory; anything still using it only has its memory tier.
+     *
+     * @param mapped Whether to use a {@link MappedTileStore} on disk instead of a {@link DiskLruCache}.
+     *     The two formats should be given different directories.
+     * @param transcoded Whether to store opaque tiles on disk as raw pixels, see {@link TranscodingDiskCache}. This should also
+     *     be given a different directory, because it holds fewer tiles.
+     */
+    public static synchronized TileCache newInstance(int memoryMB, int diskMB, File dir, int appVersion, boolean mapped, boolean transcoded) {
+        MemoryGovernor governor = MemoryGovernor.getInstance();
+        TileCache old = INSTANCES.get(dir);
+        if (old != null) {
+            if (memoryMB == old.mMemoryMB &&
+                diskMB == old.mDiskMB &&
+                appVersion == old.mAppVersion &&
+                mapped == old.mMapped &&
+                transcoded == old.mTranscoded) {
 
-            return INSTANCE;
+                return old;
+            }
+            governor.unregister(old);
+            old.close();
         }
 
-        INSTANCE = new TileCache(memoryMB, diskMB, dir, appVersion);
-
-        // used to identify same instance
-        TileCache.memoryMB = memoryMB;
-        TileCache.diskMB = diskMB;
-        TileCache.dir = dir;
-        TileCache.appVersion = appVersion;
-
-        return INSTANCE;
+        DiskTileCache diskCache = null;
+        if (diskMB > 0) {
+            if (mapped) {
+                diskCache = MappedTileStore.openOrNull(dir, appVersion, diskMB*1048576L);
+            } else {
+                diskCache = openDiskLruCacheTierOrNull(dir, appVersion, diskMB*1048576L, TileEvictionPolicy.getInstance());
+            }
+        }
+        if (diskCache != null && transcoded) {
+            diskCache = new TranscodingDiskCache(diskCache);
+        }
+        TileCache cache = new TileCache(memoryMB, diskMB, appVersion, mapped, transcoded, diskCache);
+        governor.register(cache, MemoryGovernor.PRIORITY_DATA);
+        INSTANCES.put(dir, cache);
+        return cache;
     }
 
 
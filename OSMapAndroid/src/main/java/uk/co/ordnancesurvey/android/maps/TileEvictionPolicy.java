@@ -0,0 +1,109 @@
+/**
+ * OpenSpace Android SDK Licence Terms
+ *
+ * The OpenSpace Android SDK is protected by © Crown copyright – Ordnance Survey 2013.[https://github.com/OrdnanceSurvey]
+ *
+ * All rights reserved (subject to the BSD licence terms as follows):.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided
+ * with the distribution.
+ *
+ * Neither the name of Ordnance Survey nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE
+ *
+ */
+package uk.co.ordnancesurvey.android.maps;
+
+/**
+ * Decides which tiles the on-disk {@link TileCache} keeps when it is full.
+ *
+ * A tile that is read back from disk gets credit according to its layer: small-scale layers such as the overviews cover the
+ * whole country in a few hundred tiles and are wanted by every session, so they get the most; the detailed layers get the
+ * least. A tile that has only been written, such as one from a long session zoomed in on a new area, has none, so those go
+ * first. Tiles that overlap a pinned region are never evicted unless the whole cache is pinned.
+ *
+ * There is one policy per process, like the cache. This class is threadsafe.
+ */
+final class TileEvictionPolicy implements DiskLruCache.EvictionPolicy {
+	private static final TileEvictionPolicy INSTANCE = new TileEvictionPolicy();
+
+	private volatile GridRect[] mPinnedRegions = new GridRect[0];
+
+	private TileEvictionPolicy() {
+	}
+
+	static TileEvictionPolicy getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Sets the regions whose tiles are pinned, at every zoom level. This takes effect for each tile the next time it is read or
+	 * written.
+	 */
+	void setPinnedRegions(GridRect[] regions) {
+		mPinnedRegions = (regions != null ? regions.clone() : new GridRect[0]);
+	}
+
+	/**
+	 * How many times a tile in the layer is kept when it would otherwise be evicted, after being read.
+	 */
+	static int creditForLayer(MapLayer layer) {
+		float metresPerPixel = layer.metresPerPixel;
+		if (metresPerPixel >= 100) {
+			return 8; // MS and the overviews
+		}
+		if (metresPerPixel >= 25) {
+			return 4; // 250K
+		}
+		if (metresPerPixel >= 5) {
+			return 2; // 50K
+		}
+		return 1;
+	}
+
+	private boolean isPinned(MapLayer layer, int x, int y) {
+		GridRect[] regions = mPinnedRegions;
+		if (regions.length == 0) {
+			return false;
+		}
+		double size = layer.tileSizeMetres;
+		double minX = x * size;
+		double minY = y * size;
+		for (GridRect region : regions) {
+			if (minX < region.maxX && region.minX < minX + size && minY < region.maxY && region.minY < minY + size) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private int credit(String key, boolean read) {
+		long tileKey = CombinedLruCache.longForString(key);
+		MapLayer layer = (tileKey >= 0 ? MapLayer.forIndex((int)(tileKey >>> 48)) : null);
+		if (layer == null) {
+			return 0;
+		}
+		if (isPinned(layer, (int)(tileKey >>> 24) & 0xffffff, (int)tileKey & 0xffffff)) {
+			return PINNED;
+		}
+		return (read ? creditForLayer(layer) : 0);
+	}
+
+	@Override
+	public int creditOnWrite(String key) {
+		return credit(key, false);
+	}
+
+	@Override
+	public int creditOnRead(String key) {
+		return credit(key, true);
+	}
+}
@@ -2,12 +2,16 @@ package uk.co.ordnancesurvey.android.maps;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.ReentrantLock;
 
 import android.annotation.TargetApi;
 import android.app.ActivityManager;
@@ -15,13 +19,11 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.content.pm.PackageManager.NameNotFoundException;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.os.Build;
-import android.util.Log;
+import android.os.SystemClock;
 
 /*
 final class TileData
@@ -30,65 +32,122 @@ final class TileData
 }
 */
 
-interface TileFetcherDelegate
-{
-	public abstract void tileReadyAsyncCallback(final MapTile tile, final Bitmap bmp);
-}
-
 /**
- * This class is NOT threadsafe. It is designed to be used from a single thread.
- * Do not call clear() or requestBitmapForTile() without first calling lock() and subsequently calling unlock()
- * 
+ * This class is NOT threadsafe. Apart from the threads it starts, it is designed to be used from a single thread (the GL thread).
+ * Each frame, call beginFrame(), then requestTile() and prefetchAround() for every tile the frame needs, then endFrame().
+ *
+ * The GL thread and the worker threads do not share a lock. The frame's requests are collected privately and handed to the
+ * workers by endFrame() through a {@link TileRequestQueue}, and workers claim requests by changing their state, so drawing a frame
+ * never waits for a worker and workers never wait for a frame to finish.
+ *
+ * requestTile() never loads or decodes anything itself, so it is cheap enough to call from onDrawFrame(). Each request first goes
+ * to a decode thread, which checks the cache and the synchronous sources (e.g. .ostiles databases) and decodes the bitmap. If
+ * neither has the tile, the request moves on to the fetch threads, which try the asynchronous sources. Either way the result
+ * comes back through {@link TileFetcherDelegate}.
+ *
+ * Neither queue is served in FIFO order. Each request is scored by its distance from the centre of the projection,
+ * how many zoom levels its layer is away from the projection's scale (so fallback layers come after the current layer) and how
+ * long it has been waiting. The queues are rebuilt every frame, so the scores are too.
+ *
+ * Requests that a worker thread has already picked up are cancelled by beginFrame() if they were not requested during the previous
+ * frame (the frame "generation") and are no longer near the viewport. Sources and fetch threads poll
+ * {@link TileRequest#isCancelled()} so that a cancelled tile is not downloaded, decoded or uploaded.
+ *
+ * Loads are shared with other TileFetchers in the process through {@link InFlightTileTable}, so two maps showing the same area
+ * only load and decode each tile once.
+ *
+ * Network failures are remembered by {@link FetchBackoff}, so failed tiles are not fetched again every frame. The delegate is
+ * asked to retry when the network comes back or a host's backoff expires.
+ *
+ * The number of fetch threads is not fixed; see {@link AdaptiveFetchPolicy}.
+ *
+ * prefetchAround() speculatively requests tiles just outside the viewport, stretched in the direction the map is moving, so that
+ * they are in the byte cache by the time they scroll into view. Prefetches are queued behind everything that is visible, are not
+ * decoded, and only go to the network while {@link AdaptiveFetchPolicy} has prefetch budget left.
  */
 final class TileFetcher {
 	private final static String TAG = "TileFetcher";
 
+	// Priorities are measured in screen pixels from the centre of the projection.
+	// A tile one zoom level away is treated as if it were this much further away...
+	private static final float LAYER_PENALTY_PX = 512;
+	// ... and waiting for a second makes up for this much distance, so a tile at the edge of the screen is not starved by a fling.
+	private static final float AGE_BONUS_PX_PER_MS = 0.25f;
+	private static final double LN2 = Math.log(2);
+	// In-flight requests further than this many zoom levels from the projection are cancelled.
+	private static final float MAX_ZOOM_LEVELS_AWAY = 4;
+	// Prefetches are treated as if they were this much further away, so they come after visible tiles.
+	private static final float PREFETCH_PENALTY_PX = 4096;
+	// How far ahead to prefetch along the scroll velocity...
+	private static final float PREFETCH_LOOKAHEAD_SECONDS = 0.5f;
+	// ... up to this many screens.
+	private static final float PREFETCH_MAX_LOOKAHEAD_SCREENS = 2;
+	// Tiles that have recently been prefetched, so we don't request them every frame.
+	private static final int PREFETCHED_TILES_CAPACITY = 512;
+	// Decoding is CPU-bound, so more threads than this would just compete with the GL thread.
+	private static final int MAX_DECODE_THREADS = 2;
+	// Decode threads take up to this many requests at a time, so synchronous sources can load them in one go.
+	private static final int MAX_DECODE_BATCH = 16;
+
 	private final Context mContext;
 	private final TileFetcherDelegate mDelegate;
-	private final ReentrantLock mLock = new ReentrantLock();
-	private final Condition mFull = mLock.newCondition();
-	
-	private final HashSet<MapTile> mRequests = new HashSet<MapTile>();
-	
-	private final LinkedList<MapTile> mFetches = new LinkedList<MapTile>();
+
+	// Requests waiting for a decode thread to check the cache and synchronous sources.
+	private final TileRequestQueue mDecodes = new TileRequestQueue(TileRequest.STATE_QUEUED_LOCAL);
+	// Requests waiting for a fetch thread to try the asynchronous sources.
+	private final TileRequestQueue mFetches = new TileRequestQueue(TileRequest.STATE_QUEUED_FETCH);
+
+	// The rest of these are only used by the GL thread.
+	// Every request that is queued or being loaded.
+	private final HashMap<MapTile, TileRequest> mRequests = new HashMap<MapTile, TileRequest>();
+	// This frame's requests, which endFrame() publishes to mDecodes and mFetches.
+	private final ArrayList<TileRequest> mFrameDecodes = new ArrayList<TileRequest>();
+	private final ArrayList<TileRequest> mFrameFetches = new ArrayList<TileRequest>();
+	// Requests retired by the last endFrame(). They are kept for a frame so that a tile which is requested again keeps its age.
+	private final HashMap<MapTile, TileRequest> mRetiredRequests = new HashMap<MapTile, TileRequest>();
+	private ScreenProjection mProjection;
+	private final LRUHashMap<MapTile, Boolean> mPrefetchedTiles = new LRUHashMap<MapTile, Boolean>(PREFETCHED_TILES_CAPACITY, 0.75f);
+	private final MapTile rPrefetchTile = new MapTile();
+	// Incremented once per frame by beginFrame().
+	private int mGeneration;
 	private volatile OSTileSource[] mVolatileSynchronousSources = new OSTileSource[0];
 	private volatile OSTileSource[] mVolatileAsynchronousSources = new OSTileSource[0];
+	// The cache ids of all the sources, so tiles cached from other sources aren't used.
+	private volatile int[] mVolatileCacheSourceIds = new int[0];
 	
 	// Threads are initially stopped.
-	private boolean mStopThread = true;
-	private final TileFetchThread mAsynchronousFetchThreads[] = new TileFetchThread[]{
-		new TileFetchThread(),
-		new TileFetchThread(),
-		//new TileFetchThread(),
-		//new TileFetchThread(),
-		//new TileFetchThread(),
-	};
+	private volatile boolean mStopThread = true;
+	// Running fetch threads. Threads remove themselves when they stop.
+	private final CopyOnWriteArrayList<TileFetchThread> mAsynchronousFetchThreads = new CopyOnWriteArrayList<TileFetchThread>();
+	// The number of fetch threads which have been started and haven't decided to stop. Changed with compareAndSet().
+	private final AtomicInteger mFetchThreadCount = new AtomicInteger();
+	private final AdaptiveFetchPolicy mFetchPolicy = new AdaptiveFetchPolicy();
+	// Only touched by start() and stop(), which are called from the same thread.
+	private TileDecodeThread[] mDecodeThreads = new TileDecodeThread[0];
 
 	private final TileCache mTileCache;
+	private final int mCacheMemoryMB;
+	private final InFlightTileTable mInFlightTiles = InFlightTileTable.getInstance();
+	private final TileMetrics mMetrics = TileMetrics.getInstance();
+	private final DecodedTileCache mDecodedTiles = DecodedTileCache.getInstance();
 
 	private boolean mNetworkReachable;
 
 	private final BroadcastReceiver mNetworkReceiver;
 	
-	public TileFetcher(Context context, TileFetcherDelegate delegate)
+	/**
+	 * @param mappedTileCache Whether the disk cache is a {@link MappedTileStore} rather than a {@link DiskLruCache}.
+	 * @param transcodedTileCache Whether the disk cache stores opaque tiles transcoded to raw pixels.
+	 */
+	public TileFetcher(Context context, TileFetcherDelegate delegate, boolean mappedTileCache, boolean transcodedTileCache)
 	{
 		mContext = context;
 		mDelegate = delegate;
 
 		ActivityManager activityManager = (ActivityManager)context.getSystemService(Context.ACTIVITY_SERVICE);
 		int memoryClass = activityManager.getMemoryClass();
-		int memoryMB = memoryClass/2;
-		int diskMB = 128;
-		File cacheDir = new File(context.getCacheDir(), "uk.co.ordnancesurvey.android.maps.TILE_CACHE");
-		int appVersion;
-		try {
-			appVersion = context.getPackageManager().getPackageInfo(context.getPackageName(), 0).versionCode;
-		} catch (NameNotFoundException e) {
-			Log.e(TAG, "Failed to get package version for " + context.getPackageName(), e);
-			assert !BuildConfig.DEBUG : "This shouldn't happen!";
-			appVersion = 1;
-		}
-		mTileCache = TileCache.newInstance(memoryMB, diskMB, cacheDir, appVersion);
+		mCacheMemoryMB = memoryClass/2;
+		mTileCache = newTileCache(mappedTileCache, transcodedTileCache);
 
 		mNetworkReceiver = new BroadcastReceiver() {
 			@Override 
@@ -100,6 +159,20 @@ final class TileFetcher {
 		start();
 	}
 
+	private TileCache newTileCache(boolean mapped, boolean transcoded)
+	{
+		int diskMB = 128;
+		// Keep the formats apart, so switching doesn't make either one read the other's files.
+		String dirName = (mapped ? "uk.co.ordnancesurvey.android.maps.TILE_STORE" : "uk.co.ordnancesurvey.android.maps.TILE_CACHE");
+		if (transcoded)
+		{
+			dirName += "_RGB565";
+		}
+		File cacheDir = new File(mContext.getCacheDir(), dirName);
+		// Not the app's version, so that upgrading the app doesn't throw the cache away. Entries are checked as they are read.
+		return TileCache.newInstance(mCacheMemoryMB, diskMB, cacheDir, TileCache.FORMAT_VERSION, mapped, transcoded);
+	}
+
 	public void setTileSources(Collection<OSTileSource> sources)
 	{
 		ArrayList<OSTileSource> synchronousSources = new ArrayList<OSTileSource>(sources.size());
@@ -112,24 +185,31 @@ final class TileFetcher {
 		}
 		mVolatileSynchronousSources = synchronousSources.toArray(new OSTileSource[0]);
 		mVolatileAsynchronousSources = asynchronousSources.toArray(new OSTileSource[0]);
+		int[] cacheSourceIds = new int[sources.size()];
+		int i = 0;
+		for (OSTileSource source : sources)
+		{
+			cacheSourceIds[i++] = source.getCacheSourceId();
+		}
+		mVolatileCacheSourceIds = cacheSourceIds;
 	}
 
-	// This can be called without holding a lock.
-	public void finishRequest(MapTile tile)
-	{
-		mRequests.remove(tile);
-	}
-
-	public void lock()
-	{
-		assert !mLock.isHeldByCurrentThread() : "This lock shouldn't need to be recursive";
-		mLock.lock();
-	}
-	
-	public void unlock()
+	// This must be called from the GL thread, but not necessarily between beginFrame() and endFrame().
+	public void finishRequest(TileRequest request)
 	{
-		assert mLock.isHeldByCurrentThread();
-		mLock.unlock();
+		// The request may have been cancelled and replaced by a newer request for the same tile.
+		if (mRequests.get(request.tile) == request)
+		{
+			mRequests.remove(request.tile);
+		}
+		if (request.prefetch && request.loaded)
+		{
+			mPrefetchedTiles.put(request.tile, Boolean.TRUE);
+			if (mPrefetchedTiles.size() > PREFETCHED_TILES_CAPACITY)
+			{
+				mPrefetchedTiles.remove(mPrefetchedTiles.getProbableEldestKey());
+			}
+		}
 	}
 
 	public void start()
@@ -143,10 +223,15 @@ final class TileFetcher {
 		joinAll();
 
 		mStopThread = false;
-		// TODO: Can threads be restarted like this?
-		for (TileFetchThread t : mAsynchronousFetchThreads) {
-			t.start();
+		// Threads can't be restarted, so start new ones.
+		int decodeThreadCount = Math.max(1, Math.min(MAX_DECODE_THREADS, Runtime.getRuntime().availableProcessors()));
+		mDecodeThreads = new TileDecodeThread[decodeThreadCount];
+		for (int i = 0; i < decodeThreadCount; i++)
+		{
+			mDecodeThreads[i] = new TileDecodeThread();
+			mDecodeThreads[i].start();
 		}
+		adjustThreadCount();
 
 		IntentFilter filter = new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION);
 		mContext.registerReceiver(mNetworkReceiver, filter);
@@ -156,8 +241,10 @@ final class TileFetcher {
 	{
 		assert mStopThread : "Threads should be stopped when we join.";
 
+		ArrayList<Thread> threads = new ArrayList<Thread>(Arrays.asList(mDecodeThreads));
+		threads.addAll(Arrays.asList(copyThreads()));
 		boolean interrupted = false;
-		for (TileFetchThread t : mAsynchronousFetchThreads) {
+		for (Thread t : threads) {
 			// Loosely modeled after android.os.SystemClock.sleep():
 			//   https://github.com/android/platform_frameworks_base/blob/android-4.2.2_r1/core/java/android/os/SystemClock.java#L108
 			for (;;) {
@@ -187,7 +274,15 @@ final class TileFetcher {
 			return;
 		}
 		mStopThread = true;
-		for (TileFetchThread t : mAsynchronousFetchThreads)
+		// Queued requests won't be loaded now, so let any other fetchers waiting on them try themselves.
+		// The GL thread queues them again if they are requested after we start again.
+		abandonRequests(mDecodes.retireAll());
+		abandonRequests(mFetches.retireAll());
+		for (TileDecodeThread t : mDecodeThreads)
+		{
+			t.interrupt();
+		}
+		for (TileFetchThread t : copyThreads())
 		{
 			t.interrupt();
 		}
@@ -195,19 +290,197 @@ final class TileFetcher {
 		mContext.unregisterReceiver(mNetworkReceiver);
 	}
 	
-	// This must be called with a lock held.
-	public void clear()
+	private TileFetchThread[] copyThreads()
 	{
-		assert mLock.isHeldByCurrentThread();
-		if(mFetches.size() == mRequests.size())
+		return mAsynchronousFetchThreads.toArray(new TileFetchThread[0]);
+	}
+
+	// Starts threads if the policy wants more. Surplus threads notice and stop themselves.
+	private void adjustThreadCount()
+	{
+		if (mStopThread)
 		{
-			mRequests.clear();
+			return;
 		}
-		else
+		int target = mFetchPolicy.getTargetThreadCount();
+		for (;;)
+		{
+			int count = mFetchThreadCount.get();
+			if (count >= target)
+			{
+				break;
+			}
+			if (mFetchThreadCount.compareAndSet(count, count+1))
+			{
+				TileFetchThread t = new TileFetchThread();
+				mAsynchronousFetchThreads.add(t);
+				t.start();
+			}
+		}
+		if (mFetchThreadCount.get() > target)
+		{
+			mFetches.wakeAll();
+		}
+	}
+
+	/**
+	 * Returns true if the calling fetch thread should stop because the pool is shrinking.
+	 * The thread is no longer counted, so other threads don't also decide to stop.
+	 */
+	private boolean shouldShrink()
+	{
+		for (;;)
+		{
+			int count = mFetchThreadCount.get();
+			if (count <= mFetchPolicy.getTargetThreadCount())
+			{
+				return false;
+			}
+			if (mFetchThreadCount.compareAndSet(count, count-1))
+			{
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Starts a frame. The projection is used to prioritise requests made until the next call.
+	 */
+	public void beginFrame(ScreenProjection projection)
+	{
+		mGeneration++;
+		mFrameDecodes.clear();
+		mFrameFetches.clear();
+		mProjection = projection;
+		cancelStaleRequests();
+		// This is called once a frame, so it's a convenient place to resize the pool.
+		adjustThreadCount();
+	}
+
+	/**
+	 * Hands this frame's requests to the worker threads, most urgent first. Queued requests which weren't requested this frame
+	 * are retired.
+	 */
+	public void endFrame()
+	{
+		// These weren't requested again last frame, so they are dropped for good.
+		mRetiredRequests.clear();
+		for (Iterator<TileRequest> it = mRequests.values().iterator(); it.hasNext(); )
+		{
+			TileRequest request = it.next();
+			if (request.generation == mGeneration && request.getState() != TileRequest.STATE_RETIRED)
+			{
+				continue;
+			}
+			if (retire(request))
+			{
+				it.remove();
+				mRetiredRequests.put(request.tile, request);
+			}
+		}
+
+		mMetrics.recordQueueDepths(mFrameDecodes.size(), mFrameFetches.size());
+		mDecodes.publish(sortedRequests(mFrameDecodes));
+		mFetches.publish(sortedRequests(mFrameFetches));
+		mFrameDecodes.clear();
+		mFrameFetches.clear();
+	}
+
+	private static TileRequest[] sortedRequests(ArrayList<TileRequest> requests)
+	{
+		Collections.sort(requests, TileRequest.COMPARE_PRIORITY);
+		return requests.toArray(new TileRequest[requests.size()]);
+	}
+
+	/**
+	 * Takes a request out of the queues if it is still waiting in one.
+	 * Returns false if a worker thread has already claimed it.
+	 */
+	private static boolean retire(TileRequest request)
+	{
+		int state = request.getState();
+		if (state == TileRequest.STATE_RETIRED)
+		{
+			return true;
+		}
+		if ((state == TileRequest.STATE_QUEUED_LOCAL || state == TileRequest.STATE_QUEUED_FETCH) &&
+				request.compareAndSetState(state, TileRequest.STATE_RETIRED))
+		{
+			// Nobody is going to load it now, so let any other fetchers waiting on it try themselves.
+			abandonRequests(Collections.singletonList(request));
+			return true;
+		}
+		return false;
+	}
+
+	private static void abandonRequests(Collection<TileRequest> requests)
+	{
+		for (TileRequest request : requests)
+		{
+			InFlightTileTable.InFlightTile inFlight = request.inFlight;
+			if (inFlight != null)
+			{
+				request.inFlight = null;
+				inFlight.complete(null, false);
+			}
+		}
+	}
+
+	private void cancelStaleRequests()
+	{
+		ScreenProjection projection = mProjection;
+		if (projection == null || mRequests.isEmpty())
 		{
-			mRequests.removeAll(mFetches);
+			return;
+		}
+		GridRect viewport = projection.getExpandedVisibleMapRect();
+		float metresPerPixel = projection.getMetresPerPixel();
+		int previousGeneration = mGeneration - 1;
+		for (Iterator<TileRequest> it = mRequests.values().iterator(); it.hasNext(); )
+		{
+			TileRequest request = it.next();
+			if (request.generation == previousGeneration || isNearViewport(request.tile, viewport, metresPerPixel))
+			{
+				continue;
+			}
+			request.cancel();
+			mMetrics.recordCancellation();
+			it.remove();
 		}
-		mFetches.clear();
+	}
+
+	private static boolean isNearViewport(MapTile tile, GridRect viewport, float metresPerPixel)
+	{
+		MapLayer layer = tile.layer;
+		float zoomLevels = Math.abs((float)(Math.log(layer.metresPerPixel/metresPerPixel) / LN2));
+		if (zoomLevels > MAX_ZOOM_LEVELS_AWAY)
+		{
+			return false;
+		}
+		double minX = tile.x * (double)layer.tileSizeMetres;
+		double minY = tile.y * (double)layer.tileSizeMetres;
+		return minX < viewport.maxX && viewport.minX < minX + layer.tileSizeMetres &&
+				minY < viewport.maxY && viewport.minY < minY + layer.tileSizeMetres;
+	}
+
+	private float priorityForTile(MapTile tile, long ageMillis)
+	{
+		ScreenProjection projection = mProjection;
+		if (projection == null)
+		{
+			// Fall back to FIFO.
+			return -ageMillis;
+		}
+		MapLayer layer = tile.layer;
+		GridPoint centre = projection.getCenter();
+		float metresPerPixel = projection.getMetresPerPixel();
+
+		double dx = (tile.x + 0.5) * layer.tileSizeMetres - centre.x;
+		double dy = (tile.y + 0.5) * layer.tileSizeMetres - centre.y;
+		float distancePx = (float)(Math.sqrt(dx*dx + dy*dy) / metresPerPixel);
+		float zoomLevels = Math.abs((float)(Math.log(layer.metresPerPixel/metresPerPixel) / LN2));
+
+		return distancePx + zoomLevels * LAYER_PENALTY_PX - ageMillis * AGE_BONUS_PX_PER_MS;
 	}
 
 	private static int[] getNetworkTypes() {
@@ -248,58 +521,236 @@ final class TileFetcher {
 		final int NETWORK_TYPES[] = getNetworkTypes();
 
 		boolean reachable = false;
+		int networkType = -1;
 		for(int testType : NETWORK_TYPES) {
 			NetworkInfo nwInfo = connectivityManager.getNetworkInfo(testType);
 			if(nwInfo != null && nwInfo.isConnectedOrConnecting()) {
 				reachable = true;
+				networkType = testType;
 				break;
 			}
 		}
 
+		// The GL thread picks up the new limits next frame.
+		mFetchPolicy.setNetworkType(networkType);
+
 		boolean wasReachable = mNetworkReachable;
 		mNetworkReachable = reachable;
 		if(reachable && !wasReachable)
 		{
 			// We have a network. If this is newly available, we should pump any outstanding requests.
+			// Requests are rebuilt every frame, so that means drawing again without the backoff from while we were offline.
+			FetchBackoff.getInstance().onNetworkReachable();
+			if (mDelegate != null)
+			{
+				mDelegate.retryAsyncCallback(0);
+			}
 		}
 	}
 	
-	// This must be called with a lock held
-	public Bitmap requestBitmapForTile(MapTile tile, boolean asyncFetchOK)
+	// This must be called between beginFrame() and endFrame().
+	public void requestTile(MapTile tile, boolean asyncFetchOK)
+	{
+		requestTile(tile, asyncFetchOK, false);
+	}
+
+	private void requestTile(MapTile tile, boolean asyncFetchOK, boolean prefetch)
 	{
-		assert mLock.isHeldByCurrentThread();
-		// Attempt a synchronous response.
-		Bitmap bmp = bitmapForTile(tile, true);
-		if(!asyncFetchOK || bmp != null || mDelegate == null)
+		if (mDelegate == null)
 		{
-			return bmp;
+			return;
 		}
 
-		// Copy the tile!
-		tile = new MapTile(tile);
+		long now = SystemClock.uptimeMillis();
+		TileRequest existing = mRequests.get(tile);
+		if(existing != null)
+		{
+			// Already requested this frame, or queued or being loaded. Either way it's still wanted.
+			if (asyncFetchOK)
+			{
+				existing.asyncFetchOK = true;
+			}
+			if (!prefetch)
+			{
+				existing.prefetch = false;
+			}
+			if (existing.generation == mGeneration)
+			{
+				return;
+			}
+			existing.generation = mGeneration;
+			int state = existing.getState();
+			if (state == TileRequest.STATE_QUEUED_LOCAL || state == TileRequest.STATE_QUEUED_FETCH || state == TileRequest.STATE_RETIRED)
+			{
+				// It's still waiting (or was retired by stop()), so queue it again this frame with a new priority.
+				// If a worker claims it in the meantime, it just won't be claimed again.
+				queueRequest(existing, now);
+			}
+			return;
+		}
 
-		if(mRequests.add(tile))
+		TileRequest request = mRetiredRequests.remove(tile);
+		if (request == null)
 		{
-			mFetches.add(tile);
-			if(mFetches.size() == 1)
+			// Copy the tile!
+			request = new TileRequest(new MapTile(tile), now);
+		}
+		request.generation = mGeneration;
+		request.asyncFetchOK = asyncFetchOK;
+		request.prefetch = prefetch;
+		mRequests.put(request.tile, request);
+		queueRequest(request, now);
+	}
+
+	// Adds a request which the GL thread owns, or which is already queued, to this frame's queues.
+	private void queueRequest(TileRequest request, long now)
+	{
+		request.priority = priorityForTile(request.tile, now - request.firstRequestedUptimeMillis);
+		if (request.prefetch)
+		{
+			request.priority += PREFETCH_PENALTY_PX;
+		}
+
+		int state = request.getState();
+		if (state == TileRequest.STATE_QUEUED_LOCAL)
+		{
+			mFrameDecodes.add(request);
+		}
+		else if (state == TileRequest.STATE_QUEUED_FETCH)
+		{
+			mFrameFetches.add(request);
+		}
+		else if (!request.localMiss)
+		{
+			assert state == TileRequest.STATE_RETIRED;
+			request.setState(TileRequest.STATE_QUEUED_LOCAL);
+			mFrameDecodes.add(request);
+		}
+		// A decode thread missed it before, so don't look locally again.
+		else if (request.asyncFetchOK && (!request.prefetch || mFetchPolicy.startPrefetch(now)))
+		{
+			request.setState(TileRequest.STATE_QUEUED_FETCH);
+			mFrameFetches.add(request);
+		}
+		else
+		{
+			// Leave it retired. endFrame() moves it to mRetiredRequests.
+		}
+	}
+
+	/**
+	 * Prefetches tiles of the given layer within ringTiles tiles of the projection's visible rect. The ring is stretched in the
+	 * direction of the velocity (in metres per second).
+	 * This must be called between beginFrame() and endFrame(), after the visible tiles have been requested.
+	 */
+	public void prefetchAround(MapLayer layer, int ringTiles, float velocityX, float velocityY)
+	{
+		ScreenProjection projection = mProjection;
+		if (projection == null || layer == null || mDelegate == null)
+		{
+			return;
+		}
+
+		GridRect visible = projection.getVisibleMapRect();
+		double maxLookaheadX = (visible.maxX - visible.minX) * PREFETCH_MAX_LOOKAHEAD_SCREENS;
+		double maxLookaheadY = (visible.maxY - visible.minY) * PREFETCH_MAX_LOOKAHEAD_SCREENS;
+		double lookaheadX = Math.max(-maxLookaheadX, Math.min(maxLookaheadX, velocityX * PREFETCH_LOOKAHEAD_SECONDS));
+		double lookaheadY = Math.max(-maxLookaheadY, Math.min(maxLookaheadY, velocityY * PREFETCH_LOOKAHEAD_SECONDS));
+
+		float tileSize = layer.tileSizeMetres;
+		int minX = (int)Math.floor((visible.minX + Math.min(0, lookaheadX))/tileSize) - ringTiles;
+		int minY = (int)Math.floor((visible.minY + Math.min(0, lookaheadY))/tileSize) - ringTiles;
+		int maxX = (int)Math.ceil((visible.maxX + Math.max(0, lookaheadX))/tileSize) - 1 + ringTiles;
+		int maxY = (int)Math.ceil((visible.maxY + Math.max(0, lookaheadY))/tileSize) - 1 + ringTiles;
+
+		// Don't prefetch off the edge of the grid.
+		minX = Math.max(minX, 0);
+		minY = Math.max(minY, 0);
+		maxX = Math.min(maxX, (int)Math.ceil(GridPoint.GRID_WIDTH/tileSize) - 1);
+		maxY = Math.min(maxY, (int)Math.ceil(GridPoint.GRID_HEIGHT/tileSize) - 1);
+
+		MapTile tile = rPrefetchTile;
+		for (int y = minY; y <= maxY; y++)
+		{
+			for (int x = minX; x <= maxX; x++)
 			{
-				mFull.signal();
+				// Visible tiles which the renderer needed have already been requested, so this won't touch them.
+				tile.set(x, y, layer);
+				if (mPrefetchedTiles.containsKey(tile))
+				{
+					continue;
+				}
+				requestTile(tile, true, true);
 			}
 		}
-		return null;
 	}
-		
-	private Bitmap bitmapForTile(MapTile tile, boolean synchronous)
+
+	/**
+	 * Loads tiles from the cache or, failing that, the synchronous sources, and adds the latter to the cache.
+	 * Tiles which weren't found are left out of the result.
+	 */
+	private Map<MapTile, byte[]> localDataForTiles(List<TileRequest> requests)
 	{
-		if (synchronous)
+		HashMap<MapTile, byte[]> found = new HashMap<MapTile, byte[]>();
+		int[] cacheSourceIds = mVolatileCacheSourceIds;
+		ArrayList<MapTile> misses = new ArrayList<MapTile>(requests.size());
+		for (TileRequest request : requests)
 		{
-			byte[] data = mTileCache.get(tile);
+			byte[] data = mTileCache.get(request.tile, cacheSourceIds);
 			if (data != null)
 			{
-				return BitmapFactory.decodeByteArray(data, 0, data.length);
+				found.put(request.tile, data);
+			}
+			else if (!request.isCancelled())
+			{
+				misses.add(request.tile);
+			}
+		}
+
+		for (OSTileSource source : mVolatileSynchronousSources)
+		{
+			if (misses.isEmpty())
+			{
+				break;
+			}
+			// Don't try to fetch if the network is down.
+			if(source.isNetwork() && !mNetworkReachable)
+			{
+				continue;
+			}
+			long startMillis = SystemClock.uptimeMillis();
+			Map<MapTile, byte[]> sourceData = source.dataForTiles(misses);
+			long bytes = 0;
+			for (byte[] data : sourceData.values())
+			{
+				bytes += data.length;
+			}
+			mMetrics.recordSourceLoad(source, SystemClock.uptimeMillis() - startMillis, sourceData.size(), misses.size() - sourceData.size(), bytes);
+			if (sourceData.isEmpty())
+			{
+				continue;
+			}
+			for (Iterator<MapTile> it = misses.iterator(); it.hasNext(); )
+			{
+				MapTile tile = it.next();
+				byte[] data = sourceData.get(tile);
+				if (data != null)
+				{
+					found.put(tile, data);
+					mTileCache.putAsync(tile, data, source.getCacheSourceId());
+					it.remove();
+				}
 			}
 		}
-		OSTileSource[] sources = synchronous ? mVolatileSynchronousSources : mVolatileAsynchronousSources;
+		return found;
+	}
+
+	/**
+	 * Loads tile data from the first source that has it and adds it to the cache.
+	 * Returns null if the request is cancelled.
+	 */
+	private byte[] dataFromSources(MapTile tile, OSTileSource[] sources, TileRequest requestOrNull)
+	{
 		for (OSTileSource source : sources)
 		{
 			// Don't try to fetch if the network is down.
@@ -307,55 +758,299 @@ final class TileFetcher {
 			{
 				continue;
 			}
-			byte[] data = source.dataForTile(tile);
+			if (requestOrNull != null && requestOrNull.isCancelled())
+			{
+				return null;
+			}
+			long startMillis = SystemClock.uptimeMillis();
+			byte[] data = source.dataForTile(tile, requestOrNull);
+			long millis = SystemClock.uptimeMillis() - startMillis;
 			if (data == null)
 			{
+				// A cancelled load says nothing about the source.
+				if (requestOrNull == null || !requestOrNull.isCancelled())
+				{
+					mMetrics.recordSourceLoad(source, millis, 0, 1, 0);
+				}
 				continue;
 			}
-			mTileCache.putAsync(new MapTile(tile), data);
-			return BitmapFactory.decodeByteArray(data, 0, data.length);
+			mMetrics.recordSourceLoad(source, millis, 1, 0, data.length);
+			mTileCache.putAsync(tile, data, source.getCacheSourceId());
+			return data;
 		}
 		// TODO how are we handling errors?
 		return null;
 	}
 
 	// A non-private function so we don't get TileFetcher.access$2 in Traceview.
-	void threadFunc()
+	void decodeThreadFunc()
 	{
+		ArrayList<TileRequest> batch = new ArrayList<TileRequest>(MAX_DECODE_BATCH);
 		while(!mStopThread)
 		{
-			// Pull an object off the stack, or wait till an object is added.
-			// Wait until the queue is not empty.
-			MapTile tile = null;
+			batch.clear();
+			if (!takeDecodes(batch))
+			{
+				return;
+			}
 
-			mLock.lock();
-			try
+			for (Iterator<TileRequest> it = batch.iterator(); it.hasNext(); )
 			{
-				while(tile == null)
+				TileRequest request = it.next();
+				if (request.isCancelled())
 				{
-					tile = mFetches.pollFirst();
-					if(tile == null)
+					completeRequest(request, null);
+					it.remove();
+				}
+				else if (!joinInFlight(request))
+				{
+					// Another fetcher is loading it and will call back.
+					it.remove();
+				}
+				else
+				{
+					// If it's already decoded, it doesn't need loading either.
+					Bitmap bmp = mDecodedTiles.get(request.tile);
+					if (bmp != null)
 					{
-						try
-						{
-							mFull.await();
-						} catch(InterruptedException e) {
-							if (mStopThread) {
-								return;
-							}
-						}
+						request.loaded = true;
+						completeRequest(request, bmp);
+						it.remove();
 					}
 				}
-			} finally {
-				mLock.unlock();
 			}
+			if (batch.isEmpty())
+			{
+				continue;
+			}
+
+			Map<MapTile, byte[]> found = localDataForTiles(batch);
+			for (TileRequest request : batch)
+			{
+				decodeOrFetch(request, found.get(request.tile));
+			}
+		}
+	}
 
-			Bitmap bmp = bitmapForTile(tile, false);
-			mDelegate.tileReadyAsyncCallback(tile, bmp);
+	// Decodes a request's data, or hands it to the fetch threads if there isn't any.
+	private void decodeOrFetch(TileRequest request, byte[] data)
+	{
+		boolean prefetch = request.prefetch;
+		if (data != null)
+		{
+			request.loaded = true;
+		}
+		else if (!request.isCancelled() && request.asyncFetchOK &&
+				(!prefetch || mFetchPolicy.startPrefetch(SystemClock.uptimeMillis())) && moveToFetches(request))
+		{
+			// A fetch thread will call back.
+			return;
+		}
+
+		Bitmap bmp = null;
+		if (data != null && wantsBitmap(request, prefetch))
+		{
+			bmp = decode(request.tile, data);
+		}
+		completeRequest(request, bmp);
+	}
+
+	// Decodes the tile into the decoded tile cache and returns a reference to it.
+	private Bitmap decode(MapTile tile, byte[] data)
+	{
+		long startMillis = SystemClock.uptimeMillis();
+		Bitmap bmp = mDecodedTiles.decode(tile, data);
+		mMetrics.recordDecode(SystemClock.uptimeMillis() - startMillis);
+		if (bmp != null)
+		{
+			mDecodedTiles.put(tile, bmp);
+		}
+		return bmp;
+	}
+
+	/**
+	 * Makes the request the one loading its tile for the whole process, unless it is already.
+	 * Returns false if another request is loading the tile, in which case this one has been attached to it.
+	 */
+	private boolean joinInFlight(TileRequest request)
+	{
+		if (request.inFlight == null)
+		{
+			request.inFlight = mInFlightTiles.join(request, mDelegate);
+		}
+		return request.inFlight != null;
+	}
+
+	private static boolean wantsBitmap(TileRequest request, boolean prefetch)
+	{
+		// Prefetches only need to be in the cache, but someone else might be waiting on it.
+		if (!prefetch && !request.isCancelled())
+		{
+			return true;
+		}
+		InFlightTileTable.InFlightTile inFlight = request.inFlight;
+		return inFlight != null && inFlight.waiterWantsBitmap();
+	}
+
+	// Calls back the request and any requests from other fetchers that were waiting on it.
+	// The bitmap, if any, is a reference from mDecodedTiles, which is handed over.
+	private void completeRequest(TileRequest request, Bitmap bmp)
+	{
+		InFlightTileTable.InFlightTile inFlight = request.inFlight;
+		if (inFlight != null)
+		{
+			request.inFlight = null;
+			inFlight.complete(bmp, request.loaded);
+		}
+		if (bmp != null && request.prefetch)
+		{
+			mDecodedTiles.release(bmp);
+			bmp = null;
+		}
+		mDelegate.tileReadyAsyncCallback(request, bmp);
+	}
+
+	/**
+	 * Claims the most urgent requests into the batch, waiting till one is published. Some are left for the other decode threads.
+	 * Returns false if the thread should stop.
+	 */
+	private boolean takeDecodes(List<TileRequest> batch)
+	{
+		while (!mStopThread)
+		{
+			TileRequest request = mDecodes.take();
+			if (request == null)
+			{
+				// Woken up without any work. Loop around and check mStopThread.
+				continue;
+			}
+			batch.add(request);
+			int count = Math.min(MAX_DECODE_BATCH, 1 + mDecodes.remaining() / MAX_DECODE_THREADS);
+			while (batch.size() < count && (request = mDecodes.poll()) != null)
+			{
+				batch.add(request);
+			}
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Hands a request that missed the cache and synchronous sources to the fetch threads.
+	 * Returns false if the request is no longer wanted, in which case the caller still needs to call back.
+	 */
+	private boolean moveToFetches(TileRequest request)
+	{
+		request.localMiss = true;
+		if (request.isCancelled())
+		{
+			return false;
+		}
+		// We've claimed the request, so nobody else can change its state. If it's still wanted next frame, the GL thread
+		// will queue it again by priority.
+		request.setState(TileRequest.STATE_QUEUED_FETCH);
+		mFetches.offer(request);
+		return true;
+	}
+
+	// A non-private function so we don't get TileFetcher.access$2 in Traceview.
+	void threadFunc(TileFetchThread thread)
+	{
+		boolean counted = true;
+		try
+		{
+			while(!mStopThread)
+			{
+				if (shouldShrink())
+				{
+					counted = false;
+					return;
+				}
+				TileRequest request = mFetches.take();
+				if (request == null)
+				{
+					// Woken up without any work. Loop around and check whether we should stop.
+					continue;
+				}
+
+				if (request.isCancelled())
+				{
+					completeRequest(request, null);
+					continue;
+				}
+				// Requests that were requeued after a local miss might not be loading the tile any more.
+				if (!joinInFlight(request))
+				{
+					continue;
+				}
+
+				long fetchStartMillis = SystemClock.uptimeMillis();
+				long fetchStartCpuMillis = SystemClock.currentThreadTimeMillis();
+				byte[] data = dataFromSources(request.tile, mVolatileAsynchronousSources, request);
+				long fetchEndMillis = SystemClock.uptimeMillis();
+				long fetchEndCpuMillis = SystemClock.currentThreadTimeMillis();
+
+				boolean prefetch = request.prefetch;
+				if (data != null)
+				{
+					request.loaded = true;
+					if (prefetch)
+					{
+						mFetchPolicy.recordPrefetchBytes(data.length);
+					}
+				}
+
+				Bitmap bmp = null;
+				// If the request was cancelled while we were fetching, the data is in the cache but there's no point decoding it.
+				if (data != null && wantsBitmap(request, prefetch))
+				{
+					bmp = decode(request.tile, data);
+				}
+				long decodeMillis = (bmp == null ? 0 : SystemClock.uptimeMillis() - fetchEndMillis);
+
+				// Don't let undecoded prefetches drag the average decode time down.
+				if (data != null && !prefetch)
+				{
+					// This is racy, but it's only a hint.
+					mFetchPolicy.recordFetch(fetchEndMillis-fetchStartMillis, fetchEndCpuMillis-fetchStartCpuMillis, decodeMillis, mFetches.remaining(), fetchEndMillis);
+				}
+				completeRequest(request, bmp);
+
+				if (data == null && !request.isCancelled())
+				{
+					// If it failed because a host is backing off, try again when it stops.
+					long retryMillis = FetchBackoff.getInstance().millisUntilNextHostRetry(SystemClock.uptimeMillis());
+					if (retryMillis >= 0)
+					{
+						mDelegate.retryAsyncCallback(retryMillis);
+					}
+				}
+			}
+		}
+		finally
+		{
+			mAsynchronousFetchThreads.remove(thread);
+			if (counted)
+			{
+				mFetchThreadCount.decrementAndGet();
+			}
 		}
 	}
 
 	static final AtomicLong sThreadNum = new AtomicLong();
+	private class TileDecodeThread extends Thread
+	{
+		public TileDecodeThread() {
+			this.setName("TileDecodeThread-" + sThreadNum.incrementAndGet());
+		}
+		@Override
+		public void run()
+		{
+			decodeThreadFunc();
+		}
+	};
+
+
 	private class TileFetchThread extends Thread
 	{
 		public TileFetchThread() {
@@ -367,7 +1062,7 @@ final class TileFetcher {
 		@Override
 		public void run()
 		{
-			threadFunc();
+			threadFunc(this);
 		}
 	};
 }
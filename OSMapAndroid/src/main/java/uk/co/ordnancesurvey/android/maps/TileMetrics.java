@@ -0,0 +1,570 @@
+/**
+ * OpenSpace Android SDK Licence Terms
+ *
+ * The OpenSpace Android SDK is protected by © Crown copyright – Ordnance Survey 2013.[https://github.com/OrdnanceSurvey]
+ *
+ * All rights reserved (subject to the BSD licence terms as follows):.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided
+ * with the distribution.
+ *
+ * Neither the name of Ordnance Survey nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE
+ *
+ */
+package uk.co.ordnancesurvey.android.maps;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.os.SystemClock;
+
+/**
+ * Counters and histograms describing how map tiles are loaded, for every map in the process.
+ *
+ * Recording only increments atomic counters, so the metrics are always collected, including in release builds. Call
+ * {@link #getSnapshot()} to read them (e.g. periodically, to send to your own analytics) and {@link #reset()} to start again.
+ *
+ * This class is threadsafe.
+ */
+public final class TileMetrics {
+	private static final TileMetrics INSTANCE = new TileMetrics();
+
+	/**
+	 * The number of histogram buckets. Bucket 0 counts times under 1 ms, bucket i counts times from 2<sup>i-1</sup> ms up to
+	 * 2<sup>i</sup> ms, and the last bucket counts everything longer.
+	 */
+	public static final int HISTOGRAM_BUCKETS = 18;
+
+	/**
+	 * An immutable histogram of times in milliseconds, with buckets which double in size.
+	 */
+	public static final class Histogram {
+		private final long[] mCounts;
+		private final long mCount;
+		private final long mTotalMillis;
+
+		Histogram(long[] counts, long totalMillis) {
+			long count = 0;
+			for (long c : counts) {
+				count += c;
+			}
+			mCounts = counts;
+			mCount = count;
+			mTotalMillis = totalMillis;
+		}
+
+		/**
+		 * The number of times recorded.
+		 */
+		public long getCount() {
+			return mCount;
+		}
+
+		/**
+		 * The sum of the times recorded, in milliseconds.
+		 */
+		public long getTotalMillis() {
+			return mTotalMillis;
+		}
+
+		/**
+		 * The mean time in milliseconds, or 0 if nothing was recorded.
+		 */
+		public float getMeanMillis() {
+			return (mCount == 0 ? 0 : mTotalMillis / (float)mCount);
+		}
+
+		/**
+		 * The number of times recorded in a bucket.
+		 *
+		 * @param bucket From 0 to {@link TileMetrics#HISTOGRAM_BUCKETS}-1.
+		 */
+		public long getBucketCount(int bucket) {
+			return mCounts[bucket];
+		}
+
+		/**
+		 * The (exclusive) upper bound of a bucket in milliseconds, or Long.MAX_VALUE for the last bucket.
+		 *
+		 * @param bucket From 0 to {@link TileMetrics#HISTOGRAM_BUCKETS}-1.
+		 */
+		public static long getBucketUpperBoundMillis(int bucket) {
+			if (bucket < 0 || bucket >= HISTOGRAM_BUCKETS) {
+				throw new IndexOutOfBoundsException("No histogram bucket " + bucket);
+			}
+			return (bucket == HISTOGRAM_BUCKETS-1 ? Long.MAX_VALUE : 1L << bucket);
+		}
+
+		/**
+		 * An upper bound on the given percentile: the upper bound of the bucket it falls in. Returns 0 if nothing was recorded.
+		 *
+		 * @param percentile From 0 to 100.
+		 */
+		public long getPercentileMillis(float percentile) {
+			if (mCount == 0) {
+				return 0;
+			}
+			long rank = (long)Math.ceil(mCount * (double)percentile / 100);
+			long seen = 0;
+			for (int i = 0; i < mCounts.length; i++) {
+				seen += mCounts[i];
+				if (seen >= rank && seen > 0) {
+					return getBucketUpperBoundMillis(i);
+				}
+			}
+			return Long.MAX_VALUE;
+		}
+
+		JSONObject toJSON() throws JSONException {
+			JSONArray buckets = new JSONArray();
+			for (long c : mCounts) {
+				buckets.put(c);
+			}
+			JSONObject json = new JSONObject();
+			json.put("count", mCount);
+			json.put("totalMillis", mTotalMillis);
+			json.put("buckets", buckets);
+			return json;
+		}
+	}
+
+	/**
+	 * How a tile source has performed.
+	 */
+	public static final class SourceStats {
+		/**
+		 * How long each load took. Sources which load several tiles at once (e.g. offline databases) record one time per batch.
+		 */
+		public final Histogram latency;
+		/**
+		 * The number of tiles loaded.
+		 */
+		public final long tilesLoaded;
+		/**
+		 * The number of tiles which the source didn't have, or failed to load.
+		 */
+		public final long tilesMissed;
+		/**
+		 * The number of bytes of tile data loaded.
+		 */
+		public final long bytesLoaded;
+
+		SourceStats(Histogram latency, long tilesLoaded, long tilesMissed, long bytesLoaded) {
+			this.latency = latency;
+			this.tilesLoaded = tilesLoaded;
+			this.tilesMissed = tilesMissed;
+			this.bytesLoaded = bytesLoaded;
+		}
+	}
+
+	/**
+	 * An immutable copy of the metrics at a point in time.
+	 */
+	public static final class Snapshot {
+		/**
+		 * When the metrics were last reset (or the process started), in {@link SystemClock#uptimeMillis()}.
+		 */
+		public final long sinceUptimeMillis;
+		/**
+		 * When this snapshot was taken, in {@link SystemClock#uptimeMillis()}.
+		 */
+		public final long uptimeMillis;
+		/**
+		 * Stats for each tile source, by source name.
+		 */
+		public final Map<String, SourceStats> sources;
+		/**
+		 * The number of bytes loaded from the network by all sources.
+		 */
+		public final long bytesDownloaded;
+		/**
+		 * How long each tile took to decode.
+		 */
+		public final Histogram decodeTimes;
+		/**
+		 * How long each tile took from being requested by a map until it was ready to draw.
+		 */
+		public final Histogram timeToFirstDraw;
+		/**
+		 * The number of tile requests cancelled because the map moved away before they were loaded.
+		 */
+		public final long cancellations;
+		/**
+		 * The number of requests waiting to be looked up locally and decoded, and waiting to be fetched, at the end of the most
+		 * recent frame drawn by any map.
+		 */
+		public final int decodeQueueDepth;
+		public final int fetchQueueDepth;
+		/**
+		 * The largest queue depths seen.
+		 */
+		public final int peakDecodeQueueDepth;
+		public final int peakFetchQueueDepth;
+		/**
+		 * Lookups in the in-memory cache of decoded tiles, the in-memory and on-disk caches of tile data, and the GL texture
+		 * caches of all maps. Each cache is only looked in when the one before it misses.
+		 */
+		public final long decodedCacheLookups;
+		public final long decodedCacheHits;
+		public final long memoryCacheLookups;
+		public final long memoryCacheHits;
+		public final long diskCacheLookups;
+		public final long diskCacheHits;
+		/**
+		 * Disk cache entries that failed their checksum, and so were treated as misses.
+		 */
+		public final long diskCacheCorrupt;
+		public final long glCacheLookups;
+		public final long glCacheHits;
+		/**
+		 * Attempts to take a bitmap to decode into from the pool of unused bitmaps, and how many succeeded. Every miss allocates a
+		 * new bitmap. The pool is only used on API level 11 and later.
+		 */
+		public final long bitmapPoolLookups;
+		public final long bitmapPoolHits;
+		/**
+		 * Tiles written to the disk cache, the batches they were written in, and tiles that were left out because too many were
+		 * already waiting to be written.
+		 */
+		public final long diskWrites;
+		public final long diskWriteBatches;
+		public final long diskWritesDropped;
+		/**
+		 * The ComponentCallbacks2.onTrimMemory() level the caches are currently limited for (0 if they aren't), and how many
+		 * times the limits have changed.
+		 */
+		public final int memoryTrimLevel;
+		public final long memoryTrims;
+
+		Snapshot(Recorders recorders) {
+			sinceUptimeMillis = recorders.sinceUptimeMillis;
+			uptimeMillis = SystemClock.uptimeMillis();
+			HashMap<String, SourceStats> sourceStats = new HashMap<String, SourceStats>();
+			for (Map.Entry<String, SourceRecorder> entry : recorders.sources.entrySet()) {
+				sourceStats.put(entry.getKey(), entry.getValue().snapshot());
+			}
+			sources = Collections.unmodifiableMap(sourceStats);
+			bytesDownloaded = recorders.bytesDownloaded.get();
+			decodeTimes = recorders.decodeTimes.snapshot();
+			timeToFirstDraw = recorders.timeToFirstDraw.snapshot();
+			cancellations = recorders.cancellations.get();
+			decodeQueueDepth = recorders.decodeQueueDepth.get();
+			fetchQueueDepth = recorders.fetchQueueDepth.get();
+			peakDecodeQueueDepth = recorders.peakDecodeQueueDepth.get();
+			peakFetchQueueDepth = recorders.peakFetchQueueDepth.get();
+			decodedCacheLookups = recorders.decodedCacheLookups.get();
+			decodedCacheHits = recorders.decodedCacheHits.get();
+			memoryCacheLookups = recorders.memoryCacheLookups.get();
+			memoryCacheHits = recorders.memoryCacheHits.get();
+			diskCacheLookups = recorders.diskCacheLookups.get();
+			diskCacheHits = recorders.diskCacheHits.get();
+			diskCacheCorrupt = recorders.diskCacheCorrupt.get();
+			glCacheLookups = recorders.glCacheLookups.get();
+			glCacheHits = recorders.glCacheHits.get();
+			bitmapPoolLookups = recorders.bitmapPoolLookups.get();
+			bitmapPoolHits = recorders.bitmapPoolHits.get();
+			diskWrites = recorders.diskWrites.get();
+			diskWriteBatches = recorders.diskWriteBatches.get();
+			diskWritesDropped = recorders.diskWritesDropped.get();
+			memoryTrimLevel = recorders.memoryTrimLevel.get();
+			memoryTrims = recorders.memoryTrims.get();
+		}
+
+		public float getDecodedCacheHitRatio() {
+			return ratio(decodedCacheHits, decodedCacheLookups);
+		}
+
+		public float getMemoryCacheHitRatio() {
+			return ratio(memoryCacheHits, memoryCacheLookups);
+		}
+
+		public float getDiskCacheHitRatio() {
+			return ratio(diskCacheHits, diskCacheLookups);
+		}
+
+		public float getGLCacheHitRatio() {
+			return ratio(glCacheHits, glCacheLookups);
+		}
+
+		public float getBitmapPoolHitRatio() {
+			return ratio(bitmapPoolHits, bitmapPoolLookups);
+		}
+
+		private static float ratio(long hits, long lookups) {
+			return (lookups == 0 ? 0 : hits / (float)lookups);
+		}
+
+		/**
+		 * Returns the snapshot as JSON, for exporting. Histograms are objects with "count", "totalMillis" and "buckets" (an array of
+		 * {@link TileMetrics#HISTOGRAM_BUCKETS} counts).
+		 */
+		public JSONObject toJSON() {
+			try {
+				JSONObject json = new JSONObject();
+				json.put("sinceUptimeMillis", sinceUptimeMillis);
+				json.put("uptimeMillis", uptimeMillis);
+				JSONObject sourcesJSON = new JSONObject();
+				for (Map.Entry<String, SourceStats> entry : sources.entrySet()) {
+					SourceStats stats = entry.getValue();
+					JSONObject sourceJSON = new JSONObject();
+					sourceJSON.put("latency", stats.latency.toJSON());
+					sourceJSON.put("tilesLoaded", stats.tilesLoaded);
+					sourceJSON.put("tilesMissed", stats.tilesMissed);
+					sourceJSON.put("bytesLoaded", stats.bytesLoaded);
+					sourcesJSON.put(entry.getKey(), sourceJSON);
+				}
+				json.put("sources", sourcesJSON);
+				json.put("bytesDownloaded", bytesDownloaded);
+				json.put("decodeTimes", decodeTimes.toJSON());
+				json.put("timeToFirstDraw", timeToFirstDraw.toJSON());
+				json.put("cancellations", cancellations);
+				json.put("decodeQueueDepth", decodeQueueDepth);
+				json.put("fetchQueueDepth", fetchQueueDepth);
+				json.put("peakDecodeQueueDepth", peakDecodeQueueDepth);
+				json.put("peakFetchQueueDepth", peakFetchQueueDepth);
+				json.put("decodedCacheLookups", decodedCacheLookups);
+				json.put("decodedCacheHits", decodedCacheHits);
+				json.put("memoryCacheLookups", memoryCacheLookups);
+				json.put("memoryCacheHits", memoryCacheHits);
+				json.put("diskCacheLookups", diskCacheLookups);
+				json.put("diskCacheHits", diskCacheHits);
+				json.put("diskCacheCorrupt", diskCacheCorrupt);
+				json.put("glCacheLookups", glCacheLookups);
+				json.put("glCacheHits", glCacheHits);
+				json.put("bitmapPoolLookups", bitmapPoolLookups);
+				json.put("bitmapPoolHits", bitmapPoolHits);
+				json.put("diskWrites", diskWrites);
+				json.put("diskWriteBatches", diskWriteBatches);
+				json.put("diskWritesDropped", diskWritesDropped);
+				json.put("memoryTrimLevel", memoryTrimLevel);
+				json.put("memoryTrims", memoryTrims);
+				return json;
+			} catch (JSONException e) {
+				// This only happens for non-finite doubles, and everything here is an integer.
+				throw new Error("Caught JSONException where it should never happen", e);
+			}
+		}
+	}
+
+	static final class HistogramRecorder {
+		private final AtomicLongArray mCounts = new AtomicLongArray(HISTOGRAM_BUCKETS);
+		private final AtomicLong mTotalMillis = new AtomicLong();
+
+		void record(long millis) {
+			millis = Math.max(0, millis);
+			// 0 goes in bucket 0, 1 in bucket 1, 2-3 in bucket 2, and so on.
+			int bucket = Math.min(HISTOGRAM_BUCKETS-1, 64 - Long.numberOfLeadingZeros(millis));
+			mCounts.incrementAndGet(bucket);
+			mTotalMillis.addAndGet(millis);
+		}
+
+		Histogram snapshot() {
+			long[] counts = new long[HISTOGRAM_BUCKETS];
+			for (int i = 0; i < counts.length; i++) {
+				counts[i] = mCounts.get(i);
+			}
+			return new Histogram(counts, mTotalMillis.get());
+		}
+	}
+
+	static final class SourceRecorder {
+		final HistogramRecorder latency = new HistogramRecorder();
+		final AtomicLong tilesLoaded = new AtomicLong();
+		final AtomicLong tilesMissed = new AtomicLong();
+		final AtomicLong bytesLoaded = new AtomicLong();
+
+		SourceStats snapshot() {
+			return new SourceStats(latency.snapshot(), tilesLoaded.get(), tilesMissed.get(), bytesLoaded.get());
+		}
+	}
+
+	// Everything recorded since the last reset. reset() replaces it rather than zeroing it, so a snapshot never sees half a reset.
+	static final class Recorders {
+		final long sinceUptimeMillis = SystemClock.uptimeMillis();
+		final ConcurrentHashMap<String, SourceRecorder> sources = new ConcurrentHashMap<String, SourceRecorder>();
+		final AtomicLong bytesDownloaded = new AtomicLong();
+		final HistogramRecorder decodeTimes = new HistogramRecorder();
+		final HistogramRecorder timeToFirstDraw = new HistogramRecorder();
+		final AtomicLong cancellations = new AtomicLong();
+		final AtomicInteger decodeQueueDepth = new AtomicInteger();
+		final AtomicInteger fetchQueueDepth = new AtomicInteger();
+		final AtomicInteger peakDecodeQueueDepth = new AtomicInteger();
+		final AtomicInteger peakFetchQueueDepth = new AtomicInteger();
+		final AtomicLong decodedCacheLookups = new AtomicLong();
+		final AtomicLong decodedCacheHits = new AtomicLong();
+		final AtomicLong memoryCacheLookups = new AtomicLong();
+		final AtomicLong memoryCacheHits = new AtomicLong();
+		final AtomicLong diskCacheLookups = new AtomicLong();
+		final AtomicLong diskCacheHits = new AtomicLong();
+		final AtomicLong diskCacheCorrupt = new AtomicLong();
+		final AtomicLong glCacheLookups = new AtomicLong();
+		final AtomicLong glCacheHits = new AtomicLong();
+		final AtomicLong bitmapPoolLookups = new AtomicLong();
+		final AtomicLong bitmapPoolHits = new AtomicLong();
+		final AtomicLong diskWrites = new AtomicLong();
+		final AtomicLong diskWriteBatches = new AtomicLong();
+		final AtomicLong diskWritesDropped = new AtomicLong();
+		final AtomicInteger memoryTrimLevel = new AtomicInteger();
+		final AtomicLong memoryTrims = new AtomicLong();
+
+		SourceRecorder source(String name) {
+			SourceRecorder recorder = sources.get(name);
+			if (recorder == null) {
+				SourceRecorder newRecorder = new SourceRecorder();
+				recorder = sources.putIfAbsent(name, newRecorder);
+				if (recorder == null) {
+					recorder = newRecorder;
+				}
+			}
+			return recorder;
+		}
+	}
+
+	private volatile Recorders mRecorders = new Recorders();
+
+	private TileMetrics() {
+	}
+
+	/**
+	 * Returns the metrics for this process.
+	 */
+	public static TileMetrics getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Returns a copy of the metrics collected since the process started or {@link #reset()} was last called.
+	 */
+	public Snapshot getSnapshot() {
+		return new Snapshot(mRecorders);
+	}
+
+	/**
+	 * Discards the metrics collected so far.
+	 */
+	public void reset() {
+		mRecorders = new Recorders();
+	}
+
+	/**
+	 * Records a load from a tile source.
+	 *
+	 * @param tilesLoaded The number of tiles the source returned.
+	 * @param tilesMissed The number of tiles asked for that it didn't return.
+	 */
+	void recordSourceLoad(OSTileSource source, long millis, int tilesLoaded, int tilesMissed, long bytes) {
+		Recorders recorders = mRecorders;
+		SourceRecorder recorder = recorders.source(source.getMetricsName());
+		recorder.latency.record(millis);
+		recorder.tilesLoaded.addAndGet(tilesLoaded);
+		recorder.tilesMissed.addAndGet(tilesMissed);
+		recorder.bytesLoaded.addAndGet(bytes);
+		if (source.isNetwork()) {
+			recorders.bytesDownloaded.addAndGet(bytes);
+		}
+	}
+
+	void recordDecode(long millis) {
+		mRecorders.decodeTimes.record(millis);
+	}
+
+	void recordFirstDraw(long millisSinceRequested) {
+		mRecorders.timeToFirstDraw.record(millisSinceRequested);
+	}
+
+	void recordCancellation() {
+		mRecorders.cancellations.incrementAndGet();
+	}
+
+	void recordQueueDepths(int decodes, int fetches) {
+		Recorders recorders = mRecorders;
+		recorders.decodeQueueDepth.set(decodes);
+		recorders.fetchQueueDepth.set(fetches);
+		raiseTo(recorders.peakDecodeQueueDepth, decodes);
+		raiseTo(recorders.peakFetchQueueDepth, fetches);
+	}
+
+	private static void raiseTo(AtomicInteger peak, int value) {
+		int current;
+		while (value > (current = peak.get()) && !peak.compareAndSet(current, value)) {
+			// Try again.
+		}
+	}
+
+	void recordDecodedCacheLookup(boolean hit) {
+		Recorders recorders = mRecorders;
+		recorders.decodedCacheLookups.incrementAndGet();
+		if (hit) {
+			recorders.decodedCacheHits.incrementAndGet();
+		}
+	}
+
+	void recordMemoryCacheLookup(boolean hit) {
+		Recorders recorders = mRecorders;
+		recorders.memoryCacheLookups.incrementAndGet();
+		if (hit) {
+			recorders.memoryCacheHits.incrementAndGet();
+		}
+	}
+
+	void recordDiskCacheLookup(boolean hit) {
+		Recorders recorders = mRecorders;
+		recorders.diskCacheLookups.incrementAndGet();
+		if (hit) {
+			recorders.diskCacheHits.incrementAndGet();
+		}
+	}
+
+	void recordDiskCacheCorrupt() {
+		mRecorders.diskCacheCorrupt.incrementAndGet();
+	}
+
+	void recordBitmapPoolLookup(boolean hit) {
+		Recorders recorders = mRecorders;
+		recorders.bitmapPoolLookups.incrementAndGet();
+		if (hit) {
+			recorders.bitmapPoolHits.incrementAndGet();
+		}
+	}
+
+	void recordDiskWriteBatch(int tiles) {
+		Recorders recorders = mRecorders;
+		recorders.diskWrites.addAndGet(tiles);
+		recorders.diskWriteBatches.incrementAndGet();
+	}
+
+	void recordDiskWriteDropped() {
+		mRecorders.diskWritesDropped.incrementAndGet();
+	}
+
+	void recordMemoryTrim(int level) {
+		Recorders recorders = mRecorders;
+		recorders.memoryTrimLevel.set(level);
+		recorders.memoryTrims.incrementAndGet();
+	}
+
+	// The GL thread counts lookups itself and adds them once a frame, since there are hundreds per frame.
+	void recordGLCacheLookups(int lookups, int hits) {
+		Recorders recorders = mRecorders;
+		recorders.glCacheLookups.addAndGet(lookups);
+		recorders.glCacheHits.addAndGet(hits);
+	}
+}
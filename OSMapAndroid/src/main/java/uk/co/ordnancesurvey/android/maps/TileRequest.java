@@ -0,0 +1,106 @@
+/**
+ * OpenSpace Android SDK Licence Terms
+ *
+ * The OpenSpace Android SDK is protected by © Crown copyright – Ordnance Survey 2013.[https://github.com/OrdnanceSurvey]
+ *
+ * All rights reserved (subject to the BSD licence terms as follows):.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided
+ * with the distribution.
+ *
+ * Neither the name of Ordnance Survey nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE
+ *
+ */
+package uk.co.ordnancesurvey.android.maps;
+
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * A pending fetch for a single tile.
+ *
+ * Requests are ordered by {@link #priority}; lower values are fetched first. The priority is recalculated by {@link TileFetcher}
+ * every frame the tile is requested, and only used by the GL thread.
+ *
+ * Ownership is passed between the GL thread and worker threads by changing the request's state with
+ * {@link #compareAndSetState(int, int)}; see {@link TileRequestQueue}. Fields which are handed over with the request are written
+ * before the state change that hands it over.
+ *
+ * A request can be cancelled from the GL thread while a fetch thread is working on it. Anything doing slow work on behalf of
+ * a request (e.g. {@link OSTileSource#dataForTile(MapTile, TileRequest)}) should check {@link #isCancelled()} and give up early.
+ */
+final class TileRequest {
+	// Waiting for a decode thread to check the cache and synchronous sources.
+	static final int STATE_QUEUED_LOCAL = 0;
+	// Waiting for a fetch thread to try the asynchronous sources.
+	static final int STATE_QUEUED_FETCH = 1;
+	// Being loaded by a worker thread.
+	static final int STATE_CLAIMED = 2;
+	// Taken out of the queues by the fetcher. Nothing will load it unless the fetcher queues it again.
+	static final int STATE_RETIRED = 3;
+
+	private static final AtomicIntegerFieldUpdater<TileRequest> STATE = AtomicIntegerFieldUpdater.newUpdater(TileRequest.class, "mState");
+
+	final MapTile tile;
+	final long firstRequestedUptimeMillis;
+	float priority;
+	// The last frame in which the tile was requested. Only used by the GL thread.
+	int generation;
+	// Whether the tile may be fetched from an asynchronous source if the cache and synchronous sources don't have it.
+	// A request made without it can be upgraded by a later request for the same tile.
+	volatile boolean asyncFetchOK;
+	// A speculative request, which only needs to warm the byte cache. A later request for the tile clears it.
+	volatile boolean prefetch;
+	// Set by a worker thread once the tile's data has been found or fetched.
+	volatile boolean loaded;
+	// Set once the cache and synchronous sources have been checked, so a requeued request goes straight to the fetch threads.
+	// Handed over with the request.
+	boolean localMiss;
+	// Set while this request is the one loading the tile for every fetcher in the process; see InFlightTileTable.
+	// Handed over with the request.
+	InFlightTileTable.InFlightTile inFlight;
+	private volatile boolean mCancelled;
+	private volatile int mState = STATE_RETIRED;
+
+	TileRequest(MapTile tile, long firstRequestedUptimeMillis) {
+		this.tile = tile;
+		this.firstRequestedUptimeMillis = firstRequestedUptimeMillis;
+	}
+
+	void cancel() {
+		mCancelled = true;
+	}
+
+	boolean isCancelled() {
+		return mCancelled;
+	}
+
+	int getState() {
+		return mState;
+	}
+
+	// Only for the current owner; anyone else must use compareAndSetState().
+	void setState(int state) {
+		mState = state;
+	}
+
+	boolean compareAndSetState(int expect, int update) {
+		return STATE.compareAndSet(this, expect, update);
+	}
+
+	static final Comparator<TileRequest> COMPARE_PRIORITY = new Comparator<TileRequest>() {
+		@Override
+		public int compare(TileRequest lhs, TileRequest rhs) {
+			return Float.compare(lhs.priority, rhs.priority);
+		}
+	};
+}
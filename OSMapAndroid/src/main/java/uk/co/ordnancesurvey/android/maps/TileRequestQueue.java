@@ -0,0 +1,182 @@
+/**
+ * OpenSpace Android SDK Licence Terms
+ *
+ * The OpenSpace Android SDK is protected by © Crown copyright – Ordnance Survey 2013.[https://github.com/OrdnanceSurvey]
+ *
+ * All rights reserved (subject to the BSD licence terms as follows):.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided
+ * with the distribution.
+ *
+ * Neither the name of Ordnance Survey nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE
+ *
+ */
+package uk.co.ordnancesurvey.android.maps;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Hands {@link TileRequest}s from the GL thread to worker threads without a lock that either side can hold for long.
+ *
+ * Once a frame, the GL thread sorts that frame's requests by priority and publishes them as an array. Workers walk the most
+ * recently published array with a shared cursor and claim requests by moving them from this queue's state to
+ * {@link TileRequest#STATE_CLAIMED}. A request is published again every frame until it is claimed, so it can be in more than one
+ * array, but only one worker can claim it. Once the GL thread has retired a request (moved it to
+ * {@link TileRequest#STATE_RETIRED}), nobody can.
+ *
+ * Workers can also offer() requests to the queue, e.g. a decode thread passing a request it couldn't load locally to the fetch
+ * threads. Offered requests are served in order once the published array is exhausted.
+ *
+ * Idle workers wait in take(). The monitor they wait on is only held long enough to check for work, so publishing never blocks.
+ *
+ * This class is threadsafe.
+ */
+final class TileRequestQueue {
+	private static final class Snapshot {
+		final TileRequest[] requests;
+		final AtomicInteger next = new AtomicInteger();
+
+		Snapshot(TileRequest[] requests) {
+			this.requests = requests;
+		}
+	}
+
+	private final int mQueuedState;
+	private final AtomicReference<Snapshot> mSnapshot = new AtomicReference<Snapshot>(new Snapshot(new TileRequest[0]));
+	private final ConcurrentLinkedQueue<TileRequest> mOffered = new ConcurrentLinkedQueue<TileRequest>();
+	// Roughly how many requests are in mOffered, whose size() walks the whole queue.
+	private final AtomicInteger mOfferedCount = new AtomicInteger();
+	private final Object mMonitor = new Object();
+	// Incremented whenever there might be new work, so a worker can tell if it missed a wake-up.
+	private final AtomicInteger mVersion = new AtomicInteger();
+
+	/**
+	 * @param queuedState The state of requests waiting in this queue; {@link TileRequest#STATE_QUEUED_LOCAL} or
+	 *     {@link TileRequest#STATE_QUEUED_FETCH}.
+	 */
+	TileRequestQueue(int queuedState) {
+		mQueuedState = queuedState;
+	}
+
+	/**
+	 * Replaces the published requests. They should already be sorted, most urgent first, and in this queue's state.
+	 * Requests in the previous array which are not in this one can still be claimed until they are retired.
+	 */
+	void publish(TileRequest[] requests) {
+		mSnapshot.set(new Snapshot(requests));
+		wakeAll();
+	}
+
+	/**
+	 * Adds a single request, which the caller has already put in this queue's state.
+	 */
+	void offer(TileRequest request) {
+		mOfferedCount.incrementAndGet();
+		mOffered.add(request);
+		mVersion.incrementAndGet();
+		synchronized (mMonitor) {
+			mMonitor.notify();
+		}
+	}
+
+	/**
+	 * Claims the most urgent request, or returns null if there aren't any.
+	 */
+	TileRequest poll() {
+		Snapshot snapshot = mSnapshot.get();
+		TileRequest[] requests = snapshot.requests;
+		// Check before incrementing, so that idle workers don't run the cursor up forever.
+		while (snapshot.next.get() < requests.length) {
+			int i = snapshot.next.getAndIncrement();
+			if (i >= requests.length) {
+				break;
+			}
+			TileRequest request = requests[i];
+			if (request.compareAndSetState(mQueuedState, TileRequest.STATE_CLAIMED)) {
+				return request;
+			}
+		}
+		TileRequest request;
+		while ((request = mOffered.poll()) != null) {
+			mOfferedCount.decrementAndGet();
+			if (request.compareAndSetState(mQueuedState, TileRequest.STATE_CLAIMED)) {
+				return request;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Claims the most urgent request, waiting for one if there aren't any.
+	 * Returns null if the thread is woken or interrupted without finding one, so the caller can check whether it should stop.
+	 */
+	TileRequest take() {
+		int version = mVersion.get();
+		TileRequest request = poll();
+		if (request != null) {
+			return request;
+		}
+		synchronized (mMonitor) {
+			if (version == mVersion.get()) {
+				try {
+					mMonitor.wait();
+				} catch (InterruptedException e) {
+					// The caller checks whether it should stop.
+				}
+			}
+		}
+		return poll();
+	}
+
+	/**
+	 * Wakes every thread waiting in take(), e.g. so that they notice they should stop.
+	 */
+	void wakeAll() {
+		mVersion.incrementAndGet();
+		synchronized (mMonitor) {
+			mMonitor.notifyAll();
+		}
+	}
+
+	/**
+	 * Returns roughly how many requests are waiting: published requests which have not been looked at yet, and offered ones.
+	 * This is only a hint.
+	 */
+	int remaining() {
+		Snapshot snapshot = mSnapshot.get();
+		return Math.max(0, snapshot.requests.length - snapshot.next.get()) + Math.max(0, mOfferedCount.get());
+	}
+
+	/**
+	 * Retires every request still waiting in the queue and returns them.
+	 */
+	ArrayList<TileRequest> retireAll() {
+		ArrayList<TileRequest> ret = new ArrayList<TileRequest>();
+		Snapshot snapshot = mSnapshot.getAndSet(new Snapshot(new TileRequest[0]));
+		for (TileRequest request : snapshot.requests) {
+			if (request.compareAndSetState(mQueuedState, TileRequest.STATE_RETIRED)) {
+				ret.add(request);
+			}
+		}
+		TileRequest request;
+		while ((request = mOffered.poll()) != null) {
+			mOfferedCount.decrementAndGet();
+			if (request.compareAndSetState(mQueuedState, TileRequest.STATE_RETIRED)) {
+				ret.add(request);
+			}
+		}
+		return ret;
+	}
+}
@@ -0,0 +1,145 @@
+/**
+ * OpenSpace Android SDK Licence Terms
+ *
+ * The OpenSpace Android SDK is protected by © Crown copyright – Ordnance Survey 2013.[https://github.com/OrdnanceSurvey]
+ *
+ * All rights reserved (subject to the BSD licence terms as follows):.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided
+ * with the distribution.
+ *
+ * Neither the name of Ordnance Survey nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE
+ *
+ */
+package uk.co.ordnancesurvey.android.maps;
+
+import java.nio.ByteBuffer;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+/**
+ * Converts opaque tiles to raw RGB 565 pixels, which can be copied straight into a bitmap instead of being decoded, and
+ * uploaded as a texture at half the size of ARGB 8888.
+ *
+ * A transcoded tile is a header (the bytes "R565", then the width and height as big-endian shorts) followed by the pixels
+ * in {@link Bitmap#copyPixelsToBuffer} order. The header can't be mistaken for a PNG or JPEG, so transcoded and encoded tiles
+ * can share a cache.
+ */
+final class TileTranscoder {
+	static final int HEADER_BYTES = 8;
+	static final Bitmap.Config CONFIG = Bitmap.Config.RGB_565;
+	private static final byte[] MAGIC = { 'R', '5', '6', '5' };
+
+	private TileTranscoder() {
+	}
+
+	static boolean isTranscoded(byte[] data) {
+		if (data == null || data.length < HEADER_BYTES) {
+			return false;
+		}
+		for (int i = 0; i < MAGIC.length; i++) {
+			if (data[i] != MAGIC[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	static int width(byte[] transcoded) {
+		return ((transcoded[4] & 0xff) << 8) | (transcoded[5] & 0xff);
+	}
+
+	static int height(byte[] transcoded) {
+		return ((transcoded[6] & 0xff) << 8) | (transcoded[7] & 0xff);
+	}
+
+	static void writeHeader(byte[] out, int width, int height) {
+		assert width <= 0xffff && height <= 0xffff;
+		System.arraycopy(MAGIC, 0, out, 0, MAGIC.length);
+		out[4] = (byte)(width >> 8);
+		out[5] = (byte)width;
+		out[6] = (byte)(height >> 8);
+		out[7] = (byte)height;
+	}
+
+	/**
+	 * Returns the tile transcoded to RGB 565, or null if it can't be decoded, has any transparent pixels, or is already
+	 * transcoded. This decodes the tile, so call it on a background thread.
+	 */
+	static byte[] transcodeOrNull(byte[] encoded) {
+		if (isTranscoded(encoded)) {
+			return null;
+		}
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+		Bitmap decoded = BitmapFactory.decodeByteArray(encoded, 0, encoded.length, options);
+		if (decoded == null) {
+			return null;
+		}
+		Bitmap converted = null;
+		try {
+			int width = decoded.getWidth();
+			int height = decoded.getHeight();
+			if (width > 0xffff || height > 0xffff || !isOpaque(decoded)) {
+				return null;
+			}
+			converted = decoded.copy(CONFIG, false);
+			if (converted == null) {
+				return null;
+			}
+			// Bitmap.getByteCount() requires API level 12. Use this instead.
+			int pixelBytes = converted.getRowBytes() * height;
+			byte[] ret = new byte[HEADER_BYTES + pixelBytes];
+			writeHeader(ret, width, height);
+			converted.copyPixelsToBuffer(ByteBuffer.wrap(ret, HEADER_BYTES, pixelBytes));
+			return ret;
+		} finally {
+			decoded.recycle();
+			if (converted != null) {
+				converted.recycle();
+			}
+		}
+	}
+
+	/**
+	 * Copies a transcoded tile's pixels into a mutable RGB 565 bitmap of its size. Returns false if the data is the wrong length
+	 * for the bitmap, which leaves the bitmap unchanged.
+	 */
+	static boolean copyPixels(byte[] transcoded, Bitmap bmp) {
+		assert bmp.getConfig() == CONFIG && bmp.isMutable();
+		int pixelBytes = bmp.getRowBytes() * bmp.getHeight();
+		if (transcoded.length != HEADER_BYTES + pixelBytes) {
+			return false;
+		}
+		bmp.copyPixelsFromBuffer(ByteBuffer.wrap(transcoded, HEADER_BYTES, pixelBytes));
+		return true;
+	}
+
+	private static boolean isOpaque(Bitmap bmp) {
+		// JPEGs decode without alpha. PNGs usually have an alpha channel even if every pixel is opaque, so check them all.
+		if (!bmp.hasAlpha()) {
+			return true;
+		}
+		int width = bmp.getWidth();
+		int[] row = new int[width];
+		for (int y = 0; y < bmp.getHeight(); y++) {
+			bmp.getPixels(row, 0, width, 0, y, width, 1);
+			for (int pixel : row) {
+				if ((pixel >>> 24) != 0xff) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,63 @@
+/**
+ * OpenSpace Android SDK Licence Terms
+ *
+ * The OpenSpace Android SDK is protected by © Crown copyright – Ordnance Survey 2013.[https://github.com/OrdnanceSurvey]
+ *
+ * All rights reserved (subject to the BSD licence terms as follows):.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided
+ * with the distribution.
+ *
+ * Neither the name of Ordnance Survey nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE
+ *
+ */
+package uk.co.ordnancesurvey.android.maps;
+
+import java.io.IOException;
+
+/**
+ * A disk tier that stores opaque tiles transcoded by {@link TileTranscoder}, so that reading one back doesn't need a decode.
+ * Tiles that can't be transcoded are stored as they are.
+ *
+ * Transcoding happens in {@link #putAll}, which a {@link CombinedLruCache} calls on its writer thread, so it is off the path of
+ * the tile that was just fetched. Transcoded tiles take about as much space as the decoded bitmap, so the same budget holds
+ * several times fewer tiles than an encoded cache.
+ */
+final class TranscodingDiskCache implements DiskTileCache {
+	private final DiskTileCache mCache;
+
+	TranscodingDiskCache(DiskTileCache cache) {
+		mCache = cache;
+	}
+
+	@Override
+	public byte[] get(long key) throws IOException {
+		return mCache.get(key);
+	}
+
+	@Override
+	public void putAll(long[] keys, byte[][] values, int count) throws IOException {
+		// The caller still owns the values (and counts their sizes), so transcode into a copy.
+		byte[][] transcodedValues = new byte[count][];
+		for (int i = 0; i < count; i++) {
+			byte[] data = CacheRecord.dataOrNull(values[i]);
+			byte[] transcoded = (data != null) ? TileTranscoder.transcodeOrNull(data) : null;
+			transcodedValues[i] = (transcoded != null) ? CacheRecord.wrap(CacheRecord.sourceId(values[i]), transcoded) : values[i];
+		}
+		mCache.putAll(keys, transcodedValues, count);
+	}
+
+	@Override
+	public void close() throws IOException {
+		mCache.close();
+	}
+}
@@ -22,27 +22,62 @@
  */
 package uk.co.ordnancesurvey.android.maps;
 
+import java.net.MalformedURLException;
+import java.net.URL;
+
 import android.net.Uri;
-import android.util.Log;
 
 final class WMSTileSource extends WebTileSource {
 
-
-	private final static String TAG = WMSTileSource.class.getSimpleName();
-
 	private final String mApiKey;
 	private final String mApiKeyPackageName;
 	private final boolean mIsPro;
+	private final String mHost;
+	// Indexed by MapLayer.index: the parts of each layer's request before and after the bounding box, which is all that varies.
+	private final String[] mPathPrefixes;
+	private final String[] mPathSuffixes;
 
     public WMSTileSource(String apiKey, String apiKeyPackageName, boolean isPro, String[] productsOrNull) {
         super(productsOrNull);
         mApiKey = apiKey;
         mApiKeyPackageName = apiKeyPackageName;
         mIsPro = isPro;
+        mHost = (mIsPro ? "osopenspacepro" : "openspace") + ".ordnancesurvey.co.uk";
+
+        int layerCount = MapLayer.getLayerCount();
+        mPathPrefixes = new String[layerCount];
+        mPathSuffixes = new String[layerCount];
+        for (int i = 0; i < layerCount; i++) {
+            MapLayer layer = MapLayer.forIndex(i);
+            mPathPrefixes[i] = "/osmapapi/ts" +
+                    "?FORMAT=image/png" +
+                    "&SERVICE=WMS" +
+                    "&VERSION=1.1.1" +
+                    "&EXCEPTIONS=application/vnd.ogc.se_inimage" +
+                    "&SRS=EPSG:27700" +
+                    "&STYLES=" +
+                    "&REQUEST=GetMap" +
+                    "&KEY=" + Uri.encode(mApiKey) +
+                    "&appId=" +  Uri.encode(mApiKeyPackageName) +
+                    "&WIDTH=" + layer.tileSizePixels +
+                    "&HEIGHT="+ layer.tileSizePixels +
+                    "&BBOX=";
+            mPathSuffixes[i] = "&LAYERS=" + Uri.encode(layer.layerCode) +
+                    "&PRODUCT=" + Uri.encode(layer.productCode);
+        }
     }
 
 	@Override
 	String uriStringForTile(MapTile tile) {
+		URL url = urlForTile(tile);
+		return (url != null ? url.toString() : null);
+	}
+
+	/**
+	 * Builds the URL from the layer's prepared request and the tile's bounding box, without parsing it.
+	 */
+	@Override
+	URL urlForTile(MapTile tile) {
 
 		MapLayer layer = tile.layer;
 
@@ -57,24 +92,20 @@ final class WMSTileSource extends WebTileSource {
 		float bboxX1 = bboxX0 + layer.tileSizeMetres;
 		float bboxY1 = bboxY0 + layer.tileSizeMetres;
 
-		String uriString = "https://" + (mIsPro ? "osopenspacepro" : "openspace") + ".ordnancesurvey.co.uk/osmapapi/ts" +
-				"?FORMAT=image/png" +
-				"&SERVICE=WMS" +
-				"&VERSION=1.1.1" +
-				"&EXCEPTIONS=application/vnd.ogc.se_inimage" +
-				"&SRS=EPSG:27700" +
-				"&STYLES=" +
-				"&REQUEST=GetMap" +
-				"&KEY=" + Uri.encode(mApiKey) +
-				"&appId=" +  Uri.encode(mApiKeyPackageName) +
-				"&WIDTH=" + layer.tileSizePixels + 
-				"&HEIGHT="+ layer.tileSizePixels +
-				"&BBOX=" + bboxX0 + "," + bboxY0 + "," + bboxX1 + "," + bboxY1 +
-				"&LAYERS=" + Uri.encode(layer.layerCode) +
-				"&PRODUCT=" + Uri.encode(layer.productCode);
+		String prefix = mPathPrefixes[layer.index];
+		String suffix = mPathSuffixes[layer.index];
+		StringBuilder path = new StringBuilder(prefix.length() + suffix.length() + 64);
+		path.append(prefix)
+				.append(bboxX0).append(',')
+				.append(bboxY0).append(',')
+				.append(bboxX1).append(',')
+				.append(bboxY1)
+				.append(suffix);
 
-        //Log.v(TAG, uriString);
-
-		return uriString;
+		try {
+			return new URL("https", mHost, path.toString());
+		} catch (MalformedURLException e) {
+			throw new Error("Caught MalformedURLException where it should never happen", e);
+		}
 	}
 }
@@ -24,7 +24,6 @@ package uk.co.ordnancesurvey.android.maps;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.Locale;
@@ -40,6 +39,8 @@ import android.util.Log;
 abstract class WebTileSource extends OSTileSource {
 	private final static String TAG = "WebTileSource";
 
+	private volatile HttpTransport mTransport = HttpURLConnectionTransport.getInstance();
+
 	public WebTileSource(String[] productsOrNull) {
 		super(productsOrNull);
 
@@ -52,13 +53,42 @@ abstract class WebTileSource extends OSTileSource {
 
 	abstract String uriStringForTile(MapTile tile);
 
-	@Override
-	byte[] dataForTile(MapTile tile) {
+	/**
+	 * Returns the URL for a tile, or null if this source doesn't have it. The default parses {@link #uriStringForTile}; a source
+	 * can instead build the URL from parts it has prepared, which saves parsing a long string for every tile.
+	 */
+	URL urlForTile(MapTile tile) {
 		String uriString = uriStringForTile(tile);
 		if (uriString == null)
 		{
 			return null;
 		}
+		try {
+			return new URL(uriString);
+		} catch (MalformedURLException e) {
+			throw new Error("Caught MalformedURLException where it should never happen", e);
+		}
+	}
+
+	/**
+	 * Replaces the transport, for example with one that doesn't use the network in tests.
+	 */
+	void setTransport(HttpTransport transport) {
+		mTransport = transport;
+	}
+
+	@Override
+	byte[] dataForTile(MapTile tile) {
+		return dataForTile(tile, null);
+	}
+
+	@Override
+	byte[] dataForTile(MapTile tile, TileRequest requestOrNull) {
+		URL url = urlForTile(tile);
+		if (url == null)
+		{
+			return null;
+		}
 		// The compiler is clever enough to detect that it will never be used uninitialized.
 		final long startTime, startThreadTime;
 		if (BuildConfig.DEBUG) {
@@ -71,7 +101,7 @@ abstract class WebTileSource extends OSTileSource {
 
 		boolean success = false;
 		try {
-			byte[] ret = loadDataWithHttpURLConnection(uriString);
+			byte[] ret = loadDataWithTransport(url, tile, requestOrNull);
 			//byte[] ret = loadDataWithAndroidHttpClient(uriString);
 			//byte[] ret = loadDatapWithDefaultHttpClient(uriString);
 			success = true;
@@ -87,50 +117,47 @@ abstract class WebTileSource extends OSTileSource {
 		}
 	}
 
-	private byte[] loadDataWithHttpURLConnection(String uriString)
+	private byte[] loadDataWithTransport(URL url, MapTile tile, TileRequest requestOrNull)
 	{
-		URL url;
-		try {
-			url = new URL(uriString);
-		} catch (MalformedURLException e) {
-			throw new Error("Caught MalformedURLException where it should never happen", e);
+		if (requestOrNull != null && requestOrNull.isCancelled()) {
+			return null;
+		}
+
+		// Don't hammer a host (or a radio) that isn't answering.
+		String host = url.getHost();
+		FetchBackoff backoff = FetchBackoff.getInstance();
+		if (!backoff.shouldFetch(host, tile, SystemClock.uptimeMillis())) {
+			return null;
 		}
 
-		HttpURLConnection urlConnection = null;
 		try {
-			urlConnection = (HttpURLConnection)url.openConnection();
-
-			// tchan: It is not worth using a BufferedInputStream; the vast majority of the CPU time is spent before getInputStream() returns.
-			// According to the Android docs, it is not our job to close the stream:
-			//   http://developer.android.com/reference/java/net/HttpURLConnection.html
-			InputStream inputStream = urlConnection.getInputStream();
-
-			// We can only get the response code after getInputStream() returns.
-			//   http://www.tbray.org/ongoing/When/201x/2012/01/17/HttpURLConnection
-			int httpStatusCode = urlConnection.getResponseCode();
-			// What should we do about errors?
-			if (httpStatusCode/100 != 2) {
-				if (BuildConfig.DEBUG)
-				{
-					assert false;
-				}
-				//Log.v(TAG, String.format(Locale.ENGLISH, "Request for tile TILEMATRIX=%s TILEROW=%d TILECOL=%d returned HTTP status %d", wmtsCode, tileRow, tileCol, httpStatusCode));
-				return null;
+			byte[] ret = mTransport.get(url, requestOrNull);
+			if (ret != null) {
+				backoff.recordSuccess(host, tile);
 			}
-
-			// We do not need to close the stream according to http://developer.android.com/reference/java/net/HttpURLConnection.html
-			// The Java docs are unclear: http://docs.oracle.com/javase/6/docs/api/java/net/URLConnection.html
-			return Helpers.readAllNoClose(inputStream);
+			return ret;
+		} catch (HttpStatusException e) {
+			recordFailure(backoff, host, tile, e.statusCode);
+			return null;
 		} catch (IOException e) {
 			Log.v(TAG, "Failed to fetch tile", e);
-			return null;
-		} finally {
-			if (urlConnection != null) {
-				// According to http://developer.android.com/reference/java/net/HttpURLConnection.html
-				//   "Once the response body has been read, the HttpURLConnection should be closed by calling disconnect()."
-				//   "Unlike other Java implementations, this will not necessarily close socket connections that can be reused. "
-				urlConnection.disconnect();
+			if (requestOrNull == null || !requestOrNull.isCancelled()) {
+				recordFailure(backoff, host, tile, -1);
 			}
+			return null;
+		}
+	}
+
+	/**
+	 * @param httpStatusCode The response code, or a negative number if there wasn't a response.
+	 */
+	private static void recordFailure(FetchBackoff backoff, String host, MapTile tile, int httpStatusCode)
+	{
+		long now = SystemClock.uptimeMillis();
+		if (httpStatusCode < 0 || httpStatusCode/100 == 5) {
+			backoff.recordHostFailure(host, now);
+		} else {
+			backoff.recordTileFailure(host, tile, now);
 		}
 	}
 
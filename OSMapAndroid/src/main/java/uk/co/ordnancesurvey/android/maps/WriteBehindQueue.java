@@ -0,0 +1,196 @@
+/**
+ * OpenSpace Android SDK Licence Terms
+ *
+ * The OpenSpace Android SDK is protected by © Crown copyright – Ordnance Survey 2013.[https://github.com/OrdnanceSurvey]
+ *
+ * All rights reserved (subject to the BSD licence terms as follows):.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided
+ * with the distribution.
+ *
+ * Neither the name of Ordnance Survey nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE
+ *
+ */
+package uk.co.ordnancesurvey.android.maps;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Writes tiles to a {@link DiskTileCache} in the background, in batches.
+ *
+ * Writing a tile at a time means a journal write and a rename per tile, interleaved with the reads of tiles that are being
+ * drawn. Instead, tiles wait here for a short while, so that a screenful arrives together, and are then handed to
+ * {@link DiskTileCache#putAll} as one batch. A tile that is added again while it is waiting replaces the waiting copy.
+ *
+ * The tiles waiting (or being written) are limited to a budget of bytes. Over that, new tiles are dropped rather than making
+ * the disk fall further behind; they are still in the memory cache, and will be fetched again if they are needed after that.
+ *
+ * This class is threadsafe.
+ */
+final class WriteBehindQueue {
+	private static final String TAG = "WriteBehindQueue";
+	// Long enough for the rest of a screenful of tiles to arrive.
+	private static final long BATCH_DELAY_MILLIS = 200;
+	private static final int INITIAL_CAPACITY = 32;
+
+	private final DiskTileCache mDiskCache;
+	private final int mMaxBytes;
+	private final ThreadPoolExecutor mExecutor = new ThreadPoolExecutor(0, 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+	private final Runnable mWriter = new Runnable() {
+		@Override
+		public void run() {
+			writePending();
+		}
+	};
+
+	// Guarded by this. Tiles waiting to be written, and the batch being written. The arrays are swapped, not reallocated.
+	private long[] mPendingKeys = new long[INITIAL_CAPACITY];
+	private byte[][] mPendingValues = new byte[INITIAL_CAPACITY][];
+	private int mPendingCount;
+	private long[] mWritingKeys = new long[INITIAL_CAPACITY];
+	private byte[][] mWritingValues = new byte[INITIAL_CAPACITY][];
+	private int mWritingCount;
+	// The bytes pending and being written.
+	private int mBytes;
+	private boolean mScheduled;
+	private boolean mClosed;
+
+	WriteBehindQueue(DiskTileCache diskCache, int maxBytes) {
+		mDiskCache = diskCache;
+		mMaxBytes = maxBytes;
+	}
+
+	/**
+	 * Queues the tile to be written. Returns false if it was dropped because the queue is over budget.
+	 */
+	synchronized boolean offer(long key, byte[] value) {
+		if (mClosed) {
+			return false;
+		}
+		int index = indexOf(mPendingKeys, mPendingCount, key);
+		if (index >= 0) {
+			mBytes += value.length - mPendingValues[index].length;
+			mPendingValues[index] = value;
+			return true;
+		}
+		if (mBytes + value.length > mMaxBytes) {
+			TileMetrics.getInstance().recordDiskWriteDropped();
+			return false;
+		}
+		if (mPendingCount == mPendingKeys.length) {
+			mPendingKeys = Arrays.copyOf(mPendingKeys, mPendingCount * 2);
+			mPendingValues = Arrays.copyOf(mPendingValues, mPendingCount * 2);
+		}
+		mPendingKeys[mPendingCount] = key;
+		mPendingValues[mPendingCount] = value;
+		mPendingCount++;
+		mBytes += value.length;
+		if (!mScheduled) {
+			mScheduled = true;
+			mExecutor.execute(mWriter);
+		}
+		return true;
+	}
+
+	/**
+	 * Returns a tile that is waiting to be written, or null, so that a tile can be read back before it reaches the disk.
+	 */
+	synchronized byte[] get(long key) {
+		int index = indexOf(mPendingKeys, mPendingCount, key);
+		if (index >= 0) {
+			return mPendingValues[index];
+		}
+		index = indexOf(mWritingKeys, mWritingCount, key);
+		return (index >= 0 ? mWritingValues[index] : null);
+	}
+
+	/**
+	 * Stops taking tiles, waits for the tiles already queued to be written, and closes the disk cache. Once this returns,
+	 * the cache's files can be opened again.
+	 */
+	void close() throws IOException {
+		synchronized (this) {
+			if (mClosed) {
+				return;
+			}
+			mClosed = true;
+		}
+		mExecutor.shutdown();
+		boolean interrupted = false;
+		for (;;) {
+			try {
+				if (mExecutor.awaitTermination(1, TimeUnit.MINUTES)) {
+					break;
+				}
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		mDiskCache.close();
+	}
+
+	private static int indexOf(long[] keys, int count, long key) {
+		// There are at most a few hundred, and scanning them doesn't allocate.
+		for (int i = 0; i < count; i++) {
+			if (keys[i] == key) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	// Runs on the executor.
+	private void writePending() {
+		SystemClock.sleep(BATCH_DELAY_MILLIS);
+
+		long[] keys;
+		byte[][] values;
+		int count;
+		synchronized (this) {
+			keys = mPendingKeys;
+			values = mPendingValues;
+			count = mPendingCount;
+			mPendingKeys = mWritingKeys;
+			mPendingValues = mWritingValues;
+			mPendingCount = 0;
+			mWritingKeys = keys;
+			mWritingValues = values;
+			mWritingCount = count;
+			mScheduled = false;
+		}
+
+		try {
+			mDiskCache.putAll(keys, values, count);
+			TileMetrics.getInstance().recordDiskWriteBatch(count);
+		} catch (IOException e) {
+			Log.e(TAG, "Failed to write cache entries", e);
+		}
+
+		synchronized (this) {
+			for (int i = 0; i < count; i++) {
+				mBytes -= values[i].length;
+				values[i] = null;
+			}
+			mWritingCount = 0;
+		}
+	}
+}
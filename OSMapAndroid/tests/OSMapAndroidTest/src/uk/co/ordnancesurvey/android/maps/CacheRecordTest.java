@@ -0,0 +1,50 @@
+/**
+ * OpenSpace Android SDK Licence Terms
+ *
+ * The OpenSpace Android SDK is protected by © Crown copyright – Ordnance Survey 2013.[https://github.com/OrdnanceSurvey]
+ *
+ * All rights reserved (subject to the BSD licence terms as follows):.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided
+ * with the distribution.
+ *
+ * Neither the name of Ordnance Survey nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE
+ *
+ */
+package uk.co.ordnancesurvey.android.maps;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public final class CacheRecordTest extends TestCase {
+	private static final byte[] PNG = { (byte)0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n', 1, 2, 3 };
+
+	public static void testRoundTrip() {
+		byte[] record = CacheRecord.wrap(42, PNG);
+		assertTrue(CacheRecord.isRecord(record));
+		assertEquals(42, CacheRecord.sourceId(record));
+		assertTrue(Arrays.equals(PNG, CacheRecord.dataOrNull(record)));
+		assertFalse(CacheRecord.isRecord(PNG));
+	}
+
+	public static void testRejectsCorruptAndUnknownVersions() {
+		byte[] record = CacheRecord.wrap(42, PNG);
+		record[record.length - 1] ^= 1;
+		assertNull(CacheRecord.dataOrNull(record));
+
+		record = CacheRecord.wrap(42, PNG);
+		record[2] = CacheRecord.VERSION + 1;
+		assertTrue(CacheRecord.isRecord(record));
+		assertNull(CacheRecord.dataOrNull(record));
+	}
+}
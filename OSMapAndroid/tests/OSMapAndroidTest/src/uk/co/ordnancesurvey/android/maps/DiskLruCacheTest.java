@@ -0,0 +1,150 @@
+/**
+ * OpenSpace Android SDK Licence Terms
+ *
+ * The OpenSpace Android SDK is protected by © Crown copyright – Ordnance Survey 2013.[https://github.com/OrdnanceSurvey]
+ *
+ * All rights reserved (subject to the BSD licence terms as follows):.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided
+ * with the distribution.
+ *
+ * Neither the name of Ordnance Survey nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE
+ *
+ */
+package uk.co.ordnancesurvey.android.maps;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public final class DiskLruCacheTest extends TestCase {
+	private static File newCacheDir() throws IOException {
+		File dir = File.createTempFile("DiskLruCacheTest", "");
+		assertTrue(dir.delete());
+		assertTrue(dir.mkdir());
+		return dir;
+	}
+
+	private static void put(DiskLruCache cache, String key, int seed) throws IOException {
+		byte[] value = new byte[100];
+		Arrays.fill(value, (byte)seed);
+		DiskLruCache.Editor editor = cache.edit(key);
+		editor.set(0, value);
+		editor.commit();
+	}
+
+	private static int get(DiskLruCache cache, String key) throws IOException {
+		DiskLruCache.Snapshot snapshot = cache.get(key);
+		if (snapshot == null) {
+			return -1;
+		}
+		try {
+			return snapshot.getBytes(0)[0];
+		} finally {
+			snapshot.close();
+		}
+	}
+
+	public static void testReopenFromSnapshotAndJournalTail() throws IOException {
+		File dir = newCacheDir();
+		DiskLruCache cache = DiskLruCache.open(dir, 1, 1, 1024*1024);
+		put(cache, "a", 1);
+		put(cache, "b", 2);
+		cache.close();
+		assertTrue(new File(dir, "journal.snapshot").exists());
+
+		// These are only in the journal written after the snapshot.
+		cache = DiskLruCache.open(dir, 1, 1, 1024*1024);
+		assertEquals(1, get(cache, "a"));
+		put(cache, "c", 3);
+		cache.remove("b");
+		cache.flush();
+
+		// Reopen without closing, so the snapshot is stale.
+		cache = DiskLruCache.open(dir, 1, 1, 1024*1024);
+		assertEquals(1, get(cache, "a"));
+		assertEquals(-1, get(cache, "b"));
+		assertEquals(3, get(cache, "c"));
+		assertEquals(200, cache.size());
+		cache.close();
+	}
+
+	public static void testReopenWithNewAppVersionEmptiesCache() throws IOException {
+		File dir = newCacheDir();
+		DiskLruCache cache = DiskLruCache.open(dir, 1, 1, 1024*1024);
+		put(cache, "a", 1);
+		cache.close();
+
+		cache = DiskLruCache.open(dir, 2, 1, 1024*1024);
+		assertEquals(-1, get(cache, "a"));
+		assertEquals(0, cache.size());
+		cache.close();
+	}
+
+	public static void testPutAll() throws IOException {
+		File dir = newCacheDir();
+		DiskLruCache cache = DiskLruCache.open(dir, 1, 1, 1024*1024);
+		put(cache, "a", 1);
+		DiskLruCache.Editor editor = cache.edit("b");
+		cache.putAll(new String[] { "a", "b", "c" }, new byte[][] { { 4 }, { 5 }, { 6 } }, 3);
+		// "b" was being edited, so it was skipped.
+		editor.abort();
+		assertEquals(4, get(cache, "a"));
+		assertEquals(-1, get(cache, "b"));
+		assertEquals(6, get(cache, "c"));
+		cache.close();
+
+		cache = DiskLruCache.open(dir, 1, 1, 1024*1024);
+		assertEquals(4, get(cache, "a"));
+		assertEquals(6, get(cache, "c"));
+		assertEquals(2, cache.size());
+		cache.close();
+	}
+
+	public static void testEvictionPolicy() throws IOException {
+		DiskLruCache.EvictionPolicy policy = new DiskLruCache.EvictionPolicy() {
+			@Override
+			public int creditOnWrite(String key) {
+				return key.equals("pinned") ? PINNED : 0;
+			}
+
+			@Override
+			public int creditOnRead(String key) {
+				return key.equals("kept") ? 1 : creditOnWrite(key);
+			}
+		};
+		DiskLruCache cache = DiskLruCache.open(newCacheDir(), 1, 1, 300, policy);
+		put(cache, "pinned", 1);
+		put(cache, "kept", 2);
+		assertEquals(2, get(cache, "kept"));
+		put(cache, "a", 3);
+		put(cache, "b", 4);
+		cache.flush();
+		// Plain LRU would have evicted "pinned".
+		assertEquals(1, get(cache, "pinned"));
+		assertEquals(2, get(cache, "kept"));
+		assertEquals(-1, get(cache, "a"));
+
+		// Reading "kept" again gave it more credit, so the others go first.
+		put(cache, "c", 5);
+		put(cache, "d", 6);
+		cache.flush();
+		assertEquals(1, get(cache, "pinned"));
+		assertEquals(2, get(cache, "kept"));
+		assertEquals(-1, get(cache, "b"));
+		assertEquals(-1, get(cache, "c"));
+		assertEquals(300, cache.size());
+		cache.close();
+	}
+}
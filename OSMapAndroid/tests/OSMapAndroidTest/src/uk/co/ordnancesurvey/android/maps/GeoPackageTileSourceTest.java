@@ -0,0 +1,70 @@
+/**
+ * OpenSpace Android SDK Licence Terms
+ *
+ * The OpenSpace Android SDK is protected by © Crown copyright – Ordnance Survey 2013.[https://github.com/OrdnanceSurvey]
+ *
+ * All rights reserved (subject to the BSD licence terms as follows):.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided
+ * with the distribution.
+ *
+ * Neither the name of Ordnance Survey nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE
+ *
+ */
+package uk.co.ordnancesurvey.android.maps;
+
+import junit.framework.TestCase;
+
+public final class GeoPackageTileSourceTest extends TestCase {
+	private static MapTile tile(int x, int y, MapLayer layer) {
+		MapTile tile = new MapTile();
+		tile.set(x, y, layer);
+		return tile;
+	}
+
+	private static GeoPackageTileSource.TileMatrix matrix(MapLayer layer, double minXTiles, double maxYTiles, double pixelSize) {
+		double span = layer.tileSizeMetres;
+		return GeoPackageTileSource.TileMatrix.forLayerOrNull(layer, 7, minXTiles * span, maxYTiles * span, 4, 5,
+				layer.tileSizePixels, layer.tileSizePixels, pixelSize, pixelSize);
+	}
+
+	public static void testMapsGridTilesToRowsAndColumns() {
+		MapLayer layer = MapLayer.forIndex(0);
+		GeoPackageTileSource.TileMatrix matrix = matrix(layer, 2, 10, layer.metresPerPixel);
+		assertNotNull(matrix);
+		assertEquals(7, matrix.zoomLevel);
+
+		// The northwest tile is the first row and column.
+		MapTile tile = tile(2, 9, layer);
+		assertTrue(matrix.containsTile(tile));
+		assertEquals(0, matrix.column(tile));
+		assertEquals(0, matrix.row(tile));
+
+		tile = tile(5, 5, layer);
+		assertTrue(matrix.containsTile(tile));
+		assertEquals(3, matrix.column(tile));
+		assertEquals(4, matrix.row(tile));
+
+		assertFalse(matrix.containsTile(tile(6, 5, layer)));
+		assertFalse(matrix.containsTile(tile(5, 4, layer)));
+		assertFalse(matrix.containsTile(tile(1, 9, layer)));
+		assertFalse(matrix.containsTile(tile(2, 10, layer)));
+	}
+
+	public static void testRejectsMatricesThatDontMatchTheGrid() {
+		MapLayer layer = MapLayer.forIndex(0);
+		// Tiles straddling the grid's.
+		assertNull(matrix(layer, 2.5, 10, layer.metresPerPixel));
+		// Tiles of a different size.
+		assertNull(matrix(layer, 2, 10, layer.metresPerPixel * 2));
+	}
+}
@@ -0,0 +1,74 @@
+/**
+ * OpenSpace Android SDK Licence Terms
+ *
+ * The OpenSpace Android SDK is protected by © Crown copyright – Ordnance Survey 2013.[https://github.com/OrdnanceSurvey]
+ *
+ * All rights reserved (subject to the BSD licence terms as follows):.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided
+ * with the distribution.
+ *
+ * Neither the name of Ordnance Survey nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE
+ *
+ */
+package uk.co.ordnancesurvey.android.maps;
+
+import junit.framework.TestCase;
+
+public final class LongLruCacheTest extends TestCase {
+	public static void testEvictsLeastRecentlyUsed() {
+		LongLruCache cache = new LongLruCache(300);
+		cache.put(1, new byte[100]);
+		cache.put(2, new byte[100]);
+		cache.put(3, new byte[100]);
+		assertNotNull(cache.get(1));
+		cache.put(4, new byte[100]);
+		assertNull(cache.get(2));
+		assertNotNull(cache.get(1));
+		assertNotNull(cache.get(3));
+		assertNotNull(cache.get(4));
+		assertEquals(300, cache.size());
+
+		// Replacing a value changes the size.
+		cache.put(4, new byte[50]);
+		assertEquals(250, cache.size());
+
+		// Too big to cache at all.
+		cache.put(5, new byte[301]);
+		assertNull(cache.get(5));
+		assertEquals(250, cache.size());
+	}
+
+	public static void testGrows() {
+		LongLruCache cache = new LongLruCache(1000000);
+		for (long i = 0; i < 1000; i++) {
+			cache.put(i << 24, new byte[] { (byte)i });
+		}
+		for (long i = 0; i < 1000; i++) {
+			assertEquals((byte)i, cache.get(i << 24)[0]);
+		}
+		assertEquals(1000, cache.size());
+	}
+
+	public static void testPackedKeysAreDistinct() {
+		MapLayer[] layers = MapLayer.getDefaultLayers();
+		MapTile a = new MapTile();
+		MapTile b = new MapTile();
+		a.set(1, 2, layers[0]);
+		b.set(2, 1, layers[0]);
+		assertTrue(a.key() != b.key());
+		b.set(1, 2, layers[1]);
+		assertTrue(a.key() != b.key());
+		b.set(1, 2, layers[0]);
+		assertEquals(a.key(), b.key());
+	}
+}
@@ -0,0 +1,93 @@
+/**
+ * OpenSpace Android SDK Licence Terms
+ *
+ * The OpenSpace Android SDK is protected by © Crown copyright – Ordnance Survey 2013.[https://github.com/OrdnanceSurvey]
+ *
+ * All rights reserved (subject to the BSD licence terms as follows):.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided
+ * with the distribution.
+ *
+ * Neither the name of Ordnance Survey nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE
+ *
+ */
+package uk.co.ordnancesurvey.android.maps;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public final class MappedTileStoreTest extends TestCase {
+	private static File newStoreDir() throws IOException {
+		File dir = File.createTempFile("MappedTileStoreTest", "");
+		assertTrue(dir.delete());
+		assertTrue(dir.mkdir());
+		return dir;
+	}
+
+	private static long tile(int x, int y) {
+		MapTile tile = new MapTile();
+		tile.set(x, y, MapLayer.getDefaultLayers()[0]);
+		return tile.key();
+	}
+
+	private static byte[] data(int seed, int length) {
+		byte[] data = new byte[length];
+		Arrays.fill(data, (byte)seed);
+		return data;
+	}
+
+	public static void testPutAndReopen() throws IOException {
+		File dir = newStoreDir();
+		MappedTileStore store = MappedTileStore.openOrNull(dir, 1, 1024*1024);
+		assertNull(store.get(tile(1, 2)));
+		store.put(tile(1, 2), data(1, 1000));
+		store.put(tile(2, 1), data(2, 2000));
+		store.put(tile(1, 2), data(3, 3000));
+		assertTrue(Arrays.equals(data(3, 3000), store.get(tile(1, 2))));
+		assertTrue(Arrays.equals(data(2, 2000), store.get(tile(2, 1))));
+
+		store = MappedTileStore.openOrNull(dir, 1, 1024*1024);
+		assertTrue(Arrays.equals(data(3, 3000), store.get(tile(1, 2))));
+
+		// A new app version starts again.
+		store = MappedTileStore.openOrNull(dir, 2, 1024*1024);
+		assertNull(store.get(tile(1, 2)));
+	}
+
+	public static void testClose() throws IOException {
+		File dir = newStoreDir();
+		MappedTileStore store = MappedTileStore.openOrNull(dir, 1, 1024*1024);
+		store.put(tile(1, 2), data(1, 1000));
+		store.close();
+		assertNull(store.get(tile(1, 2)));
+		store.put(tile(2, 1), data(2, 2000));
+
+		store = MappedTileStore.openOrNull(dir, 1, 1024*1024);
+		assertTrue(Arrays.equals(data(1, 1000), store.get(tile(1, 2))));
+		assertNull(store.get(tile(2, 1)));
+	}
+
+	public static void testEvictsOldestSegment() throws IOException {
+		// Eight 128 KB segments, each with room for three of these tiles.
+		MappedTileStore store = MappedTileStore.openOrNull(newStoreDir(), 1, 1024*1024);
+		for (int i = 0; i < 30; i++) {
+			store.put(tile(i, 0), data(i, 40*1024));
+		}
+		assertNull(store.get(tile(0, 0)));
+		assertNull(store.get(tile(5, 0)));
+		assertTrue(Arrays.equals(data(29, 40*1024), store.get(tile(29, 0))));
+		assertTrue(Arrays.equals(data(9, 40*1024), store.get(tile(9, 0))));
+	}
+}
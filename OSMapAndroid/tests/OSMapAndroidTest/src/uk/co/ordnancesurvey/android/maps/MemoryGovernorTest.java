@@ -0,0 +1,115 @@
+/**
+ * OpenSpace Android SDK Licence Terms
+ *
+ * The OpenSpace Android SDK is protected by © Crown copyright – Ordnance Survey 2013.[https://github.com/OrdnanceSurvey]
+ *
+ * All rights reserved (subject to the BSD licence terms as follows):.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided
+ * with the distribution.
+ *
+ * Neither the name of Ordnance Survey nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE
+ *
+ */
+package uk.co.ordnancesurvey.android.maps;
+
+import android.content.ComponentCallbacks2;
+
+import junit.framework.TestCase;
+
+public final class MemoryGovernorTest extends TestCase {
+	private static final class FakeTier implements MemoryGovernor.Tier {
+		float fraction = 1;
+
+		@Override
+		public void setBudgetFraction(float fraction) {
+			this.fraction = fraction;
+		}
+	}
+
+	public static void testShedsTiersInPriorityOrder() {
+		MemoryGovernor governor = MemoryGovernor.getInstance();
+		FakeTier spare = new FakeTier();
+		FakeTier data = new FakeTier();
+		FakeTier gl = new FakeTier();
+		governor.register(spare, MemoryGovernor.PRIORITY_SPARE);
+		governor.register(data, MemoryGovernor.PRIORITY_DATA);
+		governor.register(gl, MemoryGovernor.PRIORITY_GL);
+		try {
+			governor.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE);
+			assertEquals(0f, spare.fraction);
+			assertEquals(0.5f, data.fraction);
+			assertEquals(1f, gl.fraction);
+
+			governor.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL);
+			assertEquals(0f, data.fraction);
+			assertEquals(0.5f, gl.fraction);
+
+			// A tier registered now starts out limited.
+			FakeTier late = new FakeTier();
+			governor.register(late, MemoryGovernor.PRIORITY_DATA);
+			assertEquals(0f, late.fraction);
+			governor.unregister(late);
+
+			// Being in the background stops applying once a map is resumed.
+			governor.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_BACKGROUND);
+			assertEquals(0f, gl.fraction);
+			governor.onResume();
+			assertEquals(1f, spare.fraction);
+			assertEquals(1f, data.fraction);
+			assertEquals(1f, gl.fraction);
+		} finally {
+			governor.unregister(spare);
+			governor.unregister(data);
+			governor.unregister(gl);
+		}
+	}
+
+	public static void testRelaxingFromBackgroundKeepsTileData() {
+		MemoryGovernor governor = MemoryGovernor.getInstance();
+		FakeTier data = new FakeTier();
+		FakeTier decoded = new FakeTier();
+		governor.register(data, MemoryGovernor.PRIORITY_DATA);
+		governor.register(decoded, MemoryGovernor.PRIORITY_DECODED);
+		try {
+			governor.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN);
+			assertEquals(0.5f, data.fraction);
+			assertEquals(0f, decoded.fraction);
+
+			// Relaxing only ever grows the budgets, so the hidden app keeps its tile data.
+			governor.relax();
+			assertEquals(1f, data.fraction);
+			assertEquals(1f, decoded.fraction);
+
+			governor.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+			assertEquals(0f, data.fraction);
+			governor.relax();
+			assertEquals(0.5f, data.fraction);
+			assertEquals(0f, decoded.fraction);
+			governor.relax();
+			assertEquals(1f, data.fraction);
+
+			// The running levels step down one at a time.
+			governor.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL);
+			governor.relax();
+			assertEquals(0.25f, data.fraction);
+			assertEquals(0.5f, decoded.fraction);
+			governor.relax();
+			governor.relax();
+			assertEquals(1f, data.fraction);
+			assertEquals(1f, decoded.fraction);
+		} finally {
+			governor.unregister(data);
+			governor.unregister(decoded);
+		}
+	}
+}
@@ -0,0 +1,74 @@
+/**
+ * OpenSpace Android SDK Licence Terms
+ *
+ * The OpenSpace Android SDK is protected by © Crown copyright – Ordnance Survey 2013.[https://github.com/OrdnanceSurvey]
+ *
+ * All rights reserved (subject to the BSD licence terms as follows):.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided
+ * with the distribution.
+ *
+ * Neither the name of Ordnance Survey nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE
+ *
+ */
+package uk.co.ordnancesurvey.android.maps;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public final class TileBoxIndexTest extends TestCase {
+	private static boolean contains(int[] box, int x, int y) {
+		return box != null && box[0] <= x && x < box[2] && box[1] <= y && y < box[3];
+	}
+
+	private static boolean contains(int[] ids, int id) {
+		for (int i : ids) {
+			if (i == id) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public static void testFindsEveryBoxContainingATile() {
+		Random random = new Random(1);
+		int[][] boxes = new int[30][];
+		for (int i = 0; i < boxes.length; i++) {
+			if (i % 7 == 3) {
+				continue;
+			}
+			int x0 = random.nextInt(1000), y0 = random.nextInt(1000);
+			boxes[i] = new int[] { x0, y0, x0 + 1 + random.nextInt(200), y0 + 1 + random.nextInt(200) };
+		}
+		TileBoxIndex index = new TileBoxIndex(boxes);
+		int near = 0;
+		for (int y = -10; y < 1250; y += 3) {
+			for (int x = -10; x < 1250; x += 3) {
+				int[] ids = index.idsNear(x, y);
+				near += ids.length;
+				for (int id = 0; id < boxes.length; id++) {
+					if (contains(boxes[id], x, y)) {
+						assertTrue(contains(ids, id));
+					}
+				}
+			}
+		}
+		// Most tiles are near a handful of boxes, not all 30.
+		assertTrue(near < 5 * 420 * 420);
+	}
+
+	public static void testNoBoxes() {
+		TileBoxIndex index = new TileBoxIndex(new int[][] { null });
+		assertEquals(0, index.idsNear(0, 0).length);
+	}
+}
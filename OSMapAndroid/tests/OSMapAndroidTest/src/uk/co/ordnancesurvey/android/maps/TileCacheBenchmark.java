@@ -0,0 +1,135 @@
+/**
+ * OpenSpace Android SDK Licence Terms
+ *
+ * The OpenSpace Android SDK is protected by © Crown copyright – Ordnance Survey 2013.[https://github.com/OrdnanceSurvey]
+ *
+ * All rights reserved (subject to the BSD licence terms as follows):.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided
+ * with the distribution.
+ *
+ * Neither the name of Ordnance Survey nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE
+ *
+ */
+package uk.co.ordnancesurvey.android.maps;
+
+import java.util.LinkedHashMap;
+
+/**
+ * A throughput benchmark for memory cache hits, which is what TileFetcher's workers mostly do.
+ *
+ * It compares LongLruCache with packed MapTile keys against what CombinedLruCache did before: build a string such as
+ * "SV_1234_5678" and look it up in an access-ordered LinkedHashMap, under a lock, which is how
+ * {@link android.support.v4.util.LruCache} works. For each it reports lookups per second and the bytes allocated per lookup,
+ * if the JVM can tell.
+ *
+ * It doesn't touch any Android classes at run time, so it runs on a plain JVM. From OSMapAndroid:
+ *
+ *   mkdir -p /tmp/bench
+ *   javac -d /tmp/bench -cp $ANDROID_HOME/platforms/android-17/android.jar -sourcepath src/main/java \
+ *       tests/OSMapAndroidTest/src/uk/co/ordnancesurvey/android/maps/TileCacheBenchmark.java
+ *   java -cp /tmp/bench uk.co.ordnancesurvey.android.maps.TileCacheBenchmark [lookups]
+ */
+public final class TileCacheBenchmark {
+	// About a screenful and a prefetch ring.
+	private static final int TILES = 256;
+	private static final int ROUNDS = 5;
+
+	private interface Scheme {
+		String name();
+		void put(MapTile tile, byte[] data);
+		byte[] get(MapTile tile);
+	}
+
+	private static final class StringKeyScheme implements Scheme {
+		private final LinkedHashMap<String, byte[]> mMap = new LinkedHashMap<String, byte[]>(0, 0.75f, true);
+
+		public String name() {
+			return "String keys + LinkedHashMap";
+		}
+
+		private static String stringForKey(MapTile key) {
+			return key.layer.productCode + "_" + key.x + "_" + key.y;
+		}
+
+		public synchronized void put(MapTile tile, byte[] data) {
+			mMap.put(stringForKey(tile), data);
+		}
+
+		public synchronized byte[] get(MapTile tile) {
+			return mMap.get(stringForKey(tile));
+		}
+	}
+
+	private static final class LongKeyScheme implements Scheme {
+		private final LongLruCache mCache = new LongLruCache(Integer.MAX_VALUE);
+
+		public String name() {
+			return "long keys + LongLruCache";
+		}
+
+		public void put(MapTile tile, byte[] data) {
+			mCache.put(tile.key(), data);
+		}
+
+		public byte[] get(MapTile tile) {
+			return mCache.get(tile.key());
+		}
+	}
+
+	// Returns the bytes allocated by this thread so far, or -1 if the JVM can't say.
+	// java.lang.management isn't in android.jar, so it is only looked up at run time.
+	private static long allocatedBytes() {
+		try {
+			Object bean = Class.forName("java.lang.management.ManagementFactory").getMethod("getThreadMXBean").invoke(null);
+			Class<?> sunBean = Class.forName("com.sun.management.ThreadMXBean");
+			return (Long)sunBean.getMethod("getThreadAllocatedBytes", long.class).invoke(bean, Thread.currentThread().getId());
+		} catch (Exception e) {
+			return -1;
+		}
+	}
+
+	private static void run(Scheme scheme, MapTile[] tiles, int lookups) {
+		for (MapTile tile : tiles) {
+			scheme.put(tile, new byte[16]);
+		}
+		int found = 0;
+		for (int round = 0; round < ROUNDS; round++) {
+			long startBytes = allocatedBytes();
+			long start = System.nanoTime();
+			for (int i = 0; i < lookups; i++) {
+				if (scheme.get(tiles[i % tiles.length]) != null) {
+					found++;
+				}
+			}
+			long nanos = System.nanoTime() - start;
+			long bytes = allocatedBytes() - startBytes;
+			System.out.printf("%-28s round %d: %6.1f M lookups/s, %s bytes/lookup%n", scheme.name(), round,
+					lookups * 1000.0 / nanos, (startBytes < 0 ? "?" : String.format("%.1f", (double)bytes / lookups)));
+		}
+		if (found != ROUNDS * lookups) {
+			throw new AssertionError("Missing tiles");
+		}
+	}
+
+	public static void main(String[] args) {
+		int lookups = (args.length > 0 ? Integer.parseInt(args[0]) : 10000000);
+		MapLayer layer = MapLayer.getDefaultLayers()[0];
+		MapTile[] tiles = new MapTile[TILES];
+		for (int i = 0; i < TILES; i++) {
+			tiles[i] = new MapTile();
+			tiles[i].set(1000 + i % 16, 2000 + i / 16, layer);
+		}
+		run(new StringKeyScheme(), tiles, lookups);
+		run(new LongKeyScheme(), tiles, lookups);
+	}
+}
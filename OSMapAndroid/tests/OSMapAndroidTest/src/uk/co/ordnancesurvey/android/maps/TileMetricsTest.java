@@ -0,0 +1,60 @@
+/**
+ * OpenSpace Android SDK Licence Terms
+ *
+ * The OpenSpace Android SDK is protected by © Crown copyright – Ordnance Survey 2013.[https://github.com/OrdnanceSurvey]
+ *
+ * All rights reserved (subject to the BSD licence terms as follows):.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided
+ * with the distribution.
+ *
+ * Neither the name of Ordnance Survey nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE
+ *
+ */
+package uk.co.ordnancesurvey.android.maps;
+
+import junit.framework.TestCase;
+
+public final class TileMetricsTest extends TestCase {
+	public static void testHistogramBuckets() {
+		TileMetrics.HistogramRecorder recorder = new TileMetrics.HistogramRecorder();
+		recorder.record(0);
+		recorder.record(1);
+		recorder.record(3);
+		recorder.record(1000000000);
+		TileMetrics.Histogram histogram = recorder.snapshot();
+
+		assertEquals(4, histogram.getCount());
+		assertEquals(1000000004, histogram.getTotalMillis());
+		assertEquals(1, histogram.getBucketCount(0));
+		assertEquals(1, histogram.getBucketCount(1));
+		assertEquals(1, histogram.getBucketCount(2));
+		assertEquals(1, histogram.getBucketCount(TileMetrics.HISTOGRAM_BUCKETS-1));
+		assertEquals(1, TileMetrics.Histogram.getBucketUpperBoundMillis(0));
+		assertEquals(4, TileMetrics.Histogram.getBucketUpperBoundMillis(2));
+		assertEquals(Long.MAX_VALUE, TileMetrics.Histogram.getBucketUpperBoundMillis(TileMetrics.HISTOGRAM_BUCKETS-1));
+	}
+
+	public static void testHistogramPercentiles() {
+		TileMetrics.HistogramRecorder recorder = new TileMetrics.HistogramRecorder();
+		assertEquals(0, recorder.snapshot().getPercentileMillis(50));
+		for (int i = 0; i < 99; i++) {
+			recorder.record(10);
+		}
+		recorder.record(100);
+		TileMetrics.Histogram histogram = recorder.snapshot();
+
+		assertEquals(16, histogram.getPercentileMillis(50));
+		assertEquals(16, histogram.getPercentileMillis(99));
+		assertEquals(128, histogram.getPercentileMillis(100));
+	}
+}
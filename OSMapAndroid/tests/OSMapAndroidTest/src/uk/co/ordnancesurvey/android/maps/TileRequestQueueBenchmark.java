@@ -0,0 +1,246 @@
+/**
+ * OpenSpace Android SDK Licence Terms
+ *
+ * The OpenSpace Android SDK is protected by © Crown copyright – Ordnance Survey 2013.[https://github.com/OrdnanceSurvey]
+ *
+ * All rights reserved (subject to the BSD licence terms as follows):.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided
+ * with the distribution.
+ *
+ * Neither the name of Ordnance Survey nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE
+ *
+ */
+package uk.co.ordnancesurvey.android.maps;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A contention benchmark for handing tile requests from the GL thread to worker threads.
+ *
+ * It compares TileRequestQueue with the scheme TileFetcher used before it, where the GL thread held a lock from the start of a
+ * frame's tile drawing to the end, and workers took requests from a PriorityQueue under the same lock. For each scheme it reports
+ * how long the GL thread spent waiting for the lock (or publishing) each frame, and how long requests waited before a worker
+ * claimed them.
+ *
+ * It doesn't touch any Android classes at run time, so it runs on a plain JVM. From OSMapAndroid:
+ *
+ *   mkdir -p /tmp/bench
+ *   javac -d /tmp/bench -cp $ANDROID_HOME/platforms/android-17/android.jar -sourcepath src/main/java \
+ *       tests/OSMapAndroidTest/src/uk/co/ordnancesurvey/android/maps/TileRequestQueueBenchmark.java
+ *   java -cp /tmp/bench uk.co.ordnancesurvey.android.maps.TileRequestQueueBenchmark [workers] [frames]
+ */
+public final class TileRequestQueueBenchmark {
+	private static final int REQUESTS_PER_FRAME = 64;
+	private static final long FRAME_INTERVAL_NANOS = 16000000;
+	// Time spent drawing a frame's tiles, during which the old scheme held the lock.
+	private static final long DRAW_NANOS = 4000000;
+	// Time a worker spends on each request it claims, e.g. a cache lookup and decode.
+	private static final long WORK_NANOS = 200000;
+
+	private interface Scheme {
+		String name();
+		// Called on the GL thread once per frame. Returns how long the GL thread was blocked.
+		long frame(ArrayList<TileRequest> requests);
+		// Called on a worker thread. Returns null once stop() has been called.
+		TileRequest take();
+		void stop();
+	}
+
+	private static final class LockedScheme implements Scheme {
+		private final ReentrantLock mLock = new ReentrantLock();
+		private final Condition mCondition = mLock.newCondition();
+		private final PriorityQueue<TileRequest> mQueue = new PriorityQueue<TileRequest>(11, TileRequest.COMPARE_PRIORITY);
+		private volatile boolean mStopped;
+
+		public String name() {
+			return "lock + PriorityQueue";
+		}
+
+		public long frame(ArrayList<TileRequest> requests) {
+			long start = System.nanoTime();
+			mLock.lock();
+			long blocked = System.nanoTime() - start;
+			try {
+				mQueue.clear();
+				for (TileRequest request : requests) {
+					mQueue.add(request);
+					spin(DRAW_NANOS / requests.size());
+				}
+				mCondition.signalAll();
+			} finally {
+				mLock.unlock();
+			}
+			return blocked;
+		}
+
+		public TileRequest take() {
+			mLock.lock();
+			try {
+				while (!mStopped) {
+					TileRequest request = mQueue.poll();
+					if (request != null) {
+						return request;
+					}
+					mCondition.awaitUninterruptibly();
+				}
+				return null;
+			} finally {
+				mLock.unlock();
+			}
+		}
+
+		public void stop() {
+			mStopped = true;
+			mLock.lock();
+			try {
+				mCondition.signalAll();
+			} finally {
+				mLock.unlock();
+			}
+		}
+	}
+
+	private static final class LockFreeScheme implements Scheme {
+		private final TileRequestQueue mQueue = new TileRequestQueue(TileRequest.STATE_QUEUED_LOCAL);
+		private volatile boolean mStopped;
+
+		public String name() {
+			return "TileRequestQueue";
+		}
+
+		public long frame(ArrayList<TileRequest> requests) {
+			for (TileRequest request : requests) {
+				request.setState(TileRequest.STATE_QUEUED_LOCAL);
+				spin(DRAW_NANOS / requests.size());
+			}
+			TileRequest[] sorted = requests.toArray(new TileRequest[requests.size()]);
+			Arrays.sort(sorted, TileRequest.COMPARE_PRIORITY);
+			long start = System.nanoTime();
+			mQueue.publish(sorted);
+			return System.nanoTime() - start;
+		}
+
+		public TileRequest take() {
+			while (!mStopped) {
+				TileRequest request = mQueue.take();
+				if (request != null) {
+					return request;
+				}
+			}
+			return null;
+		}
+
+		public void stop() {
+			mStopped = true;
+			mQueue.wakeAll();
+		}
+	}
+
+	private static void spin(long nanos) {
+		long end = System.nanoTime() + nanos;
+		while (System.nanoTime() < end) {
+			// Busy-wait, like real work would.
+		}
+	}
+
+	private static long percentile(long[] sorted, int count, double p) {
+		if (count == 0) {
+			return 0;
+		}
+		return sorted[Math.min(count - 1, (int)(count * p))];
+	}
+
+	private static void run(final Scheme scheme, int workerCount, int frames) throws InterruptedException {
+		// Each worker records how long each request it claimed had been waiting.
+		final long[][] waits = new long[workerCount][frames * REQUESTS_PER_FRAME];
+		final int[] waitCounts = new int[workerCount];
+		Thread[] workers = new Thread[workerCount];
+		for (int i = 0; i < workerCount; i++) {
+			final int index = i;
+			workers[i] = new Thread() {
+				@Override
+				public void run() {
+					TileRequest request;
+					while ((request = scheme.take()) != null) {
+						long wait = System.nanoTime() - request.firstRequestedUptimeMillis;
+						if (waitCounts[index] < waits[index].length) {
+							waits[index][waitCounts[index]++] = wait;
+						}
+						spin(WORK_NANOS);
+					}
+				}
+			};
+			workers[i].start();
+		}
+
+		Random random = new Random(0);
+		long[] blocked = new long[frames];
+		ArrayList<TileRequest> requests = new ArrayList<TileRequest>(REQUESTS_PER_FRAME);
+		long nextFrame = System.nanoTime();
+		for (int f = 0; f < frames; f++) {
+			requests.clear();
+			for (int i = 0; i < REQUESTS_PER_FRAME; i++) {
+				MapTile tile = new MapTile();
+				tile.x = f;
+				tile.y = i;
+				// The benchmark keeps nanoTime() in the timestamp, so claim latency can be measured.
+				TileRequest request = new TileRequest(tile, System.nanoTime());
+				request.priority = random.nextFloat();
+				requests.add(request);
+			}
+			blocked[f] = scheme.frame(requests);
+			nextFrame += FRAME_INTERVAL_NANOS;
+			long sleep = nextFrame - System.nanoTime();
+			if (sleep > 0) {
+				Thread.sleep(sleep / 1000000, (int)(sleep % 1000000));
+			}
+		}
+		scheme.stop();
+		for (Thread worker : workers) {
+			worker.join();
+		}
+
+		int total = 0;
+		for (int count : waitCounts) {
+			total += count;
+		}
+		long[] allWaits = new long[total];
+		int n = 0;
+		for (int i = 0; i < workerCount; i++) {
+			System.arraycopy(waits[i], 0, allWaits, n, waitCounts[i]);
+			n += waitCounts[i];
+		}
+		Arrays.sort(allWaits);
+		Arrays.sort(blocked);
+		System.out.printf("%-22s GL blocked p50 %7.1fus p99 %7.1fus max %7.1fus | claimed %6d, wait p50 %7.1fus p99 %7.1fus%n",
+				scheme.name(),
+				percentile(blocked, frames, 0.5) / 1e3, percentile(blocked, frames, 0.99) / 1e3, blocked[frames - 1] / 1e3,
+				total, percentile(allWaits, total, 0.5) / 1e3, percentile(allWaits, total, 0.99) / 1e3);
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		int workerCount = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+		int frames = args.length > 1 ? Integer.parseInt(args[1]) : 300;
+		System.out.println(workerCount + " workers, " + frames + " frames of " + REQUESTS_PER_FRAME + " requests");
+		// The first round mostly measures JIT warm-up.
+		for (int i = 0; i < 2; i++) {
+			run(new LockedScheme(), workerCount, frames);
+			run(new LockFreeScheme(), workerCount, frames);
+		}
+	}
+}
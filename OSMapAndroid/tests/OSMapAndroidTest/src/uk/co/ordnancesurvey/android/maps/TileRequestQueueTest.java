@@ -0,0 +1,55 @@
+/**
+ * OpenSpace Android SDK Licence Terms
+ *
+ * The OpenSpace Android SDK is protected by © Crown copyright – Ordnance Survey 2013.[https://github.com/OrdnanceSurvey]
+ *
+ * All rights reserved (subject to the BSD licence terms as follows):.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided
+ * with the distribution.
+ *
+ * Neither the name of Ordnance Survey nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE
+ *
+ */
+package uk.co.ordnancesurvey.android.maps;
+
+import junit.framework.TestCase;
+
+public final class TileRequestQueueTest extends TestCase {
+	private static TileRequest newRequest(int x) {
+		MapTile tile = new MapTile();
+		tile.set(x, 0, MapLayer.forIndex(0));
+		TileRequest request = new TileRequest(tile, 0);
+		request.setState(TileRequest.STATE_QUEUED_FETCH);
+		return request;
+	}
+
+	public static void testRemainingCountsOfferedRequests() {
+		TileRequestQueue queue = new TileRequestQueue(TileRequest.STATE_QUEUED_FETCH);
+		queue.publish(new TileRequest[] { newRequest(0), newRequest(1) });
+		queue.offer(newRequest(2));
+		queue.offer(newRequest(3));
+		queue.offer(newRequest(4));
+		assertEquals(5, queue.remaining());
+
+		// Published requests are served first, then offered ones.
+		assertEquals(0, queue.poll().tile.x);
+		assertEquals(1, queue.poll().tile.x);
+		assertEquals(3, queue.remaining());
+		assertEquals(2, queue.poll().tile.x);
+		assertEquals(2, queue.remaining());
+
+		assertEquals(2, queue.retireAll().size());
+		assertEquals(0, queue.remaining());
+		assertNull(queue.poll());
+	}
+}
@@ -0,0 +1,97 @@
+/**
+ * OpenSpace Android SDK Licence Terms
+ *
+ * The OpenSpace Android SDK is protected by © Crown copyright – Ordnance Survey 2013.[https://github.com/OrdnanceSurvey]
+ *
+ * All rights reserved (subject to the BSD licence terms as follows):.
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided
+ * with the distribution.
+ *
+ * Neither the name of Ordnance Survey nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE
+ *
+ */
+package uk.co.ordnancesurvey.android.maps;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import android.net.Uri;
+
+import junit.framework.TestCase;
+
+public final class WebTileSourceTest extends TestCase {
+	/**
+	 * Serves a fixed response, and records what was asked for.
+	 */
+	private static final class StubTransport implements HttpTransport {
+		final ArrayList<URL> requests = new ArrayList<URL>();
+		byte[] body;
+		int statusCode = 200;
+
+		@Override
+		public synchronized byte[] get(URL url, TileRequest requestOrNull) throws IOException {
+			requests.add(url);
+			if (statusCode/100 != 2) {
+				throw new HttpStatusException(statusCode);
+			}
+			return body;
+		}
+	}
+
+	private static MapTile tile(int x, int y, MapLayer layer) {
+		MapTile tile = new MapTile();
+		tile.set(x, y, layer);
+		return tile;
+	}
+
+	public static void testFetchesThroughTransport() {
+		WebTileSource source = new WebTileSource(null) {
+			@Override
+			String uriStringForTile(MapTile tile) {
+				return "http://stub.invalid/tile?x=" + tile.x + "&y=" + tile.y;
+			}
+		};
+		StubTransport transport = new StubTransport();
+		transport.body = new byte[] { 1, 2, 3 };
+		source.setTransport(transport);
+
+		MapLayer layer = MapLayer.forIndex(0);
+		assertTrue(Arrays.equals(transport.body, source.dataForTile(tile(3, 4, layer))));
+		assertEquals("http://stub.invalid/tile?x=3&y=4", transport.requests.get(0).toString());
+
+		transport.statusCode = 404;
+		assertNull(source.dataForTile(tile(5, 6, layer)));
+		assertEquals(2, transport.requests.size());
+	}
+
+	public static void testPreparedURLsMatchTheOldOnes() {
+		WMSTileSource source = new WMSTileSource("key", "com.example", true, null);
+		for (int i = 0; i < MapLayer.getLayerCount(); i++) {
+			MapLayer layer = MapLayer.forIndex(i);
+			MapTile tile = tile(123, 456, layer);
+			float bboxX0 = layer.tileSizeMetres *tile.x;
+			float bboxY0 = layer.tileSizeMetres *tile.y;
+			float bboxX1 = bboxX0 + layer.tileSizeMetres;
+			float bboxY1 = bboxY0 + layer.tileSizeMetres;
+			String expected = "https://osopenspacepro.ordnancesurvey.co.uk/osmapapi/ts" +
+					"?FORMAT=image/png&SERVICE=WMS&VERSION=1.1.1&EXCEPTIONS=application/vnd.ogc.se_inimage&SRS=EPSG:27700&STYLES=&REQUEST=GetMap" +
+					"&KEY=key&appId=com.example" +
+					"&WIDTH=" + layer.tileSizePixels + "&HEIGHT="+ layer.tileSizePixels +
+					"&BBOX=" + bboxX0 + "," + bboxY0 + "," + bboxX1 + "," + bboxY1 +
+					"&LAYERS=" + Uri.encode(layer.layerCode) + "&PRODUCT=" + Uri.encode(layer.productCode);
+			assertEquals(expected, source.uriStringForTile(tile));
+		}
+	}
+}